@@ -0,0 +1,78 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.cloud.gateway.filter.GlobalFilter;
+import org.springframework.cloud.gateway.route.Route;
+import org.springframework.cloud.gateway.route.RouteLocator;
+import org.springframework.cloud.gateway.route.builder.RouteLocatorBuilder;
+import org.springframework.cloud.gateway.support.ServerWebExchangeUtils;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * A {@link Configuration} bean that defines some configuration to enable local development.
+ * <p>
+ * It is only loaded in dev mode. Otherwise, the gateway is disabled in application.yaml, so none of its
+ * auto-configuration, filters or HTTP client are set up. It lives in src/dev/java, which is left out of production
+ * builds together with the gateway dependency.
+ */
+@Configuration
+@ConditionalOnProperty(name = "frontend-dev-mode", havingValue = "true")
+public class DevSupportConfiguration
+{
+    private static final Logger logger = LoggerFactory.getLogger(DevSupportConfiguration.class);
+
+    public DevSupportConfiguration()
+    {
+        logger.info("Development mode enabled. Requests for static content will be forwarded to " +
+                    "https://localhost:1234");
+    }
+
+    @Bean
+    public RouteLocator customRouteLocator(RouteLocatorBuilder builder)
+    {
+        return builder.routes()
+                      .route("dev-server-index", r -> r.path("/").uri("https://localhost:1234"))
+                      .route("dev-server", r -> r.path("/index.*").uri("https://localhost:1234"))
+                      .route("dev-server-src", r-> r.path("/__parcel_source_root/**")
+                                                    .uri("https://localhost:1234"))
+                      .build();
+    }
+
+    /**
+     * Passes the id of the matched route to the {@link RequestMetricsFilter}, which can't refer to the gateway.
+     */
+    @Bean
+    public GlobalFilter routeMetricsFilter()
+    {
+        return (exchange, chain) ->
+        {
+            Route route = exchange.getAttribute(ServerWebExchangeUtils.GATEWAY_ROUTE_ATTR);
+            if (route != null)
+            {
+                exchange.getAttributes().put(RequestMetricsFilter.ROUTE_ATTRIBUTE, route.getId());
+            }
+            return chain.filter(exchange);
+        };
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.http.HttpCookie;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseCookie;
+import org.springframework.http.server.reactive.HttpHandler;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.http.server.reactive.MockServerHttpResponse;
+import org.springframework.web.server.adapter.WebHttpHandlerBuilder;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Runs the {@link ServerApplication} in-process and passes mock exchanges straight to its {@link HttpHandler}, so
+ * benchmarks measure the whole WebFlux filter chain, including Spring Security, without the cost of TLS and sockets.
+ */
+final class ApplicationHarness implements AutoCloseable
+{
+    static final String CSRF_COOKIE = "XSRF-TOKEN";
+    static final String CSRF_HEADER = "X-XSRF-TOKEN";
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(10);
+
+    private final ConfigurableApplicationContext context;
+    private final HttpHandler handler;
+
+    /**
+     * @param properties additional properties, such as {@code sessions.mode=cookie}
+     */
+    ApplicationHarness(String... properties)
+    {
+        // The HTTP server is never used, but it can't be disabled without also disabling WebFlux
+        context = new SpringApplicationBuilder(ServerApplication.class)
+                .properties("server.port=0",
+                            "spring.main.banner-mode=off",
+                            "logging.level.root=WARN",
+                            // Benchmarks write as fast as they can, which the limits are meant to prevent
+                            "todos.write-limit.enabled=false",
+                            "todos.max-per-user=" + Integer.MAX_VALUE)
+                .properties(properties)
+                .run();
+        handler = WebHttpHandlerBuilder.applicationContext(context).build();
+    }
+
+    <T> T getBean(Class<T> type)
+    {
+        return context.getBean(type);
+    }
+
+    /**
+     * Passes a request through the application and waits for the response to be written.
+     */
+    MockServerHttpResponse exchange(MockServerHttpRequest request)
+    {
+        MockServerHttpResponse response = new MockServerHttpResponse();
+        handler.handle(request, response).block(TIMEOUT);
+        return response;
+    }
+
+    /**
+     * Passes a request through the application and waits for the response to be written.
+     *
+     * @return the status of the response, which is only set explicitly when it isn't 200
+     */
+    HttpStatus status(MockServerHttpRequest request)
+    {
+        HttpStatus status = exchange(request).getStatusCode();
+        return status == null ? HttpStatus.OK : status;
+    }
+
+    /**
+     * Logs in with the login form, the way a browser does, and keeps the cookies set by the login, which hold either
+     * the session id or the encrypted security context, depending on {@code sessions.mode}.
+     */
+    Session login(String userName, String password)
+    {
+        MockServerHttpResponse loginPage = exchange(MockServerHttpRequest.get("/login").build());
+        ResponseCookie csrfCookie = loginPage.getCookies().getFirst(CSRF_COOKIE);
+        if (csrfCookie == null)
+        {
+            throw new IllegalStateException("The login page didn't set a CSRF token");
+        }
+
+        String csrfToken = csrfCookie.getValue();
+        MockServerHttpResponse loggedIn = exchange(
+                MockServerHttpRequest.post("/login")
+                                     .contentType(MediaType.APPLICATION_FORM_URLENCODED)
+                                     .cookie(new HttpCookie(CSRF_COOKIE, csrfToken))
+                                     .body("username=" + userName + "&password=" + password + "&_csrf=" + csrfToken));
+        List<HttpCookie> sessionCookies = new ArrayList<>();
+        for (List<ResponseCookie> cookies : loggedIn.getCookies().values())
+        {
+            for (ResponseCookie cookie : cookies)
+            {
+                if (!CSRF_COOKIE.equals(cookie.getName()) && !cookie.getValue().isEmpty())
+                {
+                    sessionCookies.add(new HttpCookie(cookie.getName(), cookie.getValue()));
+                }
+            }
+        }
+        if (loggedIn.getStatusCode() != HttpStatus.FOUND || sessionCookies.isEmpty())
+        {
+            throw new IllegalStateException("Login failed for " + userName + ": " + loggedIn.getStatusCode());
+        }
+        return new Session(sessionCookies, new HttpCookie(CSRF_COOKIE, csrfToken));
+    }
+
+    @Override
+    public void close()
+    {
+        context.close();
+    }
+
+    /**
+     * The cookies of a logged in user.
+     */
+    static final class Session
+    {
+        private final HttpCookie[] sessionCookies;
+        private final HttpCookie[] allCookies;
+        private final HttpCookie csrfCookie;
+
+        private Session(List<HttpCookie> sessionCookies, HttpCookie csrfCookie)
+        {
+            this.sessionCookies = sessionCookies.toArray(new HttpCookie[0]);
+            this.allCookies = Arrays.copyOf(this.sessionCookies, this.sessionCookies.length + 1);
+            this.allCookies[this.sessionCookies.length] = csrfCookie;
+            this.csrfCookie = csrfCookie;
+        }
+
+        MockServerHttpRequest.BaseBuilder<?> get(String path)
+        {
+            return MockServerHttpRequest.get(path).cookie(sessionCookies);
+        }
+
+        MockServerHttpRequest.BodyBuilder post(String path)
+        {
+            return MockServerHttpRequest.post(path)
+                                        .cookie(allCookies)
+                                        .header(CSRF_HEADER, csrfCookie.getValue());
+        }
+    }
+}
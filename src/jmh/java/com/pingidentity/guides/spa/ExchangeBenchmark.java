@@ -0,0 +1,157 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures whole exchanges through the WebFlux filter chain, including the {@code SecurityWebFilterChain} built in
+ * {@link ServerApplication#springSecurityFilterChain}, the session lookup, CSRF checks, method security, validation
+ * and JSON encoding. Requests are mock exchanges passed to the application's {@code HttpHandler}, so TLS and the
+ * network are not included.
+ * <p>
+ * {@link #create} and {@link #createBatch} both report todos created per second, so the cost of creating todos one
+ * request at a time can be compared with creating them in batches.
+ * <p>
+ * Each benchmark runs with the security context kept in the in-memory session store ({@code memory}) and in an
+ * encrypted cookie ({@code cookie}), to compare the per-request cost of a session lookup with decrypting the cookie.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ExchangeBenchmark
+{
+    private static final int BATCH_SIZE = 100;
+
+    @Param({"memory", "cookie"})
+    public String sessionMode;
+
+    private ApplicationHarness application;
+    private ApplicationHarness.Session alice;
+    private ApplicationHarness.Session bob;
+
+    @Setup
+    public void setUp()
+    {
+        application = new ApplicationHarness("sessions.mode=" + sessionMode);
+        alice = application.login("alice", "alice");
+        bob = application.login("bob", "bob");
+
+        for (int i = 0; i < 10; i++)
+        {
+            expect(HttpStatus.CREATED, application.status(bob.post("/todos")
+                                                          .contentType(MediaType.APPLICATION_JSON)
+                                                          .body(todoJson())));
+        }
+        expect(HttpStatus.UNAUTHORIZED, unauthenticated());
+        expect(HttpStatus.OK, user());
+        expect(HttpStatus.OK, readTodos());
+        expect(HttpStatus.CREATED, create());
+        expect(HttpStatus.OK, createBatch());
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        application.close();
+    }
+
+    /**
+     * A request rejected by the security filters.
+     */
+    @Benchmark
+    public HttpStatus unauthenticated()
+    {
+        return application.status(MockServerHttpRequest.get("/todos").build());
+    }
+
+    @Benchmark
+    public HttpStatus user()
+    {
+        return application.status(bob.get("/user").build());
+    }
+
+    @Benchmark
+    public HttpStatus readTodos()
+    {
+        return application.status(bob.get("/todos").build());
+    }
+
+    @Benchmark
+    public HttpStatus create()
+    {
+        return application.status(alice.post("/todos")
+                                        .contentType(MediaType.APPLICATION_JSON)
+                                        .body(todoJson()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public HttpStatus createBatch()
+    {
+        StringBuilder body = new StringBuilder(BATCH_SIZE * 80);
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+            body.append(todoJson()).append('\n');
+        }
+        return application.status(alice.post("/todos/batch")
+                                        .contentType(CodecConfiguration.APPLICATION_NDJSON)
+                                        .body(body.toString()));
+    }
+
+    /**
+     * Every todo gets a new id. {@link UUID#randomUUID()} isn't used, as its shared random source would contend.
+     */
+    private static String todoJson()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        UUID id = new UUID(random.nextLong(), random.nextLong());
+        return "{\"id\":\"" + id + "\",\"content\":\"Benchmark todo\"}";
+    }
+
+    private static void expect(HttpStatus expected, HttpStatus actual)
+    {
+        if (expected != actual)
+        {
+            throw new IllegalStateException("Expected " + expected + " but got " + actual);
+        }
+    }
+}
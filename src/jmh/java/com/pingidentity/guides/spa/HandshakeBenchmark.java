@@ -0,0 +1,218 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CPU time of a TLS handshake for a new connection, with the server keys {@link ServerCertGenerator}
+ * generates, and of a handshake that resumes the session of an earlier connection.
+ * <p>
+ * The client and server engines exchange their records in memory on the benchmark thread, so the time per operation
+ * is the CPU time both ends spend on one connection, without any network I/O. {@code keyTypes} selects the keys in the
+ * server's key store; with {@code ec,rsa} the server picks the EC key, as it would for any client that supports ECDSA.
+ * The client offers {@code applicationProtocol} through ALPN, so {@code h2} measures the handshake of an HTTP/2
+ * connection. Resumed handshakes use the session cache of the server, sized by {@code sessionCacheSize}, for TLS 1.2
+ * and session tickets for TLS 1.3.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandshakeBenchmark
+{
+    private static final String HOST = "localhost";
+    private static final int PORT = 9001;
+    private static final int MAX_HANDSHAKE_STEPS = 100;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    @Param({"ec", "rsa", "ec,rsa"})
+    String keyTypes;
+
+    @Param({"TLSv1.2", "TLSv1.3"})
+    String protocol;
+
+    @Param({"h2", "http/1.1"})
+    String applicationProtocol;
+
+    @Param({"20480"})
+    int sessionCacheSize;
+
+    private SSLContext serverContext;
+    private SSLContext clientContext;
+    private String negotiatedProtocol;
+
+    private final ByteBuffer clientToServer = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer serverToClient = ByteBuffer.allocate(64 * 1024);
+    private final ByteBuffer applicationData = ByteBuffer.allocate(64 * 1024);
+
+    @Setup
+    public void setUp() throws Exception
+    {
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(ServerCertGenerator.generateKeyStore(keyTypes), ServerCertGenerator.P12_PASSWORD.toCharArray());
+        serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+        serverContext.getServerSessionContext().setSessionCacheSize(sessionCacheSize);
+
+        clientContext = SSLContext.getInstance("TLS");
+        clientContext.init(null, InsecureTrustManagerFactory.INSTANCE.getTrustManagers(), null);
+
+        // Leaves a session to resume in the client's session cache
+        SSLSession session = handshake(newClientEngine(true));
+        if (!protocol.equals(session.getProtocol()) || !applicationProtocol.equals(negotiatedProtocol))
+        {
+            throw new IllegalStateException("Negotiated " + session.getProtocol() + " and " + negotiatedProtocol);
+        }
+    }
+
+    /**
+     * A new connection, which the server can't resume a session for.
+     */
+    @Benchmark
+    public SSLSession fullHandshake() throws SSLException
+    {
+        return handshake(newClientEngine(false));
+    }
+
+    /**
+     * A reconnect of a client that has connected before.
+     */
+    @Benchmark
+    public SSLSession resumedHandshake() throws SSLException
+    {
+        return handshake(newClientEngine(true));
+    }
+
+    private SSLEngine newClientEngine(boolean resumable)
+    {
+        // The client only looks for a session to resume when it knows the server's address
+        SSLEngine client = resumable ? clientContext.createSSLEngine(HOST, PORT) : clientContext.createSSLEngine();
+        client.setUseClientMode(true);
+        SSLParameters parameters = client.getSSLParameters();
+        parameters.setProtocols(new String[]{ protocol });
+        parameters.setApplicationProtocols(new String[]{ applicationProtocol });
+        client.setSSLParameters(parameters);
+        return client;
+    }
+
+    private SSLSession handshake(SSLEngine client) throws SSLException
+    {
+        SSLEngine server = serverContext.createSSLEngine();
+        server.setUseClientMode(false);
+        SSLParameters parameters = server.getSSLParameters();
+        parameters.setApplicationProtocols(new String[]{ "h2", "http/1.1" });
+        server.setSSLParameters(parameters);
+
+        clientToServer.clear();
+        serverToClient.clear();
+        client.beginHandshake();
+        server.beginHandshake();
+        for (int step = 0; isHandshaking(client) || isHandshaking(server); step++)
+        {
+            if (step == MAX_HANDSHAKE_STEPS)
+            {
+                throw new IllegalStateException("The handshake didn't finish in " + step + " steps");
+            }
+            step(client, clientToServer, serverToClient);
+            step(server, serverToClient, clientToServer);
+        }
+        // With TLS 1.3 the server sends the session ticket after its side of the handshake is done
+        unwrap(client, serverToClient);
+
+        negotiatedProtocol = server.getApplicationProtocol();
+        return client.getSession();
+    }
+
+    private static boolean isHandshaking(SSLEngine engine)
+    {
+        return engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING;
+    }
+
+    private void step(SSLEngine engine, ByteBuffer out, ByteBuffer in) throws SSLException
+    {
+        switch (engine.getHandshakeStatus())
+        {
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null)
+                {
+                    task.run();
+                }
+                break;
+            case NEED_WRAP:
+                engine.wrap(EMPTY, out);
+                break;
+            case NEED_UNWRAP:
+                unwrap(engine, in);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Unwraps the records in {@code in}, which is left ready for more records to be written to it.
+     */
+    private void unwrap(SSLEngine engine, ByteBuffer in) throws SSLException
+    {
+        in.flip();
+        try
+        {
+            while (in.hasRemaining())
+            {
+                applicationData.clear();
+                SSLEngineResult result = engine.unwrap(in, applicationData);
+                if (result.getStatus() != SSLEngineResult.Status.OK
+                    || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK
+                    || result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP)
+                {
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            in.compact();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.pingidentity.guides.spa.Controller.Todo;
+import com.pingidentity.guides.spa.Controller.Todos;
+import com.pingidentity.guides.spa.Controller.User;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the Jackson serialization of the response bodies, with an {@link ObjectMapper} configured the way Spring
+ * Boot configures it, including the {@link TodoJsonSerializer}. {@link Todos} wraps a {@link TodoStore.Snapshot}, as
+ * it does in the controller, while {@code writeTodoObjects} writes the same todos from a list of {@link Todo}s and
+ * {@code writeCachedTodos} serves them from the {@link TodoResponseCache}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonBenchmark
+{
+    private static final DataBufferFactory BUFFER_FACTORY = new DefaultDataBufferFactory();
+
+    private ObjectWriter todosWriter;
+    private ObjectWriter userWriter;
+    private ObjectReader todoReader;
+    private User user;
+    private byte[] todoJson;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+        ObjectMapper objectMapper = newObjectMapper();
+        todosWriter = objectMapper.writerFor(Todos.class);
+        userWriter = objectMapper.writerFor(User.class);
+        todoReader = objectMapper.readerFor(Todo.class);
+
+        user = new User();
+        user.setUsername("alice");
+        user.setGroups(Arrays.asList("staff", "sales"));
+
+        todoJson = objectMapper.writeValueAsBytes(TodoFixtures.newTodo("Benchmark todo"));
+    }
+
+    private static ObjectMapper newObjectMapper()
+    {
+        return Jackson2ObjectMapperBuilder.json()
+                                         .serializerByType(TodoStore.Snapshot.class, new TodoJsonSerializer())
+                                         .build();
+    }
+
+    @State(Scope.Benchmark)
+    public static class TodoList
+    {
+        @Param({"1", "100", "10000"})
+        int todoCount;
+
+        private TodoJournal journal;
+        private Todos todos;
+        private Todos todoObjects;
+        private TodoStore.Snapshot snapshot;
+        private TodoResponseCache responseCache;
+
+        @Setup
+        public void setUp()
+        {
+            journal = TodoFixtures.newJournal();
+            TodoStore store = TodoFixtures.newStore(journal);
+            for (int i = 0; i < todoCount; i++)
+            {
+                store.add("alice", TodoFixtures.newTodo("Todo number " + i + " for the JSON benchmark"));
+            }
+            todos = new Todos(store.read("alice"));
+            todoObjects = new Todos(new ArrayList<>(store.read("alice")));
+            snapshot = store.read("alice");
+            responseCache = new TodoResponseCache(newObjectMapper(), DataSize.ofMegabytes(64));
+            responseCache.encode("alice", snapshot, BUFFER_FACTORY);
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException
+        {
+            journal.close();
+        }
+    }
+
+    @Benchmark
+    public byte[] writeTodos(TodoList todoList) throws IOException
+    {
+        return todosWriter.writeValueAsBytes(todoList.todos);
+    }
+
+    @Benchmark
+    public byte[] writeTodoObjects(TodoList todoList) throws IOException
+    {
+        return todosWriter.writeValueAsBytes(todoList.todoObjects);
+    }
+
+    /**
+     * Reads a list from the {@link TodoResponseCache} after it has been encoded once, as {@code GET /todos} does.
+     */
+    @Benchmark
+    public DataBuffer writeCachedTodos(TodoList todoList)
+    {
+        return todoList.responseCache.encode("alice", todoList.snapshot, BUFFER_FACTORY);
+    }
+
+    @Benchmark
+    public byte[] writeUser() throws IOException
+    {
+        return userWriter.writeValueAsBytes(user);
+    }
+
+    @Benchmark
+    public Todo readTodo() throws IOException
+    {
+        return todoReader.readValue(todoJson);
+    }
+}
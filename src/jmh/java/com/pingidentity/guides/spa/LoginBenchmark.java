@@ -0,0 +1,113 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authentication.UserDetailsRepositoryReactiveAuthenticationManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.MapReactiveUserDetailsService;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.crypto.password.PasswordEncoder;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures login throughput with the authentication manager Spring Security creates by default, which checks the
+ * bcrypt hash of the password on every login, and with {@link CachingAuthenticationManager}, which checks it on a
+ * dedicated scheduler and remembers successful checks. Every login is for the same user, so after the first login the
+ * caching manager measures cache hits. Set {@code cacheSize} to 0 to measure it without its cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class LoginBenchmark
+{
+    @Param({"repository", "caching"})
+    String manager;
+
+    @Param({"10000"})
+    int cacheSize;
+
+    private ReactiveAuthenticationManager authenticationManager;
+    private Authentication credentials;
+
+    @Setup
+    public void setUp()
+    {
+        @SuppressWarnings("deprecation")
+        UserDetails alice = User.withDefaultPasswordEncoder()
+                                .username("alice")
+                                .password("alice")
+                                .roles("staff")
+                                .build();
+        MapReactiveUserDetailsService userDetailsService = new MapReactiveUserDetailsService(alice);
+
+        if ("caching".equals(manager))
+        {
+            authenticationManager =
+                    new CachingAuthenticationManager(userDetailsService,
+                                                     new StaticListableBeanFactory().getBeanProvider(PasswordEncoder.class),
+                                                     0,
+                                                     256,
+                                                     cacheSize,
+                                                     Duration.ofMinutes(2));
+        }
+        else
+        {
+            authenticationManager = new UserDetailsRepositoryReactiveAuthenticationManager(userDetailsService);
+        }
+        credentials = new UsernamePasswordAuthenticationToken("alice", "alice");
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        if (authenticationManager instanceof CachingAuthenticationManager)
+        {
+            ((CachingAuthenticationManager) authenticationManager).close();
+        }
+    }
+
+    @Benchmark
+    public Authentication login()
+    {
+        return authenticationManager.authenticate(credentials).block();
+    }
+}
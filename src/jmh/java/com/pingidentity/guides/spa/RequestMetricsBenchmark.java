@@ -0,0 +1,91 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.WebFilterChain;
+import org.springframework.web.util.pattern.PathPatternParser;
+import reactor.core.publisher.Mono;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead that {@link RequestMetricsFilter} adds to each request, which should stay well under a
+ * microsecond. {@link #filtered} minus {@link #unfiltered} is the cost of the filter. Running with {@code -prof gc}
+ * shows that {@link #record} doesn't allocate; the filter itself only allocates its operator.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestMetricsBenchmark
+{
+    private static final WebFilterChain HANDLER = exchange -> {
+        exchange.getResponse().setStatusCode(HttpStatus.OK);
+        return Mono.empty();
+    };
+
+    private final RequestMetricsFilter filter = new RequestMetricsFilter();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private MockServerWebExchange exchange;
+    private long latency;
+
+    @Setup
+    public void setUp()
+    {
+        exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/todos/alice"));
+        exchange.getAttributes().put(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE,
+                                     PathPatternParser.defaultInstance.parse("/todos/{userName}"));
+    }
+
+    @Benchmark
+    public Object unfiltered()
+    {
+        return HANDLER.filter(exchange).block();
+    }
+
+    @Benchmark
+    public Object filtered()
+    {
+        return filter.filter(exchange, HANDLER).block();
+    }
+
+    @Benchmark
+    public void record()
+    {
+        // Varies the value, so the counts aren't all in one bucket
+        latency = (latency + 7919) & 0xFFFFFF;
+        histogram.record(latency);
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a page of search results from the {@link TodoSearchIndex} against a scan of the whole list, for a user
+ * with {@code todoCount} todos of eight words each. Words are drawn from a vocabulary of {@code vocabularySize}
+ * words, so {@code query} is either a rare word, which matches about {@code 8 / vocabularySize} of the todos, or two
+ * common words, which most todos contain one of but only some contain both.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TodoSearchBenchmark
+{
+    private static final int PAGE_SIZE = 100;
+    private static final int WORDS_PER_TODO = 8;
+
+    @Param({"1000", "10000", "100000"})
+    int todoCount;
+
+    @Param({"1000"})
+    int vocabularySize;
+
+    @Param({"rare", "common"})
+    String query;
+
+    private TodoJournal journal;
+    private TodoSearchIndex index;
+    private TodoStore store;
+    private String[] words;
+
+    @Setup
+    public void setUp()
+    {
+        journal = TodoFixtures.newJournal();
+        index = new TodoSearchIndex();
+        store = TodoFixtures.newStore(journal, index);
+
+        // Lower word numbers are drawn more often
+        Random random = new Random(42);
+        for (int i = 0; i < todoCount; i++)
+        {
+            StringBuilder content = new StringBuilder();
+            for (int j = 0; j < WORDS_PER_TODO; j++)
+            {
+                double skew = random.nextDouble();
+                content.append(j == 0 ? "" : " ").append("word").append((int) (skew * skew * vocabularySize));
+            }
+            store.add("alice", TodoFixtures.newTodo(content.toString()));
+        }
+
+        words = TodoSearchIndex.queryWords("rare".equals(query) ? "word" + (vocabularySize - 1) : "word1 word2");
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException
+    {
+        journal.close();
+    }
+
+    @Benchmark
+    public List<Todo> search()
+    {
+        List<Todo> page = new ArrayList<>(PAGE_SIZE);
+        index.search("alice", words, 0, (userName, position, todo) -> page.add(todo) && page.size() < PAGE_SIZE);
+        return page;
+    }
+
+    /**
+     * What a client does without the index, once it has downloaded the whole list.
+     */
+    @Benchmark
+    public List<Todo> scan()
+    {
+        List<Todo> page = new ArrayList<>(PAGE_SIZE);
+        for (Todo todo : store.read("alice"))
+        {
+            String content = todo.getContent().toLowerCase(Locale.ROOT);
+            boolean matches = true;
+            for (String word : words)
+            {
+                matches &= content.contains(word);
+            }
+            if (matches && page.size() < PAGE_SIZE)
+            {
+                page.add(todo);
+            }
+        }
+        return page;
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures concurrent writes and reads against the {@link TodoStore}, without a journal.
+ * <p>
+ * Each thread writes to its own user unless {@code sharedUser} is set, so running with an increasing number of
+ * threads ({@code -t}) shows how writes to different users scale across cores, and how much writes to a single user
+ * contend. The group benchmark mixes readers of a user with a writer to the same user. Replacing and removing a todo
+ * look it up by id in the user's index, so their cost doesn't depend on the size of the list. The store only grows, so
+ * iterations are short and each one starts with a new store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Measurement(iterations = 10, time = 200, timeUnit = TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class TodoStoreBenchmark
+{
+    private static final String CONTENT = "Benchmark todo";
+    private static final String OTHER_CONTENT = "Replaced benchmark todo";
+
+    @Param({"false", "true"})
+    boolean sharedUser;
+
+    @Param({"10", "100"})
+    int batchSize;
+
+    TodoStore store;
+    TodoJournal journal;
+
+    private final AtomicInteger nextUser = new AtomicInteger();
+
+    @Setup(Level.Iteration)
+    public void createStore()
+    {
+        journal = TodoFixtures.newJournal();
+        store = TodoFixtures.newStore(journal);
+        store.add("reader", TodoFixtures.newTodo(CONTENT));
+    }
+
+    @TearDown(Level.Iteration)
+    public void closeStore() throws InterruptedException
+    {
+        journal.close();
+    }
+
+    @State(Scope.Thread)
+    public static class Writer
+    {
+        String userName;
+        Todo todo;
+        List<Todo> batch;
+        Todo replaced;
+        private long writerId;
+        private long sequence;
+
+        @Setup
+        public void setUp(TodoStoreBenchmark benchmark)
+        {
+            writerId = benchmark.nextUser.incrementAndGet();
+            userName = benchmark.sharedUser ? "shared" : "user-" + writerId;
+            // The same todos are written over and over with new ids, since the store ignores ids it already has, so
+            // mostly the store's own allocations are measured
+            todo = TodoFixtures.newTodo(CONTENT);
+            batch = new ArrayList<>(benchmark.batchSize);
+            for (int i = 0; i < benchmark.batchSize; i++)
+            {
+                batch.add(TodoFixtures.newTodo(CONTENT));
+            }
+            replaced = TodoFixtures.newTodo(CONTENT);
+        }
+
+        Todo next(Todo todo)
+        {
+            todo.setId(new UUID(writerId, ++sequence));
+            return todo;
+        }
+    }
+
+    @Benchmark
+    public Object add(Writer writer)
+    {
+        return store.add(writer.userName, writer.next(writer.todo));
+    }
+
+    /**
+     * Compare with {@link #add} times {@code batchSize} for the cost of creating the same todos one at a time.
+     */
+    @Benchmark
+    public Object addAll(Writer writer)
+    {
+        for (Todo todo : writer.batch)
+        {
+            writer.next(todo);
+        }
+        return store.addAll(writer.userName, writer.batch);
+    }
+
+    /**
+     * Replaces the same todo with alternating content, so every call is a write.
+     */
+    @Benchmark
+    public Object put(Writer writer)
+    {
+        writer.replaced.setContent(writer.replaced.getContent().equals(CONTENT) ? OTHER_CONTENT : CONTENT);
+        return store.put(writer.userName, writer.replaced);
+    }
+
+    @Benchmark
+    public Object removeAndAdd(Writer writer)
+    {
+        store.remove(writer.userName, writer.replaced.getId());
+        return store.add(writer.userName, writer.replaced);
+    }
+
+    @Benchmark
+    public Object read(Writer writer)
+    {
+        return store.read(writer.userName);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(3)
+    public Object readShared()
+    {
+        TodoStore.Snapshot snapshot = store.read("reader");
+        return snapshot.getTodo(snapshot.getEndSlot() - 1);
+    }
+
+    @Benchmark
+    @Group("readWhileWriting")
+    @GroupThreads(1)
+    public Object writeShared(Writer writer)
+    {
+        return store.add("reader", writer.next(writer.todo));
+    }
+}
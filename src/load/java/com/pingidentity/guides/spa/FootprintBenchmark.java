@@ -0,0 +1,234 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import com.pingidentity.guides.spa.Controller.Todos;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Measures how much memory the todos of many users take, in the layout the todos were kept in before the
+ * {@link TodoStore} and in the store's own layout.
+ * <p>
+ * Each layout is filled with the same {@code todos} todos, spread evenly over {@code users} users, with
+ * {@code content-length} ASCII characters of content each. The heap is measured after a full garbage collection
+ * before and after filling it, and direct memory from its buffer pool, and the difference is reported per todo, as
+ * the median of {@code runs} runs:
+ * <ul>
+ * <li>{@code objects}: a {@link HashMap} from user names to {@link Todos}, each with an {@link java.util.ArrayList} of
+ * {@link Todo}s that each hold a {@link UUID} and a {@link String}</li>
+ * <li>{@code store}: the {@link TodoStore} with its content arenas on the heap</li>
+ * <li>{@code store-off-heap}: the {@link TodoStore} with its content arenas in direct buffers</li>
+ * </ul>
+ * Options are given as {@code --name=value}. Run it with the serial collector, which leaves no floating garbage after
+ * {@link System#gc()}, and a heap large enough for the largest layout.
+ */
+final class FootprintBenchmark
+{
+    private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyz ".toCharArray();
+
+    private final Options options;
+    private Object retained;
+
+    private FootprintBenchmark(Options options)
+    {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        FootprintBenchmark benchmark = new FootprintBenchmark(Options.parse(args));
+
+        System.out.printf("%d todos of %d users, %d bytes of content each%n",
+                          benchmark.options.todos,
+                          benchmark.options.users,
+                          benchmark.options.contentLength);
+        System.out.printf("%-16s %12s %12s %16s %20s%n",
+                          "layout",
+                          "heap (MB)",
+                          "direct (MB)",
+                          "bytes per todo",
+                          "overhead per todo");
+        benchmark.run("objects", benchmark::fillObjects);
+        benchmark.run("store", () -> benchmark.fillStore(false));
+        benchmark.run("store-off-heap", () -> benchmark.fillStore(true));
+    }
+
+    private void run(String name, Layout layout) throws Exception
+    {
+        long[] heapBytes = new long[options.runs];
+        long[] directBytes = new long[options.runs];
+        long[] totalBytes = new long[options.runs];
+        for (int run = 0; run < options.runs; run++)
+        {
+            long heapBefore = usedHeap();
+            long directBefore = usedDirect();
+            retained = layout.fill();
+            heapBytes[run] = usedHeap() - heapBefore;
+            directBytes[run] = usedDirect() - directBefore;
+            totalBytes[run] = heapBytes[run] + directBytes[run];
+            retained = null;
+        }
+
+        Arrays.sort(heapBytes);
+        Arrays.sort(directBytes);
+        Arrays.sort(totalBytes);
+        double bytesPerTodo = (double) totalBytes[options.runs / 2] / options.todos;
+        System.out.printf("%-16s %12d %12d %16.1f %20.1f%n",
+                          name,
+                          heapBytes[options.runs / 2] >> 20,
+                          directBytes[options.runs / 2] >> 20,
+                          bytesPerTodo,
+                          bytesPerTodo - options.contentLength);
+    }
+
+    /**
+     * The layout before the {@link TodoStore}.
+     */
+    private Object fillObjects()
+    {
+        Map<String, Todos> users = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < options.todos; i++)
+        {
+            users.computeIfAbsent(userName(i), userName -> new Todos()).getTodos().add(newTodo(random));
+        }
+        return users;
+    }
+
+    private Object fillStore(boolean offHeap) throws InterruptedException
+    {
+        TodoJournal journal = TodoFixtures.newJournal();
+        TodoStore store = TodoFixtures.newStore(journal, offHeap, Integer.MAX_VALUE);
+        Random random = new Random(42);
+        for (int i = 0; i < options.todos; i++)
+        {
+            store.add(userName(i), newTodo(random));
+        }
+        journal.close();
+        return store;
+    }
+
+    private String userName(int todo)
+    {
+        return "user-" + todo % options.users;
+    }
+
+    private Todo newTodo(Random random)
+    {
+        char[] content = new char[options.contentLength];
+        for (int i = 0; i < content.length; i++)
+        {
+            content[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+
+        Todo todo = new Todo();
+        todo.setId(new UUID(random.nextLong(), random.nextLong()));
+        todo.setContent(new String(content));
+        return todo;
+    }
+
+    private static long usedHeap() throws InterruptedException
+    {
+        collectGarbage();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long usedDirect() throws InterruptedException
+    {
+        collectGarbage();
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+        {
+            if ("direct".equals(pool.getName()))
+            {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Direct buffers are freed by a cleaner after they have been collected, so a short pause lets it catch up.
+     */
+    private static void collectGarbage() throws InterruptedException
+    {
+        for (int i = 0; i < 3; i++)
+        {
+            System.gc();
+            Thread.sleep(100);
+        }
+    }
+
+    private interface Layout
+    {
+        Object fill() throws Exception;
+    }
+
+    private static final class Options
+    {
+        private int todos = 1_000_000;
+        private int users = 1000;
+        private int contentLength = 40;
+        private int runs = 3;
+
+        static Options parse(String[] args)
+        {
+            Options options = new Options();
+            for (String arg : args)
+            {
+                int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0)
+                {
+                    throw new IllegalArgumentException("Expected --name=value but got " + arg);
+                }
+
+                int value = Integer.parseInt(arg.substring(separator + 1));
+                switch (arg.substring(2, separator))
+                {
+                    case "todos":
+                        options.todos = value;
+                        break;
+                    case "users":
+                        options.users = value;
+                        break;
+                    case "content-length":
+                        options.contentLength = value;
+                        break;
+                    case "runs":
+                        options.runs = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (options.todos < 1 || options.users < 1 || options.contentLength < 0 || options.runs < 1)
+            {
+                throw new IllegalArgumentException("todos, users and runs must be positive");
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,657 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.sun.management.ThreadMXBean;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.cookie.ClientCookieEncoder;
+import io.netty.handler.codec.http.cookie.Cookie;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.security.core.userdetails.MapReactiveUserDetailsService;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.netty.ByteBufFlux;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.http.client.HttpClientResponse;
+import reactor.netty.resources.ConnectionProvider;
+import reactor.netty.resources.LoopResources;
+
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives the {@link ServerApplication} through its real TLS endpoint with a mix of authenticated requests, and reports
+ * throughput, latency percentiles and the server's allocation rate.
+ * <p>
+ * The application is started in-process on a random port, with synthetic users in place of the sample users. Every
+ * user logs in through the login form, so requests carry a real session cookie and CSRF token, and then a fixed number
+ * of concurrent requests is kept in flight for the duration of the run. Everything runs on the local host, so no
+ * network access is needed. Options are given as {@code --name=value}:
+ * <ul>
+ * <li>{@code users} and {@code sre-users}: the number of synthetic users of each kind</li>
+ * <li>{@code todos}: the number of todos each user has before the run</li>
+ * <li>{@code concurrency}: the number of requests in flight</li>
+ * <li>{@code connections}: the size of the client's connection pool, or 0 to open a new connection, with a new TLS
+ * handshake, for every request</li>
+ * <li>{@code warmup} and {@code duration}: how long to run before and while measuring, e.g. {@code 30s}</li>
+ * <li>{@code mix}: the relative weight of each operation, e.g. {@code read:60,create:20,user:15,sre:5}</li>
+ * <li>{@code session-mode}: {@code memory} to keep sessions in the server's session store, or {@code cookie} to keep
+ * the security context in an encrypted cookie, which the client replaces whenever the server reissues it</li>
+ * </ul>
+ * The client runs on its own event loop threads, which are left out of the allocation rate. Since the client shares
+ * the machine with the server, throughput is a lower bound of what the server can handle on its own.
+ */
+final class LoadGenerator
+{
+    private static final String CLIENT_THREAD_PREFIX = "load-client";
+    private static final String SESSION_COOKIE = "SESSION";
+    private static final String SECURITY_CONTEXT_COOKIE = "AUTH";
+    private static final String CSRF_COOKIE = "XSRF-TOKEN";
+    private static final String CSRF_HEADER = "X-XSRF-TOKEN";
+    private static final Pattern CSRF_FIELD = Pattern.compile("name=\"_csrf\" value=\"([^\"]+)\"");
+
+    private final Options options;
+    private final HttpClient client;
+    private final String sessionCookie;
+    private final List<Session> users = new ArrayList<>();
+    private final List<Session> sreUsers = new ArrayList<>();
+
+    private LoadGenerator(Options options, int port)
+    {
+        this.options = options;
+        this.sessionCookie = "cookie".equals(options.sessionMode) ? SECURITY_CONTEXT_COOKIE : SESSION_COOKIE;
+
+        ConnectionProvider connections = options.connections > 0
+                                         ? ConnectionProvider.builder(CLIENT_THREAD_PREFIX)
+                                                             .maxConnections(options.connections)
+                                                             .pendingAcquireMaxCount(-1)
+                                                             .build()
+                                         : ConnectionProvider.newConnection();
+        SslContextBuilder sslContext = SslContextBuilder.forClient()
+                                                        .trustManager(InsecureTrustManagerFactory.INSTANCE);
+        LoopResources loops = LoopResources.create(CLIENT_THREAD_PREFIX);
+        this.client = HttpClient.create(connections)
+                                .tcpConfiguration(tcp -> tcp.runOn(loops))
+                                .baseUrl("https://localhost:" + port)
+                                .secure(ssl -> ssl.sslContext(sslContext));
+    }
+
+    public static void main(String[] args)
+    {
+        Options options = Options.parse(args);
+        ConfigurableApplicationContext context =
+                new SpringApplicationBuilder(ServerApplication.class, SyntheticUsers.class)
+                        .run("--server.port=0",
+                             "--spring.main.allow-bean-definition-overriding=true",
+                             "--spring.main.banner-mode=off",
+                             "--logging.level.root=WARN",
+                             "--sessions.mode=" + options.sessionMode,
+                             // The load is meant to reach the server's own limits, not those of each user
+                             "--todos.write-limit.enabled=false",
+                             "--todos.max-per-user=" + Integer.MAX_VALUE,
+                             "--load.users=" + options.users,
+                             "--load.sre-users=" + options.sreUsers);
+        try
+        {
+            int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+            LoadGenerator generator = new LoadGenerator(options, port);
+            generator.logIn();
+            generator.createTodos();
+
+            System.out.println("Warming up for " + options.warmup);
+            generator.run(options.warmup);
+            System.out.println("Measuring for " + options.duration);
+            generator.run(options.duration).print(System.out);
+        }
+        finally
+        {
+            context.close();
+        }
+    }
+
+    private void logIn()
+    {
+        users.addAll(Flux.range(0, options.users)
+                         .flatMap(i -> logIn(SyntheticUsers.userName(i)), 16)
+                         .collectList()
+                         .block());
+        sreUsers.addAll(Flux.range(0, options.sreUsers)
+                            .flatMap(i -> logIn(SyntheticUsers.sreUserName(i)), 16)
+                            .collectList()
+                            .block());
+    }
+
+    /**
+     * Logs in the way a browser does: fetches the login form for its CSRF token and posts the credentials with it.
+     */
+    private Mono<Session> logIn(String userName)
+    {
+        return client.get()
+                     .uri("/login")
+                     .responseSingle((response, body) -> body.asString().map(page -> {
+                         Matcher csrfField = CSRF_FIELD.matcher(page);
+                         if (!csrfField.find())
+                         {
+                             throw new IllegalStateException("The login page has no CSRF token");
+                         }
+                         return new Session(userName, cookie(response, CSRF_COOKIE), csrfField.group(1));
+                     }))
+                     .flatMap(session -> client.headers(headers -> headers.set(HttpHeaderNames.COOKIE,
+                                                                                session.cookieHeader)
+                                                                           .set(HttpHeaderNames.CONTENT_TYPE,
+                                                                                HttpHeaderValues.APPLICATION_X_WWW_FORM_URLENCODED))
+                                               .post()
+                                               .uri("/login")
+                                               .send(ByteBufFlux.fromString(Mono.just(
+                                                       "username=" + encode(userName) + "&password=" +
+                                                       encode(userName) + "&_csrf=" + encode(session.csrfToken))))
+                                               .responseSingle((response, body) -> body.then(Mono.fromCallable(() -> {
+                                                   if (response.status().code() != 302)
+                                                   {
+                                                       throw new IllegalStateException(
+                                                               "Login failed for " + userName + ": " + response.status());
+                                                   }
+                                                   session.setSessionCookie(cookie(response, sessionCookie));
+                                                   return session;
+                                               }))));
+    }
+
+    private void createTodos()
+    {
+        if (options.todos == 0)
+        {
+            return;
+        }
+
+        Flux.fromIterable(users)
+            .flatMap(user -> {
+                StringBuilder body = new StringBuilder("[");
+                for (int i = 0; i < options.todos; i++)
+                {
+                    body.append(i == 0 ? "" : ",").append(todoJson());
+                }
+                return send(user, "/todos/batch", body.append(']').toString());
+            }, 16)
+            .blockLast();
+    }
+
+    private Result run(Duration duration)
+    {
+        Result result = new Result(duration);
+        long deadline = System.nanoTime() + duration.toNanos();
+        Flux.range(0, options.concurrency)
+            .flatMap(worker -> Mono.defer(() -> request(result)).repeat(() -> System.nanoTime() < deadline),
+                     options.concurrency)
+            .blockLast();
+        return result.finish();
+    }
+
+    private Mono<Integer> request(Result result)
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Operation operation = options.nextOperation(random);
+        Session user = users.get(random.nextInt(users.size()));
+
+        Mono<Integer> request;
+        switch (operation)
+        {
+            case READ:
+                request = get(user, "/todos");
+                break;
+            case CREATE:
+                request = send(user, "/todos", todoJson());
+                break;
+            case USER:
+                request = get(user, "/user");
+                break;
+            case SRE_READ:
+                request = get(sreUsers.get(random.nextInt(sreUsers.size())), "/todos/" + user.userName);
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation " + operation);
+        }
+
+        long start = System.nanoTime();
+        return request.doOnNext(status -> result.record(operation, status, System.nanoTime() - start))
+                      .onErrorResume(e -> {
+                          result.record(operation, 0, System.nanoTime() - start);
+                          return Mono.empty();
+                      });
+    }
+
+    private Mono<Integer> get(Session session, String path)
+    {
+        return client.headers(headers -> headers.set(HttpHeaderNames.COOKIE, session.cookieHeader))
+                     .get()
+                     .uri(path)
+                     .responseSingle((response, body) -> status(session, response, body));
+    }
+
+    private Mono<Integer> send(Session session, String path, String json)
+    {
+        return client.headers(headers -> headers.set(HttpHeaderNames.COOKIE, session.cookieHeader)
+                                                .set(CSRF_HEADER, session.csrfToken)
+                                                .set(HttpHeaderNames.CONTENT_TYPE, HttpHeaderValues.APPLICATION_JSON))
+                     .post()
+                     .uri(path)
+                     .send(ByteBufFlux.fromString(Mono.just(json)))
+                     .responseSingle((response, body) -> status(session, response, body));
+    }
+
+    /**
+     * Reads the whole body, so the response is timed until its last byte, and keeps the session cookie if the server
+     * reissued it.
+     */
+    private Mono<Integer> status(Session session, HttpClientResponse response, Mono<?> body)
+    {
+        Set<Cookie> cookies = response.cookies().get(sessionCookie);
+        if (cookies != null && !cookies.isEmpty())
+        {
+            session.setSessionCookie(cookies.iterator().next());
+        }
+        return body.then(Mono.just(response.status().code()));
+    }
+
+    private static Cookie cookie(HttpClientResponse response, String name)
+    {
+        Set<Cookie> cookies = response.cookies().get(name);
+        if (cookies == null || cookies.isEmpty())
+        {
+            throw new IllegalStateException("The response to " + response.uri() + " didn't set " + name);
+        }
+        return cookies.iterator().next();
+    }
+
+    private static String todoJson()
+    {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return "{\"id\":\"" + new UUID(random.nextLong(), random.nextLong()) + "\",\"content\":\"Load test todo\"}";
+    }
+
+    private static String encode(String value)
+    {
+        try
+        {
+            return URLEncoder.encode(value, StandardCharsets.UTF_8.name());
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    enum Operation
+    {
+        READ("read", "GET /todos"),
+        CREATE("create", "POST /todos"),
+        USER("user", "GET /user"),
+        SRE_READ("sre", "GET /todos/{userName}");
+
+        private final String option;
+        private final String description;
+
+        Operation(String option, String description)
+        {
+            this.option = option;
+            this.description = description;
+        }
+    }
+
+    /**
+     * Replaces the sample users with {@code load.users} users and {@code load.sre-users} SRE users. Their passwords
+     * are their names, stored without hashing so starting the server stays fast.
+     */
+    static class SyntheticUsers
+    {
+        static String userName(int index)
+        {
+            return "user-" + index;
+        }
+
+        static String sreUserName(int index)
+        {
+            return "sre-" + index;
+        }
+
+        @Bean
+        public MapReactiveUserDetailsService userDetailsService(@Value("${load.users}") int users,
+                                                                @Value("${load.sre-users}") int sreUsers)
+        {
+            List<UserDetails> userDetails = new ArrayList<>(users + sreUsers);
+            for (int i = 0; i < users; i++)
+            {
+                userDetails.add(user(userName(i), "staff"));
+            }
+            for (int i = 0; i < sreUsers; i++)
+            {
+                userDetails.add(user(sreUserName(i), "staff", "sre"));
+            }
+            return new MapReactiveUserDetailsService(userDetails);
+        }
+
+        private static UserDetails user(String userName, String... roles)
+        {
+            return User.withUsername(userName)
+                       .password("{noop}" + userName)
+                       .roles(roles)
+                       .build();
+        }
+    }
+
+    private static final class Session
+    {
+        private final String userName;
+        private final String csrfCookie;
+        private final String csrfToken;
+        private volatile String cookieHeader;
+
+        private Session(String userName, Cookie csrfCookie, String csrfToken)
+        {
+            this.userName = userName;
+            this.csrfCookie = ClientCookieEncoder.STRICT.encode(csrfCookie);
+            this.csrfToken = csrfToken;
+            this.cookieHeader = this.csrfCookie;
+        }
+
+        void setSessionCookie(Cookie sessionCookie)
+        {
+            cookieHeader = csrfCookie + "; " + ClientCookieEncoder.STRICT.encode(sessionCookie);
+        }
+    }
+
+    private static final class Options
+    {
+        private int users = 100;
+        private int sreUsers = 2;
+        private int todos = 20;
+        private int concurrency = 64;
+        private int connections = 64;
+        private Duration warmup = Duration.ofSeconds(10);
+        private Duration duration = Duration.ofSeconds(30);
+        private String sessionMode = "memory";
+        private final int[] weights = {60, 20, 15, 5};
+        private int totalWeight = 100;
+
+        static Options parse(String[] args)
+        {
+            Options options = new Options();
+            for (String arg : args)
+            {
+                int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0)
+                {
+                    throw new IllegalArgumentException("Expected --name=value but got " + arg);
+                }
+
+                String value = arg.substring(separator + 1);
+                switch (arg.substring(2, separator))
+                {
+                    case "users":
+                        options.users = Integer.parseInt(value);
+                        break;
+                    case "sre-users":
+                        options.sreUsers = Integer.parseInt(value);
+                        break;
+                    case "todos":
+                        options.todos = Integer.parseInt(value);
+                        break;
+                    case "concurrency":
+                        options.concurrency = Integer.parseInt(value);
+                        break;
+                    case "connections":
+                        options.connections = Integer.parseInt(value);
+                        break;
+                    case "warmup":
+                        options.warmup = DurationStyle.detectAndParse(value);
+                        break;
+                    case "duration":
+                        options.duration = DurationStyle.detectAndParse(value);
+                        break;
+                    case "mix":
+                        options.parseMix(value);
+                        break;
+                    case "session-mode":
+                        if (!"memory".equals(value) && !"cookie".equals(value))
+                        {
+                            throw new IllegalArgumentException("The session mode must be memory or cookie");
+                        }
+                        options.sessionMode = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+
+            if (options.users < 1 || options.concurrency < 1)
+            {
+                throw new IllegalArgumentException("At least one user and one concurrent request are needed");
+            }
+            if (options.sreUsers < 1)
+            {
+                options.weights[Operation.SRE_READ.ordinal()] = 0;
+            }
+            options.totalWeight = 0;
+            for (int weight : options.weights)
+            {
+                options.totalWeight += weight;
+            }
+            if (options.totalWeight == 0)
+            {
+                throw new IllegalArgumentException("The mix has no operations");
+            }
+            return options;
+        }
+
+        private void parseMix(String mix)
+        {
+            Arrays.fill(weights, 0);
+            for (String entry : mix.split(","))
+            {
+                String[] parts = entry.split(":");
+                Operation operation = null;
+                for (Operation candidate : Operation.values())
+                {
+                    if (candidate.option.equals(parts[0].trim()))
+                    {
+                        operation = candidate;
+                    }
+                }
+                if (operation == null || parts.length != 2)
+                {
+                    throw new IllegalArgumentException("Unknown operation in mix: " + entry);
+                }
+                weights[operation.ordinal()] = Integer.parseInt(parts[1].trim());
+            }
+        }
+
+        Operation nextOperation(ThreadLocalRandom random)
+        {
+            int pick = random.nextInt(totalWeight);
+            for (Operation operation : Operation.values())
+            {
+                pick -= weights[operation.ordinal()];
+                if (pick < 0)
+                {
+                    return operation;
+                }
+            }
+            throw new IllegalStateException("The weights don't add up to " + totalWeight);
+        }
+    }
+
+    /**
+     * The latencies and status codes of a run, and the allocations and garbage collections of the server during it.
+     */
+    private static final class Result
+    {
+        private final Duration duration;
+        private final LatencyHistogram[] latencies = new LatencyHistogram[Operation.values().length];
+        private final LongAdder[] errors = new LongAdder[Operation.values().length];
+        private final Map<Long, Long> startAllocations;
+        private final long startGcCount;
+        private final long startGcMillis;
+        private final long startNanos;
+        private long elapsedNanos;
+        private long allocatedBytes;
+        private long gcCount;
+        private long gcMillis;
+
+        private Result(Duration duration)
+        {
+            this.duration = duration;
+            for (int i = 0; i < latencies.length; i++)
+            {
+                latencies[i] = new LatencyHistogram();
+                errors[i] = new LongAdder();
+            }
+            startAllocations = serverAllocations();
+            startGcCount = gcCount();
+            startGcMillis = gcMillis();
+            startNanos = System.nanoTime();
+        }
+
+        void record(Operation operation, int status, long latencyNanos)
+        {
+            latencies[operation.ordinal()].record(latencyNanos);
+            if (status < 200 || status >= 400)
+            {
+                errors[operation.ordinal()].increment();
+            }
+        }
+
+        Result finish()
+        {
+            elapsedNanos = System.nanoTime() - startNanos;
+            for (Map.Entry<Long, Long> allocation : serverAllocations().entrySet())
+            {
+                allocatedBytes += allocation.getValue() - startAllocations.getOrDefault(allocation.getKey(), 0L);
+            }
+            gcCount = gcCount() - startGcCount;
+            gcMillis = gcMillis() - startGcMillis;
+            return this;
+        }
+
+        void print(PrintStream out)
+        {
+            double seconds = elapsedNanos / 1e9;
+            String format = "%-22s %10s %10s %9s %9s %9s %9s %8s";
+            out.println(String.format(format, "Operation", "Requests", "Req/s", "p50 ms", "p99 ms", "p999 ms",
+                                     "Max ms", "Errors"));
+
+            long totalRequests = 0;
+            for (Operation operation : Operation.values())
+            {
+                LatencyHistogram.Snapshot snapshot = latencies[operation.ordinal()].snapshot();
+                if (snapshot.getCount() == 0)
+                {
+                    continue;
+                }
+                totalRequests += snapshot.getCount();
+                out.println(String.format(format,
+                                         operation.description,
+                                         snapshot.getCount(),
+                                         String.format("%.0f", snapshot.getCount() / seconds),
+                                         millis(snapshot.getValueAtPercentile(50)),
+                                         millis(snapshot.getValueAtPercentile(99)),
+                                         millis(snapshot.getValueAtPercentile(99.9)),
+                                         millis(snapshot.getMaxNanos()),
+                                         errors[operation.ordinal()].sum()));
+            }
+
+            out.println(String.format("Throughput: %.0f requests/s over %s", totalRequests / seconds, duration));
+            out.println(String.format("Server allocation rate: %.1f MB/s, %d bytes/request",
+                                     allocatedBytes / seconds / (1024 * 1024),
+                                     totalRequests == 0 ? 0 : allocatedBytes / totalRequests));
+            out.println(String.format("Garbage collections: %d, %d ms in total", gcCount, gcMillis));
+        }
+
+        private static String millis(long nanos)
+        {
+            return String.format("%.3f", nanos / 1e6);
+        }
+
+        /**
+         * @return the bytes allocated so far by each live thread, other than the load generator's own threads
+         */
+        private static Map<Long, Long> serverAllocations()
+        {
+            ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+            Map<Long, Long> allocations = new HashMap<>();
+            for (ThreadInfo thread : threads.getThreadInfo(threads.getAllThreadIds()))
+            {
+                if (thread != null && !thread.getThreadName().startsWith(CLIENT_THREAD_PREFIX))
+                {
+                    long allocated = threads.getThreadAllocatedBytes(thread.getThreadId());
+                    if (allocated >= 0)
+                    {
+                        allocations.put(thread.getThreadId(), allocated);
+                    }
+                }
+            }
+            return allocations;
+        }
+
+        private static long gcCount()
+        {
+            long count = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            {
+                count += Math.max(0, gc.getCollectionCount());
+            }
+            return count;
+        }
+
+        private static long gcMillis()
+        {
+            long millis = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            {
+                millis += Math.max(0, gc.getCollectionTime());
+            }
+            return millis;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long the {@link ServerApplication} takes from starting its JVM to answering its first request, and how
+ * much resident memory it uses at that point.
+ * <p>
+ * Every run starts a new JVM, polls {@code /login} over TLS until it answers and then reads the resident set size of
+ * the server process, so nothing is shared between runs. Each setup is run {@code runs} times and reported as the
+ * median, minimum and maximum of its runs:
+ * <ul>
+ * <li>{@code default}: the Spring Boot jar ({@code fat-jar}) with the default configuration</li>
+ * <li>{@code production}: the jar built by the {@code production} profile ({@code thin-jar}), with the
+ * {@code production} Spring profile</li>
+ * <li>{@code production-cds}: the same, with the class data sharing archive {@code cds-archive}</li>
+ * </ul>
+ * Options are given as {@code --name=value}, and a setup is skipped when one of its files doesn't exist. The output of
+ * each server is written to {@code <name>-<run>.log} in {@code log-directory}.
+ */
+final class StartupBenchmark
+{
+    private static final long TIMEOUT_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final long POLL_MILLIS = 10;
+
+    private final Options options;
+
+    private StartupBenchmark(Options options)
+    {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        trustAnyServer();
+        StartupBenchmark benchmark = new StartupBenchmark(Options.parse(args));
+
+        System.out.printf("%-16s %28s %28s%n", "", "first request (ms)", "resident memory (MB)");
+        System.out.printf("%-16s %9s %9s %9s %9s %9s %9s%n", "setup", "median", "min", "max", "median", "min", "max");
+        benchmark.run("default", false, false);
+        benchmark.run("production", true, false);
+        benchmark.run("production-cds", true, true);
+    }
+
+    private void run(String name, boolean production, boolean cds) throws Exception
+    {
+        Path jar = production ? options.thinJar : options.fatJar;
+        Path cdsArchive = cds ? options.cdsArchive : null;
+        for (Path required : cds ? new Path[]{ jar, cdsArchive } : new Path[]{ jar })
+        {
+            if (required == null || !Files.exists(required))
+            {
+                System.out.printf("%-16s skipped, %s doesn't exist%n", name, required);
+                return;
+            }
+        }
+
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(options.jvmArgs);
+        if (cdsArchive != null)
+        {
+            command.add("-XX:SharedArchiveFile=" + cdsArchive);
+        }
+        command.add("-jar");
+        command.add(jar.toString());
+        if (production)
+        {
+            command.add("--spring.profiles.active=production");
+        }
+
+        long[] startupMillis = new long[options.runs];
+        long[] residentKilobytes = new long[options.runs];
+        for (int run = 0; run < options.runs; run++)
+        {
+            Files.createDirectories(options.logDirectory);
+            Path log = options.logDirectory.resolve(name + "-" + run + ".log");
+            Path pidFile = options.logDirectory.resolve(name + "-" + run + ".pid");
+            Files.deleteIfExists(pidFile);
+            int port = freePort();
+
+            List<String> runCommand = new ArrayList<>(command);
+            runCommand.add("--server.port=" + port);
+            // Java 8 has no way to get the pid of a child process, so the server writes it
+            runCommand.add("--context.listener.classes=org.springframework.boot.context.ApplicationPidFileWriter");
+            runCommand.add("--spring.pid.file=" + pidFile.toAbsolutePath());
+
+            long start = System.nanoTime();
+            Process server = new ProcessBuilder(runCommand).redirectErrorStream(true)
+                                                           .redirectOutput(log.toFile())
+                                                           .start();
+            try
+            {
+                awaitFirstResponse(server, port, start, log);
+                startupMillis[run] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                residentKilobytes[run] = residentKilobytes(pidFile);
+            }
+            finally
+            {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+
+        Arrays.sort(startupMillis);
+        Arrays.sort(residentKilobytes);
+        System.out.printf("%-16s %9d %9d %9d %9s %9s %9s%n",
+                          name,
+                          startupMillis[startupMillis.length / 2],
+                          startupMillis[0],
+                          startupMillis[startupMillis.length - 1],
+                          megabytes(residentKilobytes[residentKilobytes.length / 2]),
+                          megabytes(residentKilobytes[0]),
+                          megabytes(residentKilobytes[residentKilobytes.length - 1]));
+    }
+
+    private static void awaitFirstResponse(Process server, int port, long start, Path log) throws Exception
+    {
+        URL url = new URL("https://localhost:" + port + "/login");
+        while (true)
+        {
+            try
+            {
+                HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+                connection.setConnectTimeout(1000);
+                try (InputStream body = connection.getInputStream())
+                {
+                    while (body.read() >= 0)
+                    {
+                        // The response is complete once the body has been read
+                    }
+                    return;
+                }
+            }
+            catch (IOException e)
+            {
+                // Not listening yet
+            }
+
+            if (!server.isAlive())
+            {
+                throw new IllegalStateException("The server exited with " + server.exitValue() + ", see " + log);
+            }
+            if (System.nanoTime() - start > TIMEOUT_NANOS)
+            {
+                throw new IllegalStateException("The server didn't answer within 2 minutes, see " + log);
+            }
+            Thread.sleep(POLL_MILLIS);
+        }
+    }
+
+    /**
+     * @return the resident set size of the process, or -1 if it can't be read on this platform
+     */
+    private static long residentKilobytes(Path pidFile) throws IOException, InterruptedException
+    {
+        if (!Files.exists(pidFile))
+        {
+            return -1;
+        }
+        String pid = new String(Files.readAllBytes(pidFile), StandardCharsets.US_ASCII).trim();
+
+        Path status = Paths.get("/proc", pid, "status");
+        if (Files.exists(status))
+        {
+            for (String line : Files.readAllLines(status, StandardCharsets.US_ASCII))
+            {
+                if (line.startsWith("VmRSS:"))
+                {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        }
+
+        // Other Unix systems have no /proc, but ps reports the same in kilobytes
+        Process ps = new ProcessBuilder("ps", "-o", "rss=", "-p", pid).redirectErrorStream(true).start();
+        try (BufferedReader output = new BufferedReader(new InputStreamReader(ps.getInputStream(),
+                                                                              StandardCharsets.US_ASCII)))
+        {
+            String rss = output.readLine();
+            return ps.waitFor() == 0 && rss != null ? Long.parseLong(rss.trim()) : -1;
+        }
+    }
+
+    private static String megabytes(long kilobytes)
+    {
+        return kilobytes < 0 ? "n/a" : Long.toString(kilobytes / 1024);
+    }
+
+    private static int freePort() throws IOException
+    {
+        try (ServerSocket socket = new ServerSocket(0))
+        {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * The server uses a self-signed certificate.
+     */
+    private static void trustAnyServer() throws Exception
+    {
+        TrustManager trustAll = new X509TrustManager()
+        {
+            @Override
+            public void checkClientTrusted(X509Certificate[] chain, String authType)
+            {
+            }
+
+            @Override
+            public void checkServerTrusted(X509Certificate[] chain, String authType)
+            {
+            }
+
+            @Override
+            public X509Certificate[] getAcceptedIssuers()
+            {
+                return new X509Certificate[0];
+            }
+        };
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(null, new TrustManager[]{ trustAll }, null);
+        HttpsURLConnection.setDefaultSSLSocketFactory(sslContext.getSocketFactory());
+        HttpsURLConnection.setDefaultHostnameVerifier((host, session) -> true);
+    }
+
+    private static final class Options
+    {
+        private Path fatJar;
+        private Path thinJar;
+        private Path cdsArchive;
+        private Path logDirectory = Paths.get("target", "startup");
+        private int runs = 5;
+        private List<String> jvmArgs = Collections.emptyList();
+
+        static Options parse(String[] args)
+        {
+            Options options = new Options();
+            for (String arg : args)
+            {
+                int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0)
+                {
+                    throw new IllegalArgumentException("Expected --name=value but got " + arg);
+                }
+
+                String value = arg.substring(separator + 1);
+                switch (arg.substring(2, separator))
+                {
+                    case "fat-jar":
+                        options.fatJar = Paths.get(value);
+                        break;
+                    case "thin-jar":
+                        options.thinJar = Paths.get(value);
+                        break;
+                    case "cds-archive":
+                        options.cdsArchive = Paths.get(value);
+                        break;
+                    case "log-directory":
+                        options.logDirectory = Paths.get(value);
+                        break;
+                    case "runs":
+                        options.runs = Integer.parseInt(value);
+                        break;
+                    case "jvm-args":
+                        options.jvmArgs = value.trim().isEmpty()
+                                          ? Collections.emptyList()
+                                          : Arrays.asList(value.trim().split("\\s+"));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (options.runs < 1)
+            {
+                throw new IllegalArgumentException("At least one run is needed");
+            }
+            return options;
+        }
+    }
+}
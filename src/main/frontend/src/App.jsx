@@ -9,6 +9,9 @@ const LOGOUT_ENDPOINT = '/logout';
 const SESSION_ERROR = Symbol();
 const SESSION_REFRESH_INTERVAL = 5000; // milliseconds
 
+// The last validator and body received for each endpoint, so unchanged resources are answered with 304 Not Modified
+const responseCache = new Map();
+
 export default () => {
   const [error, setError] = useState(SESSION_ERROR);
   const [user, setUser] = useState({});
@@ -79,6 +82,7 @@ function Error(props) {
 function User(props) {
 
   useEffect(() => {
+    // Keeps polling while todo events stream in, as the poll is what notices that the session ended
     const id = setInterval(() => fetchUserData(props), SESSION_REFRESH_INTERVAL);
     return () => clearInterval(id);
   }, [props.setUser, props.setError]);
@@ -87,6 +91,7 @@ function User(props) {
     method: 'POST',
     headers: createPostHeaders({})
   }).then(response => handleApiResponse(LOGOUT_ENDPOINT, response))
+    .then(() => responseCache.clear())
     .then(() => Promise.reject(SESSION_ERROR))
     .catch(e => props.setError(e));
 
@@ -156,6 +161,22 @@ function AdminTodos(props) {
     e.target.reset();
   };
 
+  useEffect(() => {
+    if (!data.user) {
+      return;
+    }
+
+    const endpoint = `${TODOS_ENDPOINT}/${data.user}`;
+    const reload = () => getApiResponse(endpoint)
+      .then(response => handleApiResponse(endpoint, response))
+      .then(userTodos => setData(current => current.user === data.user ?
+        { todos: userTodos.todos, user: data.user } :
+        current))
+      .catch(e => props.setError(e));
+
+    return watchTodos(endpoint, reload, setData);
+  }, [data.user, props.setError]);
+
   const clear = () => setData({ todos: [], user: null });
 
   let content;
@@ -195,10 +216,13 @@ function UserTodos(props) {
   const [data, setData] = useState({ todos: [] });
 
   useEffect(() => {
-    getApiResponse(TODOS_ENDPOINT)
+    const reload = () => getApiResponse(TODOS_ENDPOINT)
       .then(response => handleApiResponse(TODOS_ENDPOINT, response))
       .then(newData => setData(newData))
       .catch(e => props.setError(e));
+
+    reload();
+    return watchTodos(TODOS_ENDPOINT, reload, setData);
   }, [props.setError]);
 
   const create = e => {
@@ -224,12 +248,8 @@ function UserTodos(props) {
         }
         handleApiResponse(TODOS_ENDPOINT, response);
       })
-      .then(() => {
-        const newTodos = data.todos.splice(0);
-        newTodos.push(newTodo);
-        setData({ todos: newTodos });
-      })
-      .catch(e => setData({ todos: data.todos, error: e }));
+      .then(() => setData(current => addTodo(current, newTodo)))
+      .catch(e => setData(current => ({ todos: current.todos, error: e })));
   };
 
   return (
@@ -250,6 +270,56 @@ function UserTodos(props) {
   );
 }
 
+// Subscribes to the todo events for an endpoint, falling back to polling when event streams aren't available. Each
+// event is applied to the data with setData. Returns a function that stops watching.
+function watchTodos(endpoint, reload, setData) {
+  if (typeof EventSource === 'undefined') {
+    const id = setInterval(reload, SESSION_REFRESH_INTERVAL);
+    return () => clearInterval(id);
+  }
+
+  let pollId = null;
+  const events = new EventSource(endpoint);
+  events.addEventListener('create', e => setData(current => addTodo(current, JSON.parse(e.data))));
+  events.addEventListener('update', e => setData(current => replaceTodo(current, JSON.parse(e.data))));
+  events.addEventListener('delete', e => setData(current => removeTodo(current, JSON.parse(e.data))));
+  events.onopen = () => {
+    // Catch up on anything written while the stream was disconnected
+    reload();
+  };
+  events.onerror = () => {
+    if (events.readyState === EventSource.CLOSED && pollId === null) {
+      // The browser won't retry, e.g. because the session expired. Polling reports the session error.
+      reload();
+      pollId = setInterval(reload, SESSION_REFRESH_INTERVAL);
+    }
+  };
+
+  return () => {
+    events.close();
+    if (pollId !== null) {
+      clearInterval(pollId);
+    }
+  };
+}
+
+function addTodo(data, todo) {
+  if (data.todos.some(existing => existing.id === todo.id)) {
+    return data;
+  }
+
+  return Object.assign({}, data, { todos: data.todos.concat([todo]), error: undefined });
+}
+
+// A replaced todo moves to the end of the list, as it does on the server
+function replaceTodo(data, todo) {
+  return addTodo(removeTodo(data, todo), todo);
+}
+
+function removeTodo(data, todo) {
+  return Object.assign({}, data, { todos: data.todos.filter(existing => existing.id !== todo.id) });
+}
+
 function renderTodoErrors(data) {
   if (data.error) {
     return (
@@ -284,20 +354,32 @@ function csrfToken() {
 }
 
 function getApiResponse(endpoint) {
+  const headers = {
+    'Accept': 'application/json'
+  };
+
+  const cached = responseCache.get(endpoint);
+  if (cached) {
+    headers['If-None-Match'] = cached.etag;
+  }
+
   return fetch(endpoint, {
     method: 'GET',
-    headers: {
-      'Accept': 'application/json'
-    }
+    headers: headers
   });
 }
 
 function handleApiResponse(endpoint, response) {
 
   if (response.status === 401) {
+    responseCache.clear();
     return Promise.reject(SESSION_ERROR);
   }
 
+  if (response.status === 304 && responseCache.has(endpoint)) {
+    return Promise.resolve(JSON.parse(responseCache.get(endpoint).body));
+  }
+
   const contentType = response.headers.get('Content-Type');
   const emptyBody = response.headers.get('Content-Length') === "0";
 
@@ -306,7 +388,15 @@ function handleApiResponse(endpoint, response) {
   }
 
   if (contentType === 'application/json') {
-    return response.json();
+    const etag = response.headers.get('ETag');
+    if (!etag) {
+      return response.json();
+    }
+
+    return response.text().then(body => {
+      responseCache.set(endpoint, { etag: etag, body: body });
+      return JSON.parse(body);
+    });
   }
 
   return response.text().then(content => {
@@ -0,0 +1,525 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.WebSession;
+import org.springframework.web.server.session.WebSessionStore;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An in-memory {@link WebSessionStore} that holds at most {@code sessions.max-sessions} sessions and actively removes
+ * idle ones.
+ * <p>
+ * Each stored session is filed in a timer wheel, in the slot of the tick in which it would become idle. Once a tick,
+ * a background thread visits only the sessions in that tick's slot. It removes the ones that are still idle and files
+ * the others again under their new deadline, so accessing a session never touches the wheel. Deadlines beyond the
+ * reach of the wheel wait in its furthest slot until they come within reach.
+ * <p>
+ * When a new session would exceed the capacity, the session with the earliest idle deadline is evicted. All sessions
+ * have the same idle timeout once logged in, so this is the least recently used one. It is found by walking the
+ * wheel from the current tick. Session attributes are kept in a compact {@link SessionAttributes} map.
+ */
+@Component
+public class BoundedWebSessionStore implements WebSessionStore
+{
+    private static final Duration DEFAULT_MAX_IDLE_TIME = Duration.ofMinutes(30);
+    private static final int WHEEL_SIZE = 1024;
+
+    private final ConcurrentMap<String, StoredSession> sessions = new ConcurrentHashMap<>();
+    private final int maxSessions;
+    private final long tickMillis;
+
+    private final ArrayDeque<StoredSession>[] wheel;
+    private long wheelTick;
+
+    private final Thread sweeper;
+    private volatile boolean running = true;
+
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LatencyHistogram lookupLatency = new LatencyHistogram();
+
+    @Autowired
+    @SuppressWarnings("unchecked")
+    public BoundedWebSessionStore(@Value("${sessions.max-sessions:10000}") int maxSessions,
+                                  @Value("${sessions.sweep-interval:1s}") Duration sweepInterval)
+    {
+        this.maxSessions = maxSessions;
+        this.tickMillis = Math.max(1, sweepInterval.toMillis());
+        this.wheel = new ArrayDeque[WHEEL_SIZE];
+        for (int i = 0; i < WHEEL_SIZE; i++)
+        {
+            wheel[i] = new ArrayDeque<>();
+        }
+        this.wheelTick = tick(System.currentTimeMillis());
+
+        this.sweeper = new Thread(this::runSweeper, "session-sweeper");
+        this.sweeper.setDaemon(true);
+        this.sweeper.start();
+    }
+
+    @Override
+    public Mono<WebSession> createWebSession()
+    {
+        return Mono.fromSupplier(() -> new StoredSession(System.currentTimeMillis()));
+    }
+
+    @Override
+    public Mono<WebSession> retrieveSession(String sessionId)
+    {
+        long start = System.nanoTime();
+        StoredSession session = sessions.get(sessionId);
+        long now = System.currentTimeMillis();
+        if (session != null && session.isExpired(now))
+        {
+            evict(session);
+            expirations.increment();
+            session = null;
+        }
+        if (session != null)
+        {
+            session.lastAccessMillis = now;
+        }
+        lookupLatency.record(System.nanoTime() - start);
+        return Mono.justOrEmpty(session);
+    }
+
+    @Override
+    public Mono<Void> removeSession(String sessionId)
+    {
+        StoredSession session = sessions.get(sessionId);
+        if (session != null)
+        {
+            remove(session);
+        }
+        return Mono.empty();
+    }
+
+    @Override
+    public Mono<WebSession> updateLastAccessTime(WebSession webSession)
+    {
+        return Mono.fromSupplier(() -> {
+            ((StoredSession) webSession).lastAccessMillis = System.currentTimeMillis();
+            return webSession;
+        });
+    }
+
+    /**
+     * @return the number of stored sessions
+     */
+    public int getSessionCount()
+    {
+        return sessions.size();
+    }
+
+    /**
+     * @return the total number of attributes of the stored sessions
+     */
+    public long getAttributeCount()
+    {
+        long count = 0;
+        for (StoredSession session : sessions.values())
+        {
+            count += session.attributes.size();
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of sessions evicted to stay within {@code sessions.max-sessions}
+     */
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of sessions removed because they were idle for too long
+     */
+    public long getExpirationCount()
+    {
+        return expirations.sum();
+    }
+
+    /**
+     * @return the distribution of the time taken to look up a session
+     */
+    LatencyHistogram.Snapshot getLookupLatency()
+    {
+        return lookupLatency.snapshot();
+    }
+
+    /**
+     * @return the number of sessions filed in the wheel, which includes removed sessions until their slot is visited
+     */
+    int getWheelEntryCount()
+    {
+        synchronized (wheel)
+        {
+            int count = 0;
+            for (ArrayDeque<StoredSession> slot : wheel)
+            {
+                count += slot.size();
+            }
+            return count;
+        }
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException
+    {
+        running = false;
+        LockSupport.unpark(sweeper);
+        sweeper.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private long tick(long millis)
+    {
+        return millis / tickMillis;
+    }
+
+    private void store(StoredSession session)
+    {
+        synchronized (wheel)
+        {
+            if (session.stored || session.evicted || session.isExpired(System.currentTimeMillis()))
+            {
+                return;
+            }
+            session.stored = true;
+            sessions.put(session.id, session);
+            if (session.slot >= 0)
+            {
+                // Removed since it was filed, but still in its slot until the slot is visited
+                wheel[session.slot].remove(session);
+            }
+            schedule(session);
+            while (sessions.size() > maxSessions && evictEarliest())
+            {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Removes a session from the map. The wheel drops it the next time its slot is visited, unless it is stored again
+     * before that, which takes it out of its slot.
+     */
+    private void remove(StoredSession session)
+    {
+        synchronized (wheel)
+        {
+            session.stored = false;
+            sessions.remove(session.id, session);
+        }
+    }
+
+    /**
+     * Removes a session that was evicted or has expired. Unlike a removed session, it is never stored again, even by a
+     * request still holding it.
+     */
+    private void evict(StoredSession session)
+    {
+        synchronized (wheel)
+        {
+            session.evicted = true;
+            remove(session);
+        }
+    }
+
+    /**
+     * Files a session under the tick of its deadline, or in the furthest slot if the deadline is out of reach.
+     * Must be called holding the lock on the wheel.
+     */
+    private void schedule(StoredSession session)
+    {
+        long tick = Math.min(tick(session.deadlineMillis()), wheelTick + WHEEL_SIZE - 1);
+        file(session, Math.max(tick, wheelTick));
+    }
+
+    /**
+     * Adds a session to the slot of a tick. The session must have been taken out of the slot it was in. Must be called
+     * holding the lock on the wheel.
+     */
+    private void file(StoredSession session, long tick)
+    {
+        session.slot = (int) (tick & (WHEEL_SIZE - 1));
+        wheel[session.slot].add(session);
+    }
+
+    /**
+     * Evicts the stored session with the earliest deadline. Must be called holding the lock on the wheel.
+     *
+     * @return false if there was no session to evict
+     */
+    private boolean evictEarliest()
+    {
+        for (long tick = wheelTick; tick < wheelTick + WHEEL_SIZE; tick++)
+        {
+            ArrayDeque<StoredSession> slot = wheel[(int) (tick & (WHEEL_SIZE - 1))];
+            StoredSession earliest = null;
+            List<StoredSession> later = null;
+            for (StoredSession session : slot)
+            {
+                if (!session.isStored())
+                {
+                    continue;
+                }
+                if (tick(session.deadlineMillis()) > tick && tick < wheelTick + WHEEL_SIZE - 1)
+                {
+                    // Accessed since it was filed here, so it belongs in a later slot
+                    if (later == null)
+                    {
+                        later = new ArrayList<>();
+                    }
+                    later.add(session);
+                }
+                else if (earliest == null || session.deadlineMillis() < earliest.deadlineMillis())
+                {
+                    earliest = session;
+                }
+            }
+
+            slot.removeIf(session -> {
+                if (session.isStored())
+                {
+                    return false;
+                }
+                session.slot = -1;
+                return true;
+            });
+            if (later != null)
+            {
+                slot.removeAll(later);
+                later.forEach(this::schedule);
+            }
+            if (earliest != null)
+            {
+                slot.remove(earliest);
+                earliest.slot = -1;
+                evict(earliest);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void runSweeper()
+    {
+        while (running)
+        {
+            long now = System.currentTimeMillis();
+            synchronized (wheel)
+            {
+                while (wheelTick <= tick(now))
+                {
+                    sweep(wheel[(int) (wheelTick & (WHEEL_SIZE - 1))], now);
+                    wheelTick++;
+                }
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(tickMillis));
+        }
+    }
+
+    private void sweep(ArrayDeque<StoredSession> slot, long now)
+    {
+        int count = slot.size();
+        for (int i = 0; i < count; i++)
+        {
+            StoredSession session = slot.poll();
+            session.slot = -1;
+            if (!session.isStored())
+            {
+                continue;
+            }
+
+            if (session.isExpired(now))
+            {
+                evict(session);
+                expirations.increment();
+            }
+            else
+            {
+                // The next tick is the earliest a session can be filed under once this slot has been swept
+                long tick = Math.max(wheelTick + 1, tick(session.deadlineMillis()));
+                file(session, Math.min(tick, wheelTick + WHEEL_SIZE - 1));
+            }
+        }
+    }
+
+    private enum State
+    {
+        NEW, STARTED, INVALIDATED
+    }
+
+    private final class StoredSession implements WebSession
+    {
+        private volatile String id = UUID.randomUUID().toString();
+        private final long creationMillis;
+        private volatile long lastAccessMillis;
+        private volatile long maxIdleMillis = DEFAULT_MAX_IDLE_TIME.toMillis();
+        private volatile State state = State.NEW;
+        private volatile boolean stored;
+        // Set once the session was evicted or expired, after which it is never stored again. Written under the lock on
+        // the wheel.
+        private volatile boolean evicted;
+        // The index of the wheel slot the session is in, or -1. Guarded by the lock on the wheel.
+        private int slot = -1;
+        private final SessionAttributes attributes = new SessionAttributes();
+
+        private StoredSession(long creationMillis)
+        {
+            this.creationMillis = creationMillis;
+            this.lastAccessMillis = creationMillis;
+        }
+
+        @Override
+        public String getId()
+        {
+            return id;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes()
+        {
+            return attributes;
+        }
+
+        @Override
+        public void start()
+        {
+            if (state == State.NEW)
+            {
+                state = State.STARTED;
+            }
+        }
+
+        @Override
+        public boolean isStarted()
+        {
+            return state == State.STARTED || !attributes.isEmpty();
+        }
+
+        @Override
+        public Mono<Void> changeSessionId()
+        {
+            return Mono.fromRunnable(() -> {
+                String previousId = id;
+                id = UUID.randomUUID().toString();
+                if (stored && sessions.remove(previousId, this))
+                {
+                    sessions.put(id, this);
+                }
+            });
+        }
+
+        @Override
+        public Mono<Void> invalidate()
+        {
+            return Mono.fromRunnable(() -> {
+                state = State.INVALIDATED;
+                attributes.clear();
+                remove(this);
+            });
+        }
+
+        @Override
+        public Mono<Void> save()
+        {
+            return Mono.defer(() -> {
+                if (state == State.INVALIDATED)
+                {
+                    return Mono.error(new IllegalStateException("Session was invalidated"));
+                }
+                if (isStarted() && !stored && !isExpired())
+                {
+                    state = State.STARTED;
+                    store(this);
+                }
+                return Mono.empty();
+            });
+        }
+
+        @Override
+        public boolean isExpired()
+        {
+            return isExpired(System.currentTimeMillis());
+        }
+
+        boolean isExpired(long now)
+        {
+            return state == State.INVALIDATED || (state == State.STARTED && now >= deadlineMillis());
+        }
+
+        @Override
+        public Instant getCreationTime()
+        {
+            return Instant.ofEpochMilli(creationMillis);
+        }
+
+        @Override
+        public Instant getLastAccessTime()
+        {
+            return Instant.ofEpochMilli(lastAccessMillis);
+        }
+
+        @Override
+        public void setMaxIdleTime(Duration maxIdleTime)
+        {
+            maxIdleMillis = maxIdleTime.toMillis();
+        }
+
+        @Override
+        public Duration getMaxIdleTime()
+        {
+            return Duration.ofMillis(maxIdleMillis);
+        }
+
+        /**
+         * @return when the session becomes idle, or {@link Long#MAX_VALUE} if it never does
+         */
+        long deadlineMillis()
+        {
+            long maxIdle = maxIdleMillis;
+            return maxIdle < 0 ? Long.MAX_VALUE : lastAccessMillis + maxIdle;
+        }
+
+        boolean isStored()
+        {
+            return stored;
+        }
+    }
+}
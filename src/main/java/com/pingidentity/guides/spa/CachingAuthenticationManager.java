@@ -0,0 +1,232 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.authentication.AccountStatusUserDetailsChecker;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.userdetails.ReactiveUserDetailsService;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.crypto.factory.PasswordEncoderFactories;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link ReactiveAuthenticationManager} that verifies form login credentials against the
+ * {@link ReactiveUserDetailsService} without slowing down the event loop.
+ * <p>
+ * Password hashes are deliberately slow to check, so checks run on a dedicated scheduler with
+ * {@code login.hash-threads} threads. At most {@code login.hash-queue-size} checks wait for a thread. Beyond that,
+ * logins are rejected rather than queued, so a login storm can't build up an unbounded backlog.
+ * <p>
+ * Successful checks are remembered for {@code login.cache-ttl}, in an LRU cache of at most {@code login.cache-size}
+ * entries, so a user who logs in again soon after doesn't pay for another check. Entries are keyed by a digest of the
+ * user name, the stored password hash and the presented password, salted with a random value per process. No
+ * password is kept, and an entry stops matching as soon as the stored password changes. The account status is still
+ * checked on every login.
+ */
+@Component
+public class CachingAuthenticationManager implements ReactiveAuthenticationManager
+{
+    private final ReactiveUserDetailsService userDetailsService;
+    private final PasswordEncoder passwordEncoder;
+    private final Scheduler scheduler;
+    private final long cacheTtlNanos;
+    private final Map<ByteBuffer, Long> verified;
+    private final byte[] salt = new byte[32];
+    private final AccountStatusUserDetailsChecker accountStatusChecker = new AccountStatusUserDetailsChecker();
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+    private final LongAdder rejections = new LongAdder();
+
+    @Autowired
+    public CachingAuthenticationManager(ReactiveUserDetailsService userDetailsService,
+                                        ObjectProvider<PasswordEncoder> passwordEncoder,
+                                        @Value("${login.hash-threads:0}") int hashThreads,
+                                        @Value("${login.hash-queue-size:256}") int hashQueueSize,
+                                        @Value("${login.cache-size:10000}") int cacheSize,
+                                        @Value("${login.cache-ttl:2m}") Duration cacheTtl)
+    {
+        this.userDetailsService = userDetailsService;
+        this.passwordEncoder = passwordEncoder.getIfAvailable(PasswordEncoderFactories::createDelegatingPasswordEncoder);
+        this.scheduler = Schedulers.newBoundedElastic(hashThreads > 0 ? hashThreads
+                                                                      : Runtime.getRuntime().availableProcessors(),
+                                                      hashQueueSize,
+                                                      "password-hash",
+                                                      60,
+                                                      true);
+        this.cacheTtlNanos = cacheTtl.toNanos();
+        this.verified = new LinkedHashMap<ByteBuffer, Long>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Long> eldest)
+            {
+                return size() > cacheSize;
+            }
+        };
+        new SecureRandom().nextBytes(salt);
+    }
+
+    @Override
+    public Mono<Authentication> authenticate(Authentication authentication)
+    {
+        String userName = authentication.getName();
+        String presentedPassword = (String) authentication.getCredentials();
+        return userDetailsService.findByUsername(userName)
+                                 .flatMap(user -> verify(user, presentedPassword))
+                                 .switchIfEmpty(Mono.error(() -> new BadCredentialsException("Invalid Credentials")))
+                                 .map(user -> {
+                                     accountStatusChecker.check(user);
+                                     return new UsernamePasswordAuthenticationToken(user,
+                                                                                    user.getPassword(),
+                                                                                    user.getAuthorities());
+                                 });
+    }
+
+    /**
+     * @return the number of logins that skipped the password check
+     */
+    public long getCacheHitCount()
+    {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return the number of logins that needed a password check
+     */
+    public long getCacheMissCount()
+    {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * @return the number of logins rejected because too many password checks were waiting
+     */
+    public long getRejectedCount()
+    {
+        return rejections.sum();
+    }
+
+    @PreDestroy
+    public void close()
+    {
+        scheduler.dispose();
+    }
+
+    /**
+     * @return the user if the password matches, or an empty {@link Mono} if it doesn't
+     */
+    private Mono<UserDetails> verify(UserDetails user, String presentedPassword)
+    {
+        if (presentedPassword == null || user.getPassword() == null)
+        {
+            return Mono.empty();
+        }
+
+        ByteBuffer key = cacheKey(user, presentedPassword);
+        if (isVerified(key))
+        {
+            cacheHits.increment();
+            return Mono.just(user);
+        }
+
+        cacheMisses.increment();
+        return Mono.fromCallable(() -> passwordEncoder.matches(presentedPassword, user.getPassword()))
+                   .subscribeOn(scheduler)
+                   .onErrorMap(RejectedExecutionException.class, e -> {
+                       rejections.increment();
+                       return new AuthenticationServiceException("Too many logins in progress", e);
+                   })
+                   .filter(matches -> matches)
+                   .map(matches -> {
+                       remember(key);
+                       return user;
+                   });
+    }
+
+    private ByteBuffer cacheKey(UserDetails user, String presentedPassword)
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        digest.update(salt);
+        digest.update(user.getUsername().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(user.getPassword().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(presentedPassword.getBytes(StandardCharsets.UTF_8));
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    private boolean isVerified(ByteBuffer key)
+    {
+        synchronized (verified)
+        {
+            Long expiry = verified.get(key);
+            if (expiry == null)
+            {
+                return false;
+            }
+            if (System.nanoTime() - expiry >= 0)
+            {
+                verified.remove(key);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private void remember(ByteBuffer key)
+    {
+        long expiry = System.nanoTime() + cacheTtlNanos;
+        synchronized (verified)
+        {
+            verified.put(key, expiry);
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An append-only arena for the content of one user's todos, encoded as UTF-8.
+ * <p>
+ * The content is kept in a single buffer, on the heap or a direct buffer, that is replaced by one twice its size when
+ * it is full. Each piece of content is identified by a reference that packs its offset and length into a
+ * {@code long}, so the store only keeps primitives per todo.
+ * <p>
+ * Only the user's writer appends to the arena. Content is written before its reference is published in a
+ * {@link TodoStore.Snapshot} together with the buffer it was written to, and the bytes before the end of the buffer
+ * are never written again, so readers see the content without locking. Snapshots that hold a buffer the arena has
+ * outgrown keep it until they are collected. Space is reclaimed by copying the live content to a new arena, which the
+ * store does once a user's replaced and removed content outweighs the rest.
+ */
+final class ContentArena
+{
+    private static final int LENGTH_BITS = 16;
+    private static final int MIN_CAPACITY = 256;
+    private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+    static final int MAX_LENGTH = (1 << LENGTH_BITS) - 1;
+
+    private final boolean offHeap;
+    private ByteBuffer buffer;
+    private int position;
+
+    /**
+     * @param capacity the size of the first buffer, which is at least a few hundred bytes
+     */
+    ContentArena(boolean offHeap, int capacity)
+    {
+        this.offHeap = offHeap;
+        this.buffer = allocate(Math.min(MAX_CAPACITY, Math.max(MIN_CAPACITY, capacity)));
+    }
+
+    /**
+     * Copies content into the arena.
+     *
+     * @param utf8 the content, encoded as UTF-8
+     * @return the reference to the content
+     * @throws IllegalArgumentException if the content is longer than {@link #MAX_LENGTH} bytes
+     */
+    long add(byte[] utf8)
+    {
+        int length = utf8.length;
+        if (length > MAX_LENGTH)
+        {
+            throw new IllegalArgumentException("Content must not be longer than " + MAX_LENGTH + " bytes");
+        }
+
+        if (length > buffer.capacity() - position)
+        {
+            grow((long) position + length);
+        }
+
+        int offset = position;
+        if (buffer.hasArray())
+        {
+            System.arraycopy(utf8, 0, buffer.array(), buffer.arrayOffset() + offset, length);
+        }
+        else
+        {
+            // Absolute bulk puts need Java 13, so a duplicate keeps the shared position untouched
+            ByteBuffer target = buffer.duplicate();
+            target.position(offset);
+            target.put(utf8);
+        }
+        position += length;
+
+        return ((long) offset << LENGTH_BITS) | length;
+    }
+
+    /**
+     * Copies content from another arena, without decoding it.
+     *
+     * @param source    the buffer published with the reference
+     * @param reference the reference to the content in the other arena
+     * @return the reference to the content in this arena
+     */
+    long add(ByteBuffer source, long reference)
+    {
+        int length = length(reference);
+        if (length > buffer.capacity() - position)
+        {
+            grow((long) position + length);
+        }
+
+        int offset = position;
+        ByteBuffer content = source.duplicate();
+        content.position(offset(reference));
+        content.limit(offset(reference) + length);
+        ByteBuffer target = buffer.duplicate();
+        target.position(offset);
+        target.put(content);
+        position += length;
+
+        return ((long) offset << LENGTH_BITS) | length;
+    }
+
+    /**
+     * @return the buffer the content added so far is in, to be published with its references
+     */
+    ByteBuffer getBuffer()
+    {
+        return buffer;
+    }
+
+    /**
+     * @return the length in bytes of the content a reference points to
+     */
+    static int length(long reference)
+    {
+        return (int) (reference & MAX_LENGTH);
+    }
+
+    /**
+     * @param buffer the buffer published with the reference
+     * @return the content a reference points to, decoded
+     */
+    static String getString(ByteBuffer buffer, long reference)
+    {
+        int offset = offset(reference);
+        if (buffer.hasArray())
+        {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length(reference), StandardCharsets.UTF_8);
+        }
+        return new String(copy(buffer, offset, length(reference)), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Passes the bytes of the content a reference points to to a consumer, without copying them when the arena is on
+     * the heap.
+     *
+     * @param buffer the buffer published with the reference
+     */
+    static void read(ByteBuffer buffer, long reference, Utf8Consumer consumer) throws IOException
+    {
+        int offset = offset(reference);
+        if (buffer.hasArray())
+        {
+            consumer.accept(buffer.array(), buffer.arrayOffset() + offset, length(reference));
+        }
+        else
+        {
+            consumer.accept(copy(buffer, offset, length(reference)), 0, length(reference));
+        }
+    }
+
+    /**
+     * @return whether the content is kept in a direct buffer
+     */
+    boolean isOffHeap()
+    {
+        return offHeap;
+    }
+
+    /**
+     * @return the size of the buffer
+     */
+    long getAllocatedBytes()
+    {
+        return buffer.capacity();
+    }
+
+    /**
+     * @return the bytes of content added so far, including the content of replaced and removed todos
+     */
+    long getUsedBytes()
+    {
+        return position;
+    }
+
+    private void grow(long required)
+    {
+        if (required > MAX_CAPACITY)
+        {
+            throw new IllegalStateException("The content of a user's todos must not exceed " + MAX_CAPACITY + " bytes");
+        }
+
+        ByteBuffer grown = allocate((int) Math.min(MAX_CAPACITY, Math.max(required, 2L * buffer.capacity())));
+        ByteBuffer used = buffer.duplicate();
+        used.position(0);
+        used.limit(position);
+        grown.duplicate().put(used);
+        // Snapshots already published keep reading the old buffer
+        buffer = grown;
+    }
+
+    private ByteBuffer allocate(int capacity)
+    {
+        return offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private static int offset(long reference)
+    {
+        return (int) (reference >>> LENGTH_BITS);
+    }
+
+    private static byte[] copy(ByteBuffer buffer, int offset, int length)
+    {
+        byte[] bytes = new byte[length];
+        ByteBuffer source = buffer.duplicate();
+        source.position(offset);
+        source.get(bytes);
+        return bytes;
+    }
+
+    /**
+     * Receives content encoded as UTF-8.
+     */
+    interface Utf8Consumer
+    {
+        void accept(byte[] bytes, int offset, int length) throws IOException;
+    }
+}
@@ -18,101 +18,613 @@
 
 package com.pingidentity.guides.spa;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import org.springframework.core.io.buffer.DataBuffer;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.GrantedAuthority;
 import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
+import javax.validation.ConstraintViolation;
 import javax.validation.Valid;
+import javax.validation.Validator;
 import javax.validation.constraints.NotEmpty;
 import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Size;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 
 @RestController
 @ControllerAdvice
 public class Controller
 {
-    private final Map<String, Todos> todos = new HashMap<>();
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private static final int FINGERPRINT_BYTES = 16;
+
+    // Versions are only unique within a process, so validators from a previous run never match
+    private final String eTagPrefix = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final TodoStore store;
+    private final TodoEvents events;
+    private final TodoSearchIndex searchIndex;
+    private final TodoResponseCache responseCache;
+    private final Validator validator;
+
+    public Controller(TodoStore store,
+                      TodoEvents events,
+                      TodoSearchIndex searchIndex,
+                      TodoResponseCache responseCache,
+                      Validator validator)
+    {
+        this.store = store;
+        this.events = events;
+        this.searchIndex = searchIndex;
+        this.responseCache = responseCache;
+        this.validator = validator;
+    }
 
     @RequestMapping("/user")
-    public User user(Authentication authentication)
+    public Mono<User> user(Authentication authentication, ServerWebExchange exchange)
     {
+        List<String> groups = authentication.getAuthorities()
+                                            .stream()
+                                            .map(GrantedAuthority::getAuthority)
+                                            .map(role -> role.replace("ROLE_", ""))
+                                            .collect(Collectors.toList());
+        if (exchange.checkNotModified(userETag(authentication.getName(), groups)))
+        {
+            return Mono.empty();
+        }
+
         User user = new User();
         user.setUsername(authentication.getName());
-        user.setGroups(authentication.getAuthorities()
-                                     .stream()
-                                     .map(GrantedAuthority::getAuthority)
-                                     .map(role -> role.replace("ROLE_", ""))
-                                     .collect(Collectors.toList()));
-        return user;
+        user.setGroups(groups);
+        return Mono.just(user);
     }
 
     @GetMapping("/todos/{userName}")
     @PreAuthorize("hasRole('sre')")
-    public synchronized Mono<Todos> readUserTodos(@PathVariable String userName)
+    public Mono<DataBuffer> readUserTodos(@PathVariable String userName,
+                                          @RequestParam(required = false) Integer limit,
+                                          @RequestParam(required = false) String cursor,
+                                          ServerWebExchange exchange)
+    {
+        return readTodos(userName, limit, cursor, exchange);
+    }
+
+    @GetMapping(value = "/todos/{userName}",
+                produces = {CodecConfiguration.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE})
+    @PreAuthorize("hasRole('sre')")
+    public Flux<Todo> streamUserTodos(@PathVariable String userName, @RequestParam(required = false) String cursor)
+    {
+        return streamTodos(userName, cursor);
+    }
+
+    @GetMapping(value = "/todos/{userName}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @PreAuthorize("hasRole('sre')")
+    public Flux<ServerSentEvent<Todo>> watchUserTodos(@PathVariable String userName)
     {
-        return Mono.just(getUserTodos(userName));
+        return events.subscribe(userName);
     }
 
     @GetMapping("/todos")
     @PreAuthorize("not(hasRole('sre'))")
-    public synchronized Mono<Todos> read(Principal user)
+    public Mono<DataBuffer> read(Principal user,
+                                 @RequestParam(required = false) Integer limit,
+                                 @RequestParam(required = false) String cursor,
+                                 ServerWebExchange exchange)
+    {
+        return readTodos(user.getName(), limit, cursor, exchange);
+    }
+
+    @GetMapping(value = "/todos",
+                produces = {CodecConfiguration.APPLICATION_NDJSON_VALUE, MediaType.APPLICATION_STREAM_JSON_VALUE})
+    @PreAuthorize("not(hasRole('sre'))")
+    public Flux<Todo> stream(Principal user, @RequestParam(required = false) String cursor)
+    {
+        return streamTodos(user.getName(), cursor);
+    }
+
+    @GetMapping(value = "/todos", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    @PreAuthorize("not(hasRole('sre'))")
+    public Flux<ServerSentEvent<Todo>> watch(Principal user)
+    {
+        return events.subscribe(user.getName());
+    }
+
+    /**
+     * Writes the JSON itself, so the whole list can be served from the {@link TodoResponseCache}. The content type is
+     * set on the response, which takes precedence over the one negotiated for a {@link DataBuffer}.
+     */
+    private Mono<DataBuffer> readTodos(String userName, Integer limit, String cursor, ServerWebExchange exchange)
+    {
+        TodoStore.Snapshot todos = store.read(userName);
+        if (limit == null && cursor == null)
+        {
+            if (exchange.checkNotModified(todosETag(todos, 0, 0)))
+            {
+                return Mono.empty();
+            }
+            exchange.getResponse().getHeaders().setContentType(MediaType.APPLICATION_JSON);
+            return Mono.just(responseCache.encode(userName, todos, exchange.getResponse().bufferFactory()));
+        }
+
+        TodoStore.Snapshot page = todos.page(decodeCursor(cursor), pageSize(limit));
+        if (exchange.checkNotModified(todosETag(todos, page.getStartPosition(), page.getEndPosition())))
+        {
+            return Mono.empty();
+        }
+
+        Todos result = new Todos(page);
+        if (todos.nextSlot(page.getEndSlot()) < todos.getEndSlot())
+        {
+            result.setNext(encodeCursor(page.getEndPosition()));
+        }
+        exchange.getResponse().getHeaders().setContentType(MediaType.APPLICATION_JSON);
+        return Mono.just(responseCache.encodePage(result, exchange.getResponse().bufferFactory()));
+    }
+
+    private static int pageSize(Integer limit)
+    {
+        int pageSize = limit == null ? MAX_PAGE_SIZE : limit;
+        if (pageSize < 1)
+        {
+            throw new ServerWebInputException("limit must be greater than 0");
+        }
+        return Math.min(pageSize, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * A snapshot is identified by its list and version, so a strong validator can be derived without serializing it.
+     */
+    private String todosETag(TodoStore.Snapshot todos, int start, int end)
     {
-        return Mono.just(getUserTodos(user.getName()));
+        StringBuilder eTag = new StringBuilder(48).append('"')
+                                                  .append(eTagPrefix)
+                                                  .append('-')
+                                                  .append(todos.getListId())
+                                                  .append('-')
+                                                  .append(todos.getVersion());
+        if (end > 0)
+        {
+            eTag.append('-').append(start).append('-').append(end);
+        }
+        return eTag.append('"').toString();
     }
 
-    private Todos getUserTodos(String userName)
+    private String userETag(String userName, List<String> groups)
     {
-        Todos userTodos = todos.get(userName);
-        if (userTodos == null)
+        MessageDigest digest = sha256();
+        digest.update(userName.getBytes(StandardCharsets.UTF_8));
+        for (String group : groups)
         {
-            return new Todos();
+            digest.update((byte) 0);
+            digest.update(group.getBytes(StandardCharsets.UTF_8));
         }
 
-        return userTodos;
+        byte[] fingerprint = Arrays.copyOf(digest.digest(), FINGERPRINT_BYTES);
+        return '"' + eTagPrefix + '-' + Base64.getUrlEncoder().withoutPadding().encodeToString(fingerprint) + '"';
+    }
+
+    private static MessageDigest sha256()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
     }
 
+    private Flux<Todo> streamTodos(String userName, String cursor)
+    {
+        // The snapshot never changes, so items are emitted on demand without copying the list
+        TodoStore.Snapshot todos = store.read(userName);
+        return Flux.fromIterable(todos.page(decodeCursor(cursor), Integer.MAX_VALUE));
+    }
+
+    @GetMapping("/search")
+    @PreAuthorize("not(hasRole('sre'))")
+    public Mono<SearchResults> search(Principal user,
+                                      @RequestParam String q,
+                                      @RequestParam(required = false) Integer limit,
+                                      @RequestParam(required = false) String cursor,
+                                      @RequestParam(name = "ids", defaultValue = "false") boolean idsOnly)
+    {
+        String[] words = queryWords(q);
+        SearchResults results = new SearchResults(pageSize(limit), false);
+        searchIndex.search(user.getName(),
+                           words,
+                           decodeCursor(cursor),
+                           (userName, position, todo) -> results.add(null, position, todo, idsOnly));
+        return Mono.just(results);
+    }
+
+    /**
+     * Searches the todos of all users, or of the user given in {@code user}. Results are ordered by user name.
+     */
+    @GetMapping("/search/all")
+    @PreAuthorize("hasRole('sre')")
+    public Mono<SearchResults> searchAllUsers(@RequestParam String q,
+                                              @RequestParam(name = "user", required = false) String userName,
+                                              @RequestParam(required = false) Integer limit,
+                                              @RequestParam(required = false) String cursor,
+                                              @RequestParam(name = "ids", defaultValue = "false") boolean idsOnly)
+    {
+        String[] words = queryWords(q);
+        SearchResults results = new SearchResults(pageSize(limit), userName == null);
+        if (userName != null)
+        {
+            searchIndex.search(userName,
+                               words,
+                               decodeCursor(cursor),
+                               (owner, position, todo) -> results.add(owner, position, todo, idsOnly));
+        }
+        else
+        {
+            SearchCursor start = SearchCursor.decode(cursor);
+            searchIndex.searchAll(words,
+                                  start.userName,
+                                  start.position,
+                                  (owner, position, todo) -> results.add(owner, position, todo, idsOnly));
+        }
+        return Mono.just(results);
+    }
+
+    private static String[] queryWords(String query)
+    {
+        try
+        {
+            return TodoSearchIndex.queryWords(query);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new ServerWebInputException(e.getMessage());
+        }
+    }
+
+    /**
+     * Cursors are opaque to clients. They encode the position of the next todo to return, which stays the same when
+     * todos before it are replaced or removed, and when the list is compacted.
+     */
+    private static String encodeCursor(int position)
+    {
+        byte[] bytes = ByteBuffer.allocate(Long.BYTES).putLong(position).array();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    private static int decodeCursor(String cursor)
+    {
+        if (cursor == null)
+        {
+            return 0;
+        }
+
+        long position;
+        try
+        {
+            byte[] bytes = Base64.getUrlDecoder().decode(cursor);
+            if (bytes.length != Long.BYTES)
+            {
+                throw new IllegalArgumentException("Unexpected cursor length");
+            }
+            position = ByteBuffer.wrap(bytes).getLong();
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw new ServerWebInputException("Invalid cursor");
+        }
+
+        if (position < 0)
+        {
+            throw new ServerWebInputException("Invalid cursor");
+        }
+        return (int) Math.min(position, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Creates a todo. Todos are identified by their ids, so creating a todo with an id the user already has, as a
+     * retry does, leaves the existing todo as it is.
+     */
     @PostMapping("/todos")
     @ResponseStatus(HttpStatus.CREATED)
     @PreAuthorize("not(hasRole('sre'))")
-    public synchronized Mono<Void> create(Principal user, @Valid @RequestBody Todo todo)
+    public Mono<Void> create(Principal user, @Valid @RequestBody Todo todo)
     {
-        todos.computeIfAbsent(user.getName(), unused -> new Todos()).getTodos().add(todo);
-        return Mono.empty();
+        return Mono.defer(() -> store.add(user.getName(), todo))
+                   .onErrorMap(TodoStore.QuotaExceededException.class, Controller::quotaExceeded);
     }
 
-    private static class Todos
+    @PostMapping(value = "/todos/batch",
+                 consumes = {MediaType.APPLICATION_JSON_VALUE,
+                             CodecConfiguration.APPLICATION_NDJSON_VALUE,
+                             MediaType.APPLICATION_STREAM_JSON_VALUE})
+    @PreAuthorize("not(hasRole('sre'))")
+    public Mono<BatchResult> createAll(Principal user, @RequestBody Flux<Optional<Todo>> todos)
     {
-        private List<Todo> todos = new ArrayList<>();
+        // Items are validated individually, so one invalid item doesn't reject the whole batch. They are decoded as
+        // optionals, as the decoder leaves out null items, which would then be missing from the results.
+        return todos.take(MAX_BATCH_SIZE + 1)
+                    .collectList()
+                    .flatMap(items -> {
+                        if (items.size() > MAX_BATCH_SIZE)
+                        {
+                            return Mono.error(new ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                                                                          "A batch is limited to " + MAX_BATCH_SIZE +
+                                                                          " todos"));
+                        }
 
-        public List<Todo> getTodos()
+                        BatchResult result = new BatchResult();
+                        List<Todo> valid = new ArrayList<>(items.size());
+                        for (Optional<Todo> item : items)
+                        {
+                            if (!item.isPresent())
+                            {
+                                result.getResults().add(new ItemResult(null,
+                                                                       HttpStatus.BAD_REQUEST,
+                                                                       Collections.singletonList("must not be null")));
+                                continue;
+                            }
+
+                            Todo todo = item.get();
+                            Set<ConstraintViolation<Todo>> violations = validator.validate(todo);
+                            if (violations.isEmpty())
+                            {
+                                valid.add(todo);
+                                result.getResults().add(new ItemResult(todo.getId(), HttpStatus.CREATED, null));
+                            }
+                            else
+                            {
+                                List<String> errors = violations.stream()
+                                                                .map(v -> v.getPropertyPath() + " " + v.getMessage())
+                                                                .sorted()
+                                                                .collect(Collectors.toList());
+                                result.getResults().add(new ItemResult(todo.getId(), HttpStatus.BAD_REQUEST, errors));
+                            }
+                        }
+                        // Items with an id the user already has are left as they are, and reported as created like
+                        // they were by the request that created them, so a retried batch gets the same result
+                        result.setCreated(valid.size());
+
+                        return store.addAll(user.getName(), valid).thenReturn(result);
+                    })
+                    .onErrorMap(TodoStore.QuotaExceededException.class, Controller::quotaExceeded);
+    }
+
+    /**
+     * Replaces the todo with the given id, which moves it to the end of the list, or creates it if the user has no such
+     * todo. The id in the body must be the id in the path.
+     */
+    @PutMapping("/todos/{id}")
+    @PreAuthorize("not(hasRole('sre'))")
+    public Mono<ResponseEntity<Void>> update(Principal user, @PathVariable UUID id, @Valid @RequestBody Todo todo)
+    {
+        if (!id.equals(todo.getId()))
+        {
+            throw new ServerWebInputException("The id of the todo must be the id in the path");
+        }
+
+        return Mono.defer(() -> store.put(user.getName(), todo))
+                   .map(created -> ResponseEntity.status(created ? HttpStatus.CREATED : HttpStatus.NO_CONTENT)
+                                                 .<Void>build())
+                   .onErrorMap(TodoStore.QuotaExceededException.class, Controller::quotaExceeded);
+    }
+
+    @DeleteMapping("/todos/{id}")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    @PreAuthorize("not(hasRole('sre'))")
+    public Mono<Void> delete(Principal user, @PathVariable UUID id)
+    {
+        return store.remove(user.getName(), id)
+                    .filter(Boolean::booleanValue)
+                    .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND,
+                                                                                "No todo with id " + id)))
+                    .then();
+    }
+
+    private static ResponseStatusException quotaExceeded(TodoStore.QuotaExceededException e)
+    {
+        // The list stays full, so unlike a rate limit there is nothing to retry after
+        return new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+    }
+
+    static class Todos
+    {
+        private Collection<Todo> todos = new ArrayList<>();
+        private String next;
+
+        public Todos()
+        {
+        }
+
+        public Todos(Collection<Todo> todos)
+        {
+            this.todos = todos;
+        }
+
+        public Collection<Todo> getTodos()
         {
             return todos;
         }
 
-        public void setTodos(List<Todo> todos)
+        public void setTodos(Collection<Todo> todos)
         {
             this.todos = todos;
         }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public String getNext()
+        {
+            return next;
+        }
+
+        public void setNext(String next)
+        {
+            this.next = next;
+        }
+    }
+
+    /**
+     * A page of search results. The next cursor is taken from the first match that doesn't fit in the page, so a
+     * search stops as soon as the page is full.
+     */
+    private static class SearchResults
+    {
+        private final int limit;
+        private final boolean allUsers;
+        private final List<Match> matches = new ArrayList<>();
+        private String next;
+
+        SearchResults(int limit, boolean allUsers)
+        {
+            this.limit = limit;
+            this.allUsers = allUsers;
+        }
+
+        /**
+         * @param userName the user to include in the match, or null for a user's own search
+         */
+        boolean add(String userName, int position, Todo todo, boolean idOnly)
+        {
+            if (matches.size() == limit)
+            {
+                next = allUsers ? new SearchCursor(userName, position).encode() : encodeCursor(position);
+                return false;
+            }
+
+            matches.add(new Match(userName, todo.getId(), idOnly ? null : todo.getContent()));
+            return true;
+        }
+
+        public List<Match> getMatches()
+        {
+            return matches;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public String getNext()
+        {
+            return next;
+        }
+    }
+
+    private static class Match
+    {
+        private final String user;
+        private final UUID id;
+        private final String content;
+
+        Match(String user, UUID id, String content)
+        {
+            this.user = user;
+            this.id = id;
+            this.content = content;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public String getUser()
+        {
+            return user;
+        }
+
+        public UUID getId()
+        {
+            return id;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public String getContent()
+        {
+            return content;
+        }
+    }
+
+    /**
+     * A cursor into the search results of all users. It encodes the position of the next todo to return, followed by
+     * the name of the user it belongs to.
+     */
+    private static final class SearchCursor
+    {
+        private static final SearchCursor FIRST = new SearchCursor("", 0);
+
+        private final String userName;
+        private final int position;
+
+        SearchCursor(String userName, int position)
+        {
+            this.userName = userName;
+            this.position = position;
+        }
+
+        String encode()
+        {
+            byte[] name = userName.getBytes(StandardCharsets.UTF_8);
+            byte[] bytes = ByteBuffer.allocate(Long.BYTES + name.length).putLong(position).put(name).array();
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        }
+
+        static SearchCursor decode(String cursor)
+        {
+            if (cursor == null)
+            {
+                return FIRST;
+            }
+
+            try
+            {
+                ByteBuffer bytes = ByteBuffer.wrap(Base64.getUrlDecoder().decode(cursor));
+                long position = bytes.getLong();
+                if (position < 0 || position > Integer.MAX_VALUE)
+                {
+                    throw new IllegalArgumentException("Invalid position");
+                }
+                return new SearchCursor(StandardCharsets.UTF_8.decode(bytes).toString(), (int) position);
+            }
+            catch (IllegalArgumentException | BufferUnderflowException e)
+            {
+                throw new ServerWebInputException("Invalid cursor");
+            }
+        }
     }
 
-    private static class Todo
+    static class Todo
     {
         @NotNull
         private UUID id;
@@ -142,7 +654,58 @@ public class Controller
         }
     }
 
-    private static class User
+    static class BatchResult
+    {
+        private int created;
+        private final List<ItemResult> results = new ArrayList<>();
+
+        public int getCreated()
+        {
+            return created;
+        }
+
+        public void setCreated(int created)
+        {
+            this.created = created;
+        }
+
+        public List<ItemResult> getResults()
+        {
+            return results;
+        }
+    }
+
+    static class ItemResult
+    {
+        private final UUID id;
+        private final int status;
+        private final List<String> errors;
+
+        ItemResult(UUID id, HttpStatus status, List<String> errors)
+        {
+            this.id = id;
+            this.status = status.value();
+            this.errors = errors;
+        }
+
+        public UUID getId()
+        {
+            return id;
+        }
+
+        public int getStatus()
+        {
+            return status;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public List<String> getErrors()
+        {
+            return errors;
+        }
+    }
+
+    static class User
     {
         private String username;
         private List<String> groups;
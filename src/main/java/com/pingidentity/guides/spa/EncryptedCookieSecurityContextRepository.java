@@ -0,0 +1,374 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpCookie;
+import org.springframework.http.ResponseCookie;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.web.server.context.ServerSecurityContextRepository;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A {@link ServerSecurityContextRepository} that keeps the authenticated user in an encrypted cookie instead of the
+ * server's session store, so any instance of the server can serve any request. Enabled with
+ * {@code sessions.mode=cookie}.
+ * <p>
+ * The cookie holds the user name, the authorities, the time of the login and an idle deadline, encrypted and
+ * authenticated with AES-GCM. Requests after the deadline are unauthenticated. Each request moves the deadline forward,
+ * but the cookie is only reissued once it has moved by more than {@code sessions.cookie.refresh-interval}, so most
+ * requests only decrypt. The deadline never moves past {@code sessions.cookie.max-age} after the login, so a cookie in
+ * regular use still expires and the user has to log in again.
+ * <p>
+ * A cookie can't be revoked, as the server keeps no record of the cookies it issued. A copy of a cookie stays valid
+ * until its deadline, however long after logout, and the only way to invalidate cookies before then is to stop
+ * accepting the key they were encrypted with, which invalidates every cookie encrypted with it.
+ * <p>
+ * Keys are given as base64 encoded AES keys in {@code sessions.cookie.keys}, and must be the same on every instance.
+ * The first key encrypts new cookies and every key can decrypt, so keys are rotated by adding a new key first and
+ * removing the old one once its cookies have expired. Each cookie starts with an id derived from its key. Without
+ * configured keys, a random key is generated, and cookies only work with this instance until it restarts.
+ */
+@Component
+@ConditionalOnProperty(name = "sessions.mode", havingValue = "cookie")
+public class EncryptedCookieSecurityContextRepository implements ServerSecurityContextRepository
+{
+    private static final Logger logger = LoggerFactory.getLogger(EncryptedCookieSecurityContextRepository.class);
+
+    private static final byte FORMAT_VERSION = 2;
+    private static final int KEY_ID_BYTES = 4;
+    private static final int NONCE_BYTES = 12;
+    private static final int TAG_BITS = 128;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private final String cookieName;
+    private final long idleTimeoutMillis;
+    private final long refreshIntervalMillis;
+    private final long maxAgeMillis;
+    private final List<Key> keys = new ArrayList<>();
+    private final byte[] associatedData;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(EncryptedCookieSecurityContextRepository::newCipher);
+
+    @Autowired
+    public EncryptedCookieSecurityContextRepository(@Value("${sessions.cookie.name:AUTH}") String cookieName,
+                                                    @Value("${sessions.cookie.keys:}") String[] keys,
+                                                    @Value("${sessions.cookie.idle-timeout:5m}") Duration idleTimeout,
+                                                    @Value("${sessions.cookie.refresh-interval:1m}") Duration refreshInterval,
+                                                    @Value("${sessions.cookie.max-age:8h}") Duration maxAge)
+    {
+        this.cookieName = cookieName;
+        this.idleTimeoutMillis = idleTimeout.toMillis();
+        this.refreshIntervalMillis = refreshInterval.toMillis();
+        this.maxAgeMillis = maxAge.toMillis();
+        // Binds each cookie to its name, so a cookie can't be replayed under another name
+        this.associatedData = cookieName.getBytes(StandardCharsets.UTF_8);
+
+        for (String key : keys)
+        {
+            if (!key.trim().isEmpty())
+            {
+                this.keys.add(new Key(Base64.getDecoder().decode(key.trim())));
+            }
+        }
+        if (this.keys.isEmpty())
+        {
+            logger.warn("No sessions.cookie.keys configured. Session cookies are encrypted with a random key and " +
+                        "will only be accepted by this instance until it restarts.");
+            byte[] key = new byte[32];
+            random.nextBytes(key);
+            this.keys.add(new Key(key));
+        }
+    }
+
+    @Override
+    public Mono<Void> save(ServerWebExchange exchange, SecurityContext context)
+    {
+        return Mono.fromRunnable(() -> {
+            Authentication authentication = context == null ? null : context.getAuthentication();
+            if (authentication == null)
+            {
+                setCookie(exchange, cookie("").maxAge(0).build());
+            }
+            else
+            {
+                long now = System.currentTimeMillis();
+                writeCookie(exchange, authentication.getName(), authentication.getAuthorities(), now, now);
+            }
+        });
+    }
+
+    @Override
+    public Mono<SecurityContext> load(ServerWebExchange exchange)
+    {
+        return Mono.fromSupplier(() -> {
+            HttpCookie cookie = exchange.getRequest().getCookies().getFirst(cookieName);
+            if (cookie == null)
+            {
+                return null;
+            }
+
+            Contents contents = decrypt(cookie.getValue());
+            long now = System.currentTimeMillis();
+            if (contents == null || isExpired(contents, now))
+            {
+                return null;
+            }
+
+            if (deadline(contents.issuedMillis, now) - contents.deadlineMillis > refreshIntervalMillis)
+            {
+                writeCookie(exchange, contents.userName, contents.authorities, contents.issuedMillis, now);
+            }
+
+            User principal = new User(contents.userName, "", contents.authorities);
+            return new SecurityContextImpl(new UsernamePasswordAuthenticationToken(principal,
+                                                                                   null,
+                                                                                   contents.authorities));
+        });
+    }
+
+    private void writeCookie(ServerWebExchange exchange,
+                             String userName,
+                             Iterable<? extends GrantedAuthority> authorities,
+                             long issuedMillis,
+                             long nowMillis)
+    {
+        String value = encrypt(userName, authorities, issuedMillis, deadline(issuedMillis, nowMillis));
+        setCookie(exchange, cookie(value).build());
+    }
+
+    /**
+     * Sets the cookie of the response, replacing the one set earlier in the same exchange, such as by a refresh in
+     * {@link #load} followed by a login or logout in {@link #save}, so the response has a single Set-Cookie for it.
+     */
+    private void setCookie(ServerWebExchange exchange, ResponseCookie cookie)
+    {
+        exchange.getResponse().getCookies().set(cookieName, cookie);
+    }
+
+    /**
+     * @return the idle deadline of a cookie reissued now, which is at most {@code sessions.cookie.max-age} after the
+     *         cookie was first issued
+     */
+    long deadline(long issuedMillis, long nowMillis)
+    {
+        return Math.min(nowMillis + idleTimeoutMillis, issuedMillis + maxAgeMillis);
+    }
+
+    /**
+     * The maximum age is checked as well as the deadline, so lowering it also applies to the cookies already issued.
+     */
+    boolean isExpired(Contents contents, long nowMillis)
+    {
+        return nowMillis >= contents.deadlineMillis || nowMillis - contents.issuedMillis >= maxAgeMillis;
+    }
+
+    private ResponseCookie.ResponseCookieBuilder cookie(String value)
+    {
+        return ResponseCookie.from(cookieName, value)
+                             .path("/")
+                             .httpOnly(true)
+                             .secure(true)
+                             .sameSite("Lax");
+    }
+
+    String encrypt(String userName,
+                   Iterable<? extends GrantedAuthority> authorities,
+                   long issuedMillis,
+                   long deadlineMillis)
+    {
+        try
+        {
+            ByteArrayOutputStream plaintext = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(plaintext);
+            out.writeLong(issuedMillis);
+            out.writeLong(deadlineMillis);
+            out.writeUTF(userName);
+            List<String> names = new ArrayList<>();
+            for (GrantedAuthority authority : authorities)
+            {
+                names.add(authority.getAuthority());
+            }
+            out.writeShort(names.size());
+            for (String name : names)
+            {
+                out.writeUTF(name);
+            }
+
+            byte[] nonce = new byte[NONCE_BYTES];
+            random.nextBytes(nonce);
+            Key key = keys.get(0);
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, key.spec, new GCMParameterSpec(TAG_BITS, nonce));
+            cipher.updateAAD(associatedData);
+            byte[] ciphertext = cipher.doFinal(plaintext.toByteArray());
+
+            ByteBuffer token = ByteBuffer.allocate(1 + KEY_ID_BYTES + NONCE_BYTES + ciphertext.length);
+            token.put(FORMAT_VERSION).put(key.id).put(nonce).put(ciphertext);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(token.array());
+        }
+        catch (IOException | GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Failed to encrypt the session cookie", e);
+        }
+    }
+
+    /**
+     * @return the contents of the cookie, or null if it can't be decrypted with any of the keys
+     */
+    Contents decrypt(String value)
+    {
+        try
+        {
+            ByteBuffer token = ByteBuffer.wrap(Base64.getUrlDecoder().decode(value));
+            if (token.remaining() < 1 + KEY_ID_BYTES + NONCE_BYTES + TAG_BITS / 8 || token.get() != FORMAT_VERSION)
+            {
+                return null;
+            }
+
+            byte[] keyId = new byte[KEY_ID_BYTES];
+            token.get(keyId);
+            Key key = findKey(keyId);
+            if (key == null)
+            {
+                return null;
+            }
+
+            byte[] nonce = new byte[NONCE_BYTES];
+            token.get(nonce);
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, key.spec, new GCMParameterSpec(TAG_BITS, nonce));
+            cipher.updateAAD(associatedData);
+            byte[] plaintext = cipher.doFinal(token.array(), token.position(), token.remaining());
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext));
+            long issued = in.readLong();
+            long deadline = in.readLong();
+            String userName = in.readUTF();
+            int count = in.readUnsignedShort();
+            List<GrantedAuthority> authorities = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+            {
+                authorities.add(new SimpleGrantedAuthority(in.readUTF()));
+            }
+            return new Contents(userName, authorities, issued, deadline);
+        }
+        catch (IllegalArgumentException | IOException | GeneralSecurityException e)
+        {
+            // Tampered, truncated or encrypted with a retired key
+            return null;
+        }
+    }
+
+    private Key findKey(byte[] keyId)
+    {
+        for (Key key : keys)
+        {
+            if (MessageDigest.isEqual(key.id, keyId))
+            {
+                return key;
+            }
+        }
+        return null;
+    }
+
+    private static Cipher newCipher()
+    {
+        try
+        {
+            return Cipher.getInstance(TRANSFORMATION);
+        }
+        catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Key
+    {
+        private final SecretKeySpec spec;
+        private final byte[] id;
+
+        private Key(byte[] key)
+        {
+            if (key.length != 16 && key.length != 24 && key.length != 32)
+            {
+                throw new IllegalArgumentException("Session cookie keys must be 128, 192 or 256 bit AES keys");
+            }
+
+            this.spec = new SecretKeySpec(key, "AES");
+            try
+            {
+                byte[] digest = MessageDigest.getInstance("SHA-256").digest(key);
+                this.id = Arrays.copyOf(digest, KEY_ID_BYTES);
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    static final class Contents
+    {
+        final String userName;
+        final List<GrantedAuthority> authorities;
+        final long issuedMillis;
+        final long deadlineMillis;
+
+        private Contents(String userName, List<GrantedAuthority> authorities, long issuedMillis, long deadlineMillis)
+        {
+            this.userName = userName;
+            this.authorities = authorities;
+            this.issuedMillis = issuedMillis;
+            this.deadlineMillis = deadlineMillis;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pingidentity.guides.spa.TodoStore.Snapshot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A {@link RestController} that gives SREs an overview of the todos of all users.
+ * <p>
+ * {@code GET /fleet} reports the number of todos, the size of their content and the time of the last write of each
+ * user. These are kept up to date in each user's {@link Snapshot} by every write, so the overview only reads one
+ * snapshot per user and never looks at the todos themselves.
+ * <p>
+ * {@code GET /fleet/todos} exports the todos of all users as newline delimited JSON. Each user's todos are read from
+ * the snapshot current when the export reaches that user, so writers are never paused, and they are split into chunks
+ * that are encoded in parallel on {@code todos.export.concurrency} threads (default: one per CPU). Chunks are only
+ * encoded as the client reads them, so a slow client holds at most that many encoded chunks in memory.
+ */
+@RestController
+public class FleetController
+{
+    private static final int EXPORT_CHUNK_SIZE = 1024;
+
+    private final TodoStore store;
+    private final JsonFactory jsonFactory;
+    private final int exportConcurrency;
+
+    @Autowired
+    public FleetController(TodoStore store,
+                           ObjectMapper objectMapper,
+                           @Value("${todos.export.concurrency:0}") int exportConcurrency)
+    {
+        this.store = store;
+        this.jsonFactory = objectMapper.getFactory();
+        this.exportConcurrency = exportConcurrency > 0 ? exportConcurrency
+                                                       : Runtime.getRuntime().availableProcessors();
+    }
+
+    @GetMapping("/fleet")
+    @PreAuthorize("hasRole('sre')")
+    public Mono<Fleet> fleet()
+    {
+        return Mono.fromSupplier(this::collect);
+    }
+
+    @GetMapping(value = "/fleet/todos", produces = CodecConfiguration.APPLICATION_NDJSON_VALUE)
+    @PreAuthorize("hasRole('sre')")
+    public Flux<DataBuffer> export(ServerHttpResponse response)
+    {
+        DataBufferFactory bufferFactory = response.bufferFactory();
+        return Flux.fromIterable(store.getUserNames())
+                   .concatMapIterable(userName -> chunks(userName, store.read(userName)))
+                   .flatMapSequential(chunk -> Mono.fromCallable(() -> bufferFactory.wrap(encode(chunk)))
+                                                   .subscribeOn(Schedulers.parallel()),
+                                      exportConcurrency,
+                                      1);
+    }
+
+    private Fleet collect()
+    {
+        Fleet fleet = new Fleet();
+        for (String userName : store.getUserNames())
+        {
+            Snapshot todos = store.read(userName);
+            fleet.add(new UserSummary(userName,
+                                      todos.size(),
+                                      todos.getContentBytes(),
+                                      todos.getLastWriteTime() == 0 ? null
+                                                                    : Instant.ofEpochMilli(todos.getLastWriteTime())));
+        }
+        fleet.users.sort(Comparator.comparing(UserSummary::getUser));
+        return fleet;
+    }
+
+    private static List<Chunk> chunks(String userName, Snapshot todos)
+    {
+        // Chunks are ranges of slots, so the slots of replaced and removed todos make them smaller
+        List<Chunk> chunks = new ArrayList<>(todos.getEndSlot() / EXPORT_CHUNK_SIZE + 1);
+        for (int from = 0; from < todos.getEndSlot(); from += EXPORT_CHUNK_SIZE)
+        {
+            chunks.add(new Chunk(userName, todos, from, Math.min(todos.getEndSlot(), from + EXPORT_CHUNK_SIZE)));
+        }
+        return chunks;
+    }
+
+    private byte[] encode(Chunk chunk)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * (chunk.to - chunk.from));
+        char[] id = new char[TodoJsonSerializer.ID_LENGTH];
+        try (JsonGenerator generator = jsonFactory.createGenerator(out))
+        {
+            // Each todo is followed by a newline instead of the default separator between root values
+            generator.setRootValueSeparator(null);
+            for (int slot = chunk.todos.nextSlot(chunk.from); slot < chunk.to; slot = chunk.todos.nextSlot(slot + 1))
+            {
+                generator.writeStartObject();
+                generator.writeStringField("user", chunk.userName);
+                TodoJsonSerializer.writeFields(chunk.todos, slot, generator, id);
+                generator.writeEndObject();
+                generator.writeRaw('\n');
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A range of the slots of a user's todos in a snapshot.
+     */
+    private static final class Chunk
+    {
+        private final String userName;
+        private final Snapshot todos;
+        private final int from;
+        private final int to;
+
+        Chunk(String userName, Snapshot todos, int from, int to)
+        {
+            this.userName = userName;
+            this.todos = todos;
+            this.from = from;
+            this.to = to;
+        }
+    }
+
+    private static class Fleet
+    {
+        private long todos;
+        private long contentBytes;
+        private final List<UserSummary> users = new ArrayList<>();
+
+        void add(UserSummary user)
+        {
+            todos += user.todos;
+            contentBytes += user.contentBytes;
+            users.add(user);
+        }
+
+        public long getTodos()
+        {
+            return todos;
+        }
+
+        public long getContentBytes()
+        {
+            return contentBytes;
+        }
+
+        public List<UserSummary> getUsers()
+        {
+            return users;
+        }
+    }
+
+    private static class UserSummary
+    {
+        private final String user;
+        private final int todos;
+        private final long contentBytes;
+        private final Instant lastWrite;
+
+        UserSummary(String user, int todos, long contentBytes, Instant lastWrite)
+        {
+            this.user = user;
+            this.todos = todos;
+            this.contentBytes = contentBytes;
+            this.lastWrite = lastWrite;
+        }
+
+        public String getUser()
+        {
+            return user;
+        }
+
+        public int getTodos()
+        {
+            return todos;
+        }
+
+        public long getContentBytes()
+        {
+            return contentBytes;
+        }
+
+        @JsonInclude(JsonInclude.Include.NON_NULL)
+        public Instant getLastWrite()
+        {
+            return lastWrite;
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+import reactor.core.publisher.Mono;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link RestController} that exposes the request latencies recorded by {@link RequestMetricsFilter}, along with
+ * gauges and counters of the store, journal, search index, write limit, event, login, session and request log beans,
+ * to SREs.
+ * <p>
+ * Latencies are reported in milliseconds and rates in requests per second since the server started.
+ */
+@RestController
+public class MetricsController
+{
+    private static final String[] STATUS_CLASSES = {"none", "1xx", "2xx", "3xx", "4xx", "5xx"};
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final long startNanos = System.nanoTime();
+
+    private final RequestMetricsFilter requestMetrics;
+    private final RequestLogFilter requestLog;
+    private final TodoStore store;
+    private final TodoJournal journal;
+    private final TodoSearchIndex searchIndex;
+    private final TodoResponseCache responseCache;
+    private final WriteRateLimitFilter writeLimits;
+    private final TodoEvents events;
+    private final CachingAuthenticationManager authenticationManager;
+    private final BoundedWebSessionStore sessionStore;
+
+    @Autowired
+    public MetricsController(RequestMetricsFilter requestMetrics,
+                             RequestLogFilter requestLog,
+                             TodoStore store,
+                             TodoJournal journal,
+                             TodoSearchIndex searchIndex,
+                             TodoResponseCache responseCache,
+                             WriteRateLimitFilter writeLimits,
+                             TodoEvents events,
+                             CachingAuthenticationManager authenticationManager,
+                             BoundedWebSessionStore sessionStore)
+    {
+        this.requestMetrics = requestMetrics;
+        this.requestLog = requestLog;
+        this.store = store;
+        this.journal = journal;
+        this.searchIndex = searchIndex;
+        this.responseCache = responseCache;
+        this.writeLimits = writeLimits;
+        this.events = events;
+        this.authenticationManager = authenticationManager;
+        this.sessionStore = sessionStore;
+    }
+
+    @GetMapping("/metrics")
+    @PreAuthorize("hasRole('sre')")
+    public Mono<Map<String, Object>> metrics()
+    {
+        return Mono.fromSupplier(this::collect);
+    }
+
+    private Map<String, Object> collect()
+    {
+        double uptimeSeconds = (System.nanoTime() - startNanos) / 1e9;
+
+        Map<String, Object> routes = new TreeMap<>();
+        requestMetrics.forEachRoute((route, metrics) -> {
+            Map<String, Object> byStatusClass = new LinkedHashMap<>();
+            for (int i = 0; i < metrics.getStatusClassCount(); i++)
+            {
+                LatencyHistogram.Snapshot snapshot = metrics.getHistogram(i).snapshot();
+                if (snapshot.getCount() > 0)
+                {
+                    Map<String, Object> latencies = latencies(snapshot);
+                    latencies.put("rate", snapshot.getCount() / uptimeSeconds);
+                    byStatusClass.put(STATUS_CLASSES[i], latencies);
+                }
+            }
+            routes.put(route, byStatusClass);
+        });
+
+        Map<String, Object> storeMetrics = new LinkedHashMap<>();
+        storeMetrics.put("users", store.getUserCount());
+        storeMetrics.put("todos", store.getTodoCount());
+        storeMetrics.put("contentBytes", store.getContentBytes());
+        storeMetrics.put("removedTodos", store.getRemovedCount());
+        storeMetrics.put("compactions", store.getCompactionCount());
+        storeMetrics.put("offHeap", store.isOffHeap());
+        storeMetrics.put("arenaBytes", store.getArenaBytes());
+
+        Map<String, Object> journalMetrics = new LinkedHashMap<>();
+        journalMetrics.put("enabled", journal.isEnabled());
+        if (journal.isEnabled())
+        {
+            journalMetrics.put("recoveryTimeMillis", journal.getRecoveryTime().toMillis());
+            journalMetrics.put("writes", journal.getWriteCount());
+            journalMetrics.put("batches", journal.getBatchCount());
+            journalMetrics.put("writeLatency", latencies(journal.getWriteLatency()));
+        }
+
+        Map<String, Object> searchMetrics = new LinkedHashMap<>();
+        searchMetrics.put("words", searchIndex.getWordCount());
+        searchMetrics.put("postings", searchIndex.getPostingCount());
+
+        Map<String, Object> responseCacheMetrics = new LinkedHashMap<>();
+        long hits = responseCache.getHitCount();
+        long misses = responseCache.getMissCount();
+        responseCacheMetrics.put("entries", responseCache.getEntryCount());
+        responseCacheMetrics.put("bytes", responseCache.getUsedBytes());
+        responseCacheMetrics.put("maxBytes", responseCache.getMaxBytes());
+        responseCacheMetrics.put("hits", hits);
+        responseCacheMetrics.put("misses", misses);
+        responseCacheMetrics.put("hitRate", hits + misses == 0 ? 0 : (double) hits / (hits + misses));
+        responseCacheMetrics.put("evictions", responseCache.getEvictionCount());
+        responseCacheMetrics.put("invalidations", responseCache.getInvalidationCount());
+
+        Map<String, Object> writeLimitMetrics = new LinkedHashMap<>();
+        writeLimitMetrics.put("users", writeLimits.getUserCount());
+        writeLimitMetrics.put("rejected", writeLimits.getRejectedCount());
+        writeLimitMetrics.put("evictions", writeLimits.getEvictionCount());
+
+        Map<String, Object> eventMetrics = new LinkedHashMap<>();
+        eventMetrics.put("subscribers", events.getSubscriberCount());
+        eventMetrics.put("overflows", events.getOverflowCount());
+
+        Map<String, Object> loginMetrics = new LinkedHashMap<>();
+        loginMetrics.put("cacheHits", authenticationManager.getCacheHitCount());
+        loginMetrics.put("cacheMisses", authenticationManager.getCacheMissCount());
+        loginMetrics.put("rejected", authenticationManager.getRejectedCount());
+
+        Map<String, Object> sessionMetrics = new LinkedHashMap<>();
+        sessionMetrics.put("live", sessionStore.getSessionCount());
+        sessionMetrics.put("attributes", sessionStore.getAttributeCount());
+        sessionMetrics.put("evictions", sessionStore.getEvictionCount());
+        sessionMetrics.put("expirations", sessionStore.getExpirationCount());
+        sessionMetrics.put("lookupLatency", latencies(sessionStore.getLookupLatency()));
+
+        Map<String, Object> requestLogMetrics = new LinkedHashMap<>();
+        requestLogMetrics.put("dropped", requestLog.getDroppedCount());
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("uptimeSeconds", uptimeSeconds);
+        result.put("routes", routes);
+        result.put("store", storeMetrics);
+        result.put("journal", journalMetrics);
+        result.put("search", searchMetrics);
+        result.put("responseCache", responseCacheMetrics);
+        result.put("writeLimits", writeLimitMetrics);
+        result.put("events", eventMetrics);
+        result.put("login", loginMetrics);
+        result.put("sessions", sessionMetrics);
+        result.put("requestLog", requestLogMetrics);
+        return result;
+    }
+
+    private static Map<String, Object> latencies(LatencyHistogram.Snapshot snapshot)
+    {
+        Map<String, Object> latencies = new LinkedHashMap<>();
+        latencies.put("count", snapshot.getCount());
+        latencies.put("mean", millis(snapshot.getMeanNanos()));
+        for (int i = 0; i < PERCENTILES.length; i++)
+        {
+            latencies.put(PERCENTILE_NAMES[i], millis(snapshot.getValueAtPercentile(PERCENTILES[i])));
+        }
+        latencies.put("max", millis(snapshot.getMaxNanos()));
+        return latencies;
+    }
+
+    private static double millis(long nanos)
+    {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
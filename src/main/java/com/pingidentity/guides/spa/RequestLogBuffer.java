@@ -0,0 +1,124 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded ring buffer of request log entries, with many producers and a single consumer.
+ * <p>
+ * The fields of the entries are kept in preallocated parallel arrays, so recording an entry doesn't allocate.
+ * Producers claim a slot by advancing a shared sequence and publish it by writing the sequence into the slot, which is
+ * what the consumer waits for. When the consumer falls a full buffer behind, new entries are rejected rather than
+ * waiting for space.
+ */
+final class RequestLogBuffer
+{
+    private final int mask;
+    private final AtomicLongArray published;
+    private final String[] methods;
+    private final URI[] uris;
+    private final int[] statuses;
+    private final long[] contentLengths;
+    private final long[] latencyNanos;
+
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+
+    RequestLogBuffer(int requestedCapacity)
+    {
+        int capacity = Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+        mask = capacity - 1;
+        published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+        {
+            published.set(i, -1);
+        }
+        methods = new String[capacity];
+        uris = new URI[capacity];
+        statuses = new int[capacity];
+        contentLengths = new long[capacity];
+        latencyNanos = new long[capacity];
+    }
+
+    /**
+     * Records an entry, unless the buffer is full. The URI is only formatted by the consumer, off the request path.
+     *
+     * @return false if the entry was dropped because the buffer is full
+     */
+    boolean offer(String method, URI uri, int status, long contentLength, long latency)
+    {
+        long sequence;
+        do
+        {
+            sequence = claimed.get();
+            if (sequence - consumed > mask)
+            {
+                return false;
+            }
+        }
+        while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) sequence & mask;
+        methods[slot] = method;
+        uris[slot] = uri;
+        statuses[slot] = status;
+        contentLengths[slot] = contentLength;
+        latencyNanos[slot] = latency;
+        published.lazySet(slot, sequence);
+        return true;
+    }
+
+    /**
+     * Passes the published entries, in order, to the consumer. Must only be called from one thread at a time.
+     *
+     * @param consumer   receives the entries
+     * @param maxEntries the maximum number of entries to drain
+     * @return the number of entries drained
+     */
+    int drain(Consumer consumer, int maxEntries)
+    {
+        long sequence = consumed;
+        int drained = 0;
+        while (drained < maxEntries)
+        {
+            int slot = (int) sequence & mask;
+            if (published.get(slot) != sequence)
+            {
+                break;
+            }
+
+            consumer.accept(methods[slot], uris[slot], statuses[slot], contentLengths[slot], latencyNanos[slot]);
+            methods[slot] = null;
+            uris[slot] = null;
+            sequence++;
+            drained++;
+            // Release the slot to producers once it has been read
+            consumed = sequence;
+        }
+        return drained;
+    }
+
+    interface Consumer
+    {
+        void accept(String method, URI uri, int status, long contentLength, long latencyNanos);
+    }
+}
@@ -20,18 +20,31 @@ package com.pingidentity.guides.spa;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.Ordered;
 import org.springframework.core.annotation.Order;
+import org.springframework.http.server.reactive.ServerHttpRequest;
 import org.springframework.stereotype.Component;
 import org.springframework.web.server.ServerWebExchange;
 import org.springframework.web.server.WebFilter;
 import org.springframework.web.server.WebFilterChain;
 import reactor.core.publisher.Mono;
 
-import java.security.Principal;
+import javax.annotation.PreDestroy;
+import java.net.URI;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
- * A {@link WebFilter} that logs the request line and the response status code for a {@link ServerWebExchange}
+ * A {@link WebFilter} that logs the request line, the response status code, the response size and the latency for a
+ * {@link ServerWebExchange}
+ * <p>
+ * Requests are only recorded into a {@link RequestLogBuffer} on the request path. A background thread drains the
+ * buffer and formats and logs the entries in batches. A fraction of requests can be sampled with
+ * {@code request-log.sample-rate}, and entries that don't fit in the buffer are counted and reported as dropped.
  */
 @Component
 @Order(Ordered.HIGHEST_PRECEDENCE)
@@ -39,18 +52,137 @@ public class RequestLogFilter implements WebFilter
 {
     private static final Logger logger = LoggerFactory.getLogger(RequestLogFilter.class);
 
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final long DRAIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long DROP_REPORT_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final RequestLogBuffer buffer;
+    private final double sampleRate;
+    private final LongAdder dropped = new LongAdder();
+    private final StringBuilder line = new StringBuilder(256);
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    @Autowired
+    public RequestLogFilter(@Value("${request-log.buffer-size:8192}") int bufferSize,
+                            @Value("${request-log.sample-rate:1.0}") double sampleRate)
+    {
+        this.buffer = new RequestLogBuffer(bufferSize);
+        this.sampleRate = sampleRate;
+        this.writer = new Thread(this::runWriter, "request-log-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
     @Override
     public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain)
     {
+        if (!isSampled())
+        {
+            return chain.filter(exchange);
+        }
+
+        long start = System.nanoTime();
         return chain.filter(exchange)
-                    .doFinally(signalType -> logRequest(exchange));
+                    .doFinally(signalType -> logRequest(exchange, System.nanoTime() - start));
+    }
+
+    /**
+     * @return the number of log entries dropped because the buffer was full
+     */
+    public long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException
+    {
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+    private boolean isSampled()
+    {
+        return logger.isInfoEnabled() && (sampleRate >= 1.0 || ThreadLocalRandom.current().nextDouble() < sampleRate);
+    }
+
+    private void logRequest(ServerWebExchange exchange, long latencyNanos)
+    {
+        ServerHttpRequest request = exchange.getRequest();
+        Integer status = exchange.getResponse().getRawStatusCode();
+        if (!buffer.offer(request.getMethodValue(),
+                          request.getURI(),
+                          status == null ? 0 : status,
+                          exchange.getResponse().getHeaders().getContentLength(),
+                          latencyNanos))
+        {
+            dropped.increment();
+        }
+    }
+
+    private void runWriter()
+    {
+        long reportedDrops = 0;
+        long lastReport = System.nanoTime();
+        while (running)
+        {
+            if (buffer.drain(this::writeEntry, MAX_BATCH_SIZE) < MAX_BATCH_SIZE)
+            {
+                LockSupport.parkNanos(this, DRAIN_INTERVAL_NANOS);
+            }
+
+            long now = System.nanoTime();
+            if (now - lastReport >= DROP_REPORT_INTERVAL_NANOS)
+            {
+                long drops = dropped.sum();
+                if (drops > reportedDrops)
+                {
+                    logger.warn("Dropped {} request log entries because the buffer was full", drops - reportedDrops);
+                    reportedDrops = drops;
+                }
+                lastReport = now;
+            }
+        }
+
+        while (buffer.drain(this::writeEntry, MAX_BATCH_SIZE) > 0)
+        {
+            // Flush what was recorded before shutdown
+        }
+    }
+
+    private void writeEntry(String method, URI uri, int status, long contentLength, long latencyNanos)
+    {
+        line.setLength(0);
+        line.append(method).append(' ').append(uri).append(' ').append(status).append(' ');
+        if (contentLength < 0)
+        {
+            line.append('-');
+        }
+        else
+        {
+            line.append(contentLength);
+        }
+        line.append(' ');
+        appendMillis(latencyNanos);
+        line.append("ms");
+        logger.info(line.toString());
     }
 
-    private void logRequest(ServerWebExchange exchange)
+    private void appendMillis(long nanos)
     {
-        logger.info("{} {} {}",
-                    exchange.getRequest().getMethodValue(),
-                    exchange.getRequest().getURI(),
-                    exchange.getResponse().getRawStatusCode());
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        line.append(micros / 1000).append('.');
+        long fraction = micros % 1000;
+        if (fraction < 100)
+        {
+            line.append('0');
+        }
+        if (fraction < 10)
+        {
+            line.append('0');
+        }
+        line.append(fraction);
     }
 }
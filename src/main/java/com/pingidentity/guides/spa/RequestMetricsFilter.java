@@ -0,0 +1,159 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import org.springframework.web.util.pattern.PathPattern;
+import reactor.core.publisher.Mono;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link WebFilter} that records the latency of each {@link ServerWebExchange} in a {@link LatencyHistogram} per
+ * route and status class.
+ * <p>
+ * The route is the path pattern of the matching handler, the id of the matching gateway route, {@value #STATIC_ROUTE}
+ * for files served by the {@link StaticAssetFilter}, or the path of the login and logout endpoints, which are handled
+ * by the security filters. Any other request, including requests that
+ * are rejected before a handler is matched, is recorded as {@value #UNMATCHED_ROUTE}. Recording doesn't allocate once
+ * a route has been seen.
+ * <p>
+ * The gateway only exists in dev mode, so this filter doesn't depend on it: the id of a gateway route is passed in the
+ * {@link #ROUTE_ATTRIBUTE} attribute, which is set by a gateway filter in {@code DevSupportConfiguration}.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 1)
+public class RequestMetricsFilter implements WebFilter
+{
+    static final String UNMATCHED_ROUTE = "unmatched";
+    static final String ROUTE_ATTRIBUTE = RequestMetricsFilter.class.getName() + ".route";
+
+    private static final String STATIC_ROUTE = "static";
+    private static final String LOGIN_ROUTE = "/login";
+    private static final String LOGOUT_ROUTE = "/logout";
+
+    private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain)
+    {
+        long start = System.nanoTime();
+        return chain.filter(exchange)
+                    .doFinally(signalType -> record(exchange, System.nanoTime() - start));
+    }
+
+    /**
+     * Visits the metrics of each route seen so far.
+     */
+    void forEachRoute(BiConsumer<String, RouteMetrics> consumer)
+    {
+        for (Map.Entry<String, RouteMetrics> entry : routes.entrySet())
+        {
+            consumer.accept(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void record(ServerWebExchange exchange, long latencyNanos)
+    {
+        String route = route(exchange);
+        RouteMetrics metrics = routes.get(route);
+        if (metrics == null)
+        {
+            metrics = routes.computeIfAbsent(route, unused -> new RouteMetrics());
+        }
+
+        Integer status = exchange.getResponse().getRawStatusCode();
+        metrics.record(status == null ? 0 : status / 100, latencyNanos);
+    }
+
+    private static String route(ServerWebExchange exchange)
+    {
+        PathPattern pattern = exchange.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+        if (pattern != null)
+        {
+            return pattern.getPatternString();
+        }
+
+        String gatewayRoute = exchange.getAttribute(ROUTE_ATTRIBUTE);
+        if (gatewayRoute != null)
+        {
+            return gatewayRoute;
+        }
+
+        if (exchange.getAttribute(StaticAssetFilter.ASSET_ATTRIBUTE) != null)
+        {
+            return STATIC_ROUTE;
+        }
+
+        String path = exchange.getRequest().getPath().value();
+        if (LOGIN_ROUTE.equals(path))
+        {
+            return LOGIN_ROUTE;
+        }
+        if (LOGOUT_ROUTE.equals(path))
+        {
+            return LOGOUT_ROUTE;
+        }
+        return UNMATCHED_ROUTE;
+    }
+
+    /**
+     * The latencies for a route, by status class. Index 0 holds exchanges that completed without a status.
+     */
+    static final class RouteMetrics
+    {
+        private final LatencyHistogram[] byStatusClass = new LatencyHistogram[6];
+
+        private RouteMetrics()
+        {
+            for (int i = 0; i < byStatusClass.length; i++)
+            {
+                byStatusClass[i] = new LatencyHistogram();
+            }
+        }
+
+        private void record(int statusClass, long latencyNanos)
+        {
+            int index = statusClass > 0 && statusClass < byStatusClass.length ? statusClass : 0;
+            byStatusClass[index].record(latencyNanos);
+        }
+
+        /**
+         * @param statusClass the first digit of the status code, or 0 for exchanges without a status
+         */
+        LatencyHistogram getHistogram(int statusClass)
+        {
+            return byStatusClass[statusClass];
+        }
+
+        int getStatusClassCount()
+        {
+            return byStatusClass.length;
+        }
+    }
+}
@@ -18,10 +18,11 @@
 
 package com.pingidentity.guides.spa;
 
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Import;
 import org.springframework.http.HttpStatus;
 import org.springframework.security.config.annotation.method.configuration.EnableReactiveMethodSecurity;
 import org.springframework.security.config.annotation.web.reactive.EnableWebFluxSecurity;
@@ -37,7 +38,10 @@ import org.springframework.security.web.server.authentication.HttpStatusServerEn
 import org.springframework.security.web.server.authentication.RedirectServerAuthenticationSuccessHandler;
 import org.springframework.security.web.server.authentication.ServerAuthenticationSuccessHandler;
 import org.springframework.security.web.server.authentication.logout.HttpStatusReturningServerLogoutSuccessHandler;
+import org.springframework.security.web.server.authentication.logout.SecurityContextServerLogoutHandler;
+import org.springframework.security.web.server.context.ServerSecurityContextRepository;
 import org.springframework.security.web.server.csrf.CookieServerCsrfTokenRepository;
+import org.springframework.security.web.server.savedrequest.NoOpServerRequestCache;
 import org.springframework.security.web.server.ui.LoginPageGeneratingWebFilter;
 import reactor.core.publisher.Mono;
 
@@ -46,18 +50,20 @@ import java.time.Duration;
 @SpringBootApplication
 @EnableWebFluxSecurity
 @EnableReactiveMethodSecurity
-@Import(DevSupportConfiguration.class)
 public class ServerApplication
 {
     private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(5);
 
     @Bean
-    public SecurityWebFilterChain springSecurityFilterChain(ServerHttpSecurity http)
+    public SecurityWebFilterChain springSecurityFilterChain(ServerHttpSecurity http,
+                                                           ObjectProvider<EncryptedCookieSecurityContextRepository> cookieRepository)
     {
         // Changes from the default:
         // - Don't redirect unauthenticated requests. The SPA redirects the browser to /login via a user action.
         // - Use a cookie to pass the CSRF token to the JS to include in the X-Xsrf-Token request header field
         // - Don't redirect on logout. The SPA renders the original login page after logout.
+        // The static content is only permitted here for dev mode. Otherwise, the StaticAssetFilter serves it before
+        // these filters run.
         http.authorizeExchange(exchanges -> exchanges.pathMatchers("/",
                                                                    "/__parcel_source_root/**",
                                                                    "/index.*",
@@ -69,9 +75,35 @@ public class ServerApplication
             .logout(logoutSpec -> logoutSpec.logoutSuccessHandler(new HttpStatusReturningServerLogoutSuccessHandler()))
             .exceptionHandling(exception -> exception.authenticationEntryPoint(authenticationEntryPoint()));
         enableDefaultLoginPage(http);
+
+        EncryptedCookieSecurityContextRepository securityContextRepository = cookieRepository.getIfAvailable();
+        if (securityContextRepository != null)
+        {
+            useStatelessSessions(http, securityContextRepository);
+        }
         return http.build();
     }
 
+    /**
+     * Keeps the security context in an encrypted cookie rather than the {@link org.springframework.web.server.WebSession},
+     * so no session is created. The CSRF token is already kept in a cookie.
+     */
+    private void useStatelessSessions(ServerHttpSecurity http, ServerSecurityContextRepository repository)
+    {
+        SecurityContextServerLogoutHandler logoutHandler = new SecurityContextServerLogoutHandler();
+        logoutHandler.setSecurityContextRepository(repository);
+
+        // The default request cache and success handler would create a session
+        RedirectServerAuthenticationSuccessHandler successHandler = new RedirectServerAuthenticationSuccessHandler("/");
+        successHandler.setRequestCache(NoOpServerRequestCache.getInstance());
+
+        http.securityContextRepository(repository)
+            .requestCache(requestCache -> requestCache.requestCache(NoOpServerRequestCache.getInstance()))
+            .formLogin(form -> form.securityContextRepository(repository)
+                                   .authenticationSuccessHandler(successHandler))
+            .logout(logoutSpec -> logoutSpec.logoutHandler(logoutHandler));
+    }
+
     private ServerAuthenticationSuccessHandler successHandler()
     {
         ServerAuthenticationSuccessHandler setIdleTimeout =
@@ -126,6 +158,11 @@ public class ServerApplication
 
     public static void main(String[] args)
     {
-        SpringApplication.run(ServerApplication.class, args);
+        ConfigurableApplicationContext context = SpringApplication.run(ServerApplication.class, args);
+        if (context.getEnvironment().getProperty("startup.training-run", Boolean.class, false))
+        {
+            // Stops once started, so the JVM can write the classes loaded so far to a class data sharing archive
+            System.exit(SpringApplication.exit(context));
+        }
     }
 }
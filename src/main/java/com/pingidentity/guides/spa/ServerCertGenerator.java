@@ -27,22 +27,28 @@ import java.nio.file.Paths;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.security.KeyStore;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.Certificate;
+import java.security.spec.ECGenParameterSpec;
 import java.sql.Date;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Locale;
 import java.util.Vector;
 
 /**
  * A utility to generate the server.p12 file to be used by the Spring Boot server.
+ * <p>
+ * The key store can hold an EC P-256 key, an RSA 2048 key, or both, each with its own self-signed certificate. With
+ * both, the server uses the EC certificate for clients that support ECDSA, which makes the handshake much cheaper
+ * for the server, and falls back to RSA for other clients.
  */
 @SuppressWarnings("sunapi")
 public final class ServerCertGenerator
 {
-    private static final String P12_PASSWORD = "password";
+    static final String P12_PASSWORD = "password";
     private static final int[] SERVER_AUTH_KEY_USAGE_OID = {1, 3, 6, 1, 5, 5, 7, 3, 1};
+    private static final String DEFAULT_KEY_TYPES = "ec,rsa";
 
     private ServerCertGenerator()
     {
@@ -50,9 +56,9 @@ public final class ServerCertGenerator
 
     public static void main(String[] args) throws Exception
     {
-        if (args.length != 1)
+        if (args.length < 1 || args.length > 2)
         {
-            System.out.println("Usage: program <destination path for server certificate .p12 file>");
+            System.out.println("Usage: program <destination path for server certificate .p12 file> [ec,rsa|ec|rsa]");
             System.exit(1);
         }
 
@@ -64,16 +70,43 @@ public final class ServerCertGenerator
             return;
         }
 
-        generateCert(serverCertPath);
-        System.out.printf("Generated server certificate in %s.", serverCertPath);
+        String keyTypes = args.length > 1 ? args[1] : DEFAULT_KEY_TYPES;
+        try (OutputStream out = Files.newOutputStream(serverCertPath))
+        {
+            generateKeyStore(keyTypes).store(out, P12_PASSWORD.toCharArray());
+            out.flush();
+        }
+        System.out.printf("Generated server certificate with %s keys in %s.%n", keyTypes, serverCertPath);
     }
 
-    private static void generateCert(Path serverCertPath) throws Exception
+    /**
+     * @param keyTypes a comma separated list of {@code ec} and {@code rsa}
+     * @return a PKCS12 key store with a key and a self-signed certificate for localhost for each key type, using the
+     * key type as alias
+     */
+    static KeyStore generateKeyStore(String keyTypes) throws Exception
     {
-        SecureRandom secureRandom = SecureRandom.getInstance("SHA1PRNG");
-
-        KeyPair keyPair = generateKeyPair();
+        KeyStore p12File = KeyStore.getInstance("PKCS12");
+        p12File.load(null, P12_PASSWORD.toCharArray());
+        SecureRandom secureRandom = new SecureRandom();
+        for (String keyTypeName : keyTypes.split(","))
+        {
+            KeyType keyType = KeyType.valueOf(keyTypeName.trim().toUpperCase(Locale.ROOT));
+            KeyPair keyPair = keyType.generateKeyPair(secureRandom);
+            p12File.setEntry(keyType.name().toLowerCase(Locale.ROOT),
+                             new KeyStore.PrivateKeyEntry(keyPair.getPrivate(),
+                                                          new Certificate[]{ generateCert(keyPair,
+                                                                                          keyType.signatureAlgorithm,
+                                                                                          secureRandom) }),
+                             new KeyStore.PasswordProtection(P12_PASSWORD.toCharArray()));
+        }
+        return p12File;
+    }
 
+    private static Certificate generateCert(KeyPair keyPair,
+                                            String signatureAlgorithm,
+                                            SecureRandom secureRandom) throws Exception
+    {
         X500Name name = new X500Name("CN=localhost");
 
         Instant now = Instant.now();
@@ -89,7 +122,7 @@ public final class ServerCertGenerator
         certInfo.set(X509CertInfo.ISSUER, name);
         certInfo.set(X509CertInfo.VALIDITY, new CertificateValidity(Date.from(notBefore), Date.from(notAfter)));
         certInfo.set(X509CertInfo.KEY, new CertificateX509Key(keyPair.getPublic()));
-        certInfo.set(X509CertInfo.ALGORITHM_ID, new CertificateAlgorithmId(AlgorithmId.get("SHA256withRSA")));
+        certInfo.set(X509CertInfo.ALGORITHM_ID, new CertificateAlgorithmId(AlgorithmId.get(signatureAlgorithm)));
 
         CertificateExtensions extensions = new CertificateExtensions();
 
@@ -114,26 +147,34 @@ public final class ServerCertGenerator
         certInfo.set(CertificateExtensions.NAME, extensions);
 
         X509CertImpl cert = new X509CertImpl(certInfo);
-        cert.sign(keyPair.getPrivate(), "SHA256withRSA");
+        cert.sign(keyPair.getPrivate(), signatureAlgorithm);
+        return cert;
+    }
 
-        try (OutputStream out = Files.newOutputStream(serverCertPath))
-        {
-            KeyStore p12File = KeyStore.getInstance("PKCS12");
-            p12File.load(null, P12_PASSWORD.toCharArray());
-            p12File.setEntry("cert",
-                             new KeyStore.PrivateKeyEntry(keyPair.getPrivate(),
-                                                          new Certificate[]{ cert }),
-                             new KeyStore.PasswordProtection(P12_PASSWORD.toCharArray()));
+    private enum KeyType
+    {
+        EC("SHA256withECDSA"),
+        RSA("SHA256withRSA");
 
-            p12File.store(out, P12_PASSWORD.toCharArray());
-            out.flush();
+        private final String signatureAlgorithm;
+
+        KeyType(String signatureAlgorithm)
+        {
+            this.signatureAlgorithm = signatureAlgorithm;
         }
-    }
 
-    private static KeyPair generateKeyPair() throws NoSuchAlgorithmException
-    {
-        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
-        generator.initialize(2048);
-        return generator.generateKeyPair();
+        KeyPair generateKeyPair(SecureRandom secureRandom) throws Exception
+        {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(name());
+            if (this == EC)
+            {
+                generator.initialize(new ECGenParameterSpec("secp256r1"), secureRandom);
+            }
+            else
+            {
+                generator.initialize(2048, secureRandom);
+            }
+            return generator.generateKeyPair();
+        }
     }
 }
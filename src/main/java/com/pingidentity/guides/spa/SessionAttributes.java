@@ -0,0 +1,205 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A thread-safe map of session attributes, kept as alternating keys and values in a single array.
+ * <p>
+ * Sessions only hold a handful of attributes, usually just the security context, so a linear search is as fast as
+ * hashing and the map costs a fraction of the memory of a {@link java.util.concurrent.ConcurrentHashMap}. The array
+ * is only allocated once the first attribute is added. Iterators work on a copy of the attributes taken when they
+ * are created.
+ * <p>
+ * Attributes can't be null. Putting a null value removes the attribute, so it doesn't count towards the size, which
+ * would otherwise start and store a session that holds nothing.
+ */
+final class SessionAttributes extends AbstractMap<String, Object>
+{
+    private static final Object[] EMPTY = {};
+
+    private Object[] entries = EMPTY;
+    private int size;
+
+    @Override
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    @Override
+    public synchronized boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    @Override
+    public synchronized boolean containsKey(Object key)
+    {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public synchronized Object get(Object key)
+    {
+        int index = indexOf(key);
+        return index < 0 ? null : entries[index + 1];
+    }
+
+    @Override
+    public synchronized Object put(String key, Object value)
+    {
+        if (key == null)
+        {
+            throw new NullPointerException("Session attribute names can't be null");
+        }
+        if (value == null)
+        {
+            return remove(key);
+        }
+
+        int index = indexOf(key);
+        if (index >= 0)
+        {
+            Object previous = entries[index + 1];
+            entries[index + 1] = value;
+            return previous;
+        }
+
+        if (size * 2 == entries.length)
+        {
+            entries = Arrays.copyOf(entries, Math.max(4, entries.length * 2));
+        }
+        entries[size * 2] = key;
+        entries[size * 2 + 1] = value;
+        size++;
+        return null;
+    }
+
+    @Override
+    public synchronized Object remove(Object key)
+    {
+        int index = indexOf(key);
+        if (index < 0)
+        {
+            return null;
+        }
+
+        Object previous = entries[index + 1];
+        int last = (size - 1) * 2;
+        entries[index] = entries[last];
+        entries[index + 1] = entries[last + 1];
+        entries[last] = null;
+        entries[last + 1] = null;
+        size--;
+        return previous;
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        entries = EMPTY;
+        size = 0;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet()
+    {
+        return new AbstractSet<Entry<String, Object>>()
+        {
+            @Override
+            public Iterator<Entry<String, Object>> iterator()
+            {
+                return new SnapshotIterator(snapshot());
+            }
+
+            @Override
+            public int size()
+            {
+                return SessionAttributes.this.size();
+            }
+        };
+    }
+
+    private synchronized Object[] snapshot()
+    {
+        return Arrays.copyOf(entries, size * 2);
+    }
+
+    private int indexOf(Object key)
+    {
+        for (int i = 0; i < size * 2; i += 2)
+        {
+            if (entries[i].equals(key))
+            {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private final class SnapshotIterator implements Iterator<Entry<String, Object>>
+    {
+        private final Object[] snapshot;
+        private int next;
+        private String current;
+
+        private SnapshotIterator(Object[] snapshot)
+        {
+            this.snapshot = snapshot;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return next < snapshot.length;
+        }
+
+        @Override
+        public Entry<String, Object> next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+
+            current = (String) snapshot[next];
+            Entry<String, Object> entry = new SimpleImmutableEntry<>(current, snapshot[next + 1]);
+            next += 2;
+            return entry;
+        }
+
+        @Override
+        public void remove()
+        {
+            if (current == null)
+            {
+                throw new IllegalStateException();
+            }
+            SessionAttributes.this.remove(current);
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.core.io.ResourceLoader;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.http.ZeroCopyHttpOutputMessage;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.publisher.Mono;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link WebFilter} that serves the SPA bundle built by parcel ahead of the security filters, so requests for these
+ * public files skip the session lookup, CSRF checks and handler mapping. It's disabled in dev mode, where the bundle
+ * is served by the parcel dev server.
+ * <p>
+ * The files under {@code static-assets.location} are indexed at startup. Parcel puts a content hash in the name of
+ * every file except the HTML entry point, so hashed files are cached by browsers for a year without revalidation,
+ * and other files are revalidated with their ETag on every use. When the build generated {@code .br} or
+ * {@code .gz} variants of a file, the smallest variant accepted by the client is sent. Files on disk are sent with
+ * zero-copy file transfer, and files in a jar are kept in memory.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 2)
+@ConditionalOnProperty(name = "frontend-dev-mode", havingValue = "false", matchIfMissing = true)
+public class StaticAssetFilter implements WebFilter
+{
+    static final String ASSET_ATTRIBUTE = StaticAssetFilter.class.getName() + ".ASSET";
+
+    private static final Logger logger = LoggerFactory.getLogger(StaticAssetFilter.class);
+
+    private static final String INDEX = "/index.html";
+    private static final String IMMUTABLE = "public, max-age=31536000, immutable";
+    private static final String REVALIDATE = "no-cache";
+    private static final Pattern CONTENT_HASH = Pattern.compile("\\.[0-9a-f]{8,}\\.");
+    private static final List<String> VARY = Collections.singletonList(HttpHeaders.ACCEPT_ENCODING);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // The encodings generated by the build, from the most preferred
+    private static final String[] ENCODINGS = {"br", "gzip"};
+    private static final String[] ENCODING_SUFFIXES = {".br", ".gz"};
+
+    private final Map<String, Asset> assets = new HashMap<>();
+
+    @Autowired
+    public StaticAssetFilter(ResourceLoader resourceLoader,
+                             @Value("${static-assets.location:classpath:/static/}") String location)
+    {
+        try
+        {
+            indexAssets(new PathMatchingResourcePatternResolver(resourceLoader), location);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Unable to index the static assets in " + location, e);
+        }
+
+        Asset index = assets.get(INDEX);
+        if (index != null)
+        {
+            assets.put("/", index);
+        }
+        logger.info("Serving {} static assets from {}", assets.size(), location);
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain)
+    {
+        ServerHttpRequest request = exchange.getRequest();
+        HttpMethod method = request.getMethod();
+        if (method != HttpMethod.GET && method != HttpMethod.HEAD)
+        {
+            return chain.filter(exchange);
+        }
+
+        Asset asset = assets.get(request.getPath().pathWithinApplication().value());
+        if (asset == null)
+        {
+            return chain.filter(exchange);
+        }
+
+        exchange.getAttributes().put(ASSET_ATTRIBUTE, asset);
+        Variant variant = asset.select(request.getHeaders().get(HttpHeaders.ACCEPT_ENCODING));
+
+        ServerHttpResponse response = exchange.getResponse();
+        HttpHeaders headers = response.getHeaders();
+        asset.writeHeaders(headers, request.getSslInfo() != null);
+        headers.setETag(variant.eTag);
+        if (variant.encoding != null)
+        {
+            headers.set(HttpHeaders.CONTENT_ENCODING, variant.encoding);
+        }
+
+        if (variant.matches(request.getHeaders().getIfNoneMatch()))
+        {
+            response.setStatusCode(HttpStatus.NOT_MODIFIED);
+            return response.setComplete();
+        }
+
+        headers.setContentLength(variant.length);
+        if (method == HttpMethod.HEAD)
+        {
+            return response.setComplete();
+        }
+        if (variant.file != null)
+        {
+            if (response instanceof ZeroCopyHttpOutputMessage)
+            {
+                return ((ZeroCopyHttpOutputMessage) response).writeWith(variant.file, 0, variant.length);
+            }
+            return response.writeWith(DataBufferUtils.read(new FileSystemResource(variant.file),
+                                                            response.bufferFactory(),
+                                                            BUFFER_SIZE));
+        }
+        return response.writeWith(Mono.fromSupplier(() -> response.bufferFactory().wrap(variant.content)));
+    }
+
+    private void indexAssets(PathMatchingResourcePatternResolver resolver, String location) throws IOException
+    {
+        Resource[] resources = resolver.getResources(location + "**");
+        if (resources.length == 0)
+        {
+            return;
+        }
+
+        String base = resolver.getResource(location).getURL().toString();
+        Map<String, Resource> files = new HashMap<>();
+        for (Resource resource : resources)
+        {
+            String url = resource.getURL().toString();
+            if (resource.isReadable() && !url.endsWith("/") && url.startsWith(base) &&
+                !(resource.isFile() && resource.getFile().isDirectory()))
+            {
+                files.put("/" + url.substring(base.length()), resource);
+            }
+        }
+
+        for (Map.Entry<String, Resource> file : files.entrySet())
+        {
+            String path = file.getKey();
+            if (isEncodedVariant(path, files))
+            {
+                continue;
+            }
+
+            List<Variant> variants = new ArrayList<>(ENCODINGS.length + 1);
+            for (int i = 0; i < ENCODINGS.length; i++)
+            {
+                Resource encoded = files.get(path + ENCODING_SUFFIXES[i]);
+                if (encoded != null)
+                {
+                    variants.add(new Variant(ENCODINGS[i], encoded));
+                }
+            }
+            variants.add(new Variant(null, file.getValue()));
+            assets.put(path, new Asset(path, variants.toArray(new Variant[0])));
+        }
+    }
+
+    private static boolean isEncodedVariant(String path, Map<String, Resource> files)
+    {
+        for (String suffix : ENCODING_SUFFIXES)
+        {
+            if (path.endsWith(suffix) && files.containsKey(path.substring(0, path.length() - suffix.length())))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the Accept-Encoding header values accept an encoding: if they list it, with a quality above zero,
+     * and otherwise if they have a {@code *} with a quality above zero
+     */
+    static boolean accepts(List<String> acceptEncoding, String encoding)
+    {
+        boolean wildcard = false;
+        for (String value : acceptEncoding)
+        {
+            for (String token : value.split(","))
+            {
+                int parameters = token.indexOf(';');
+                String name = (parameters < 0 ? token : token.substring(0, parameters)).trim();
+                boolean accepted = parameters < 0 || !isZeroQuality(token.substring(parameters + 1));
+                if (name.equalsIgnoreCase(encoding))
+                {
+                    // An explicit coding takes precedence over *, wherever it is
+                    return accepted;
+                }
+                if (name.equals("*"))
+                {
+                    wildcard = accepted;
+                }
+            }
+        }
+        return wildcard;
+    }
+
+    private static boolean isZeroQuality(String parameters)
+    {
+        for (String parameter : parameters.split(";"))
+        {
+            String trimmed = parameter.trim();
+            if (trimmed.startsWith("q="))
+            {
+                try
+                {
+                    return Double.parseDouble(trimmed.substring(2)) <= 0;
+                }
+                catch (NumberFormatException e)
+                {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A file and its encoded variants, in order of preference. The last variant isn't encoded.
+     */
+    private static final class Asset
+    {
+        private final MediaType contentType;
+        private final String cacheControl;
+        private final Variant[] variants;
+
+        private Asset(String path, Variant[] variants)
+        {
+            this.contentType = MediaTypeFactory.getMediaType(path).orElse(MediaType.APPLICATION_OCTET_STREAM);
+            this.cacheControl = CONTENT_HASH.matcher(path).find() ? IMMUTABLE : REVALIDATE;
+            this.variants = variants;
+        }
+
+        /**
+         * @return the most preferred variant accepted by the client
+         */
+        Variant select(List<String> acceptEncoding)
+        {
+            if (acceptEncoding != null)
+            {
+                for (int i = 0; i < variants.length - 1; i++)
+                {
+                    if (accepts(acceptEncoding, variants[i].encoding))
+                    {
+                        return variants[i];
+                    }
+                }
+            }
+            return variants[variants.length - 1];
+        }
+
+        void writeHeaders(HttpHeaders headers, boolean secure)
+        {
+            headers.setContentType(contentType);
+            headers.setCacheControl(cacheControl);
+            if (variants.length > 1)
+            {
+                headers.setVary(VARY);
+            }
+
+            // The headers the security filters would have added, with the same values
+            headers.set("X-Content-Type-Options", "nosniff");
+            headers.set("X-Frame-Options", "DENY");
+            headers.set("X-XSS-Protection", "1 ; mode=block");
+            if (secure)
+            {
+                headers.set("Strict-Transport-Security", "max-age=31536000 ; includeSubDomains");
+            }
+        }
+    }
+
+    /**
+     * The content of a file, with a strong ETag derived from the content. Files on disk are referenced, and other
+     * files are read into memory.
+     */
+    private static final class Variant
+    {
+        private final String encoding;
+        private final File file;
+        private final byte[] content;
+        private final long length;
+        private final String eTag;
+
+        private Variant(String encoding, Resource resource)
+        {
+            this.encoding = encoding;
+            try (InputStream in = resource.getInputStream())
+            {
+                byte[] bytes = StreamUtils.copyToByteArray(in);
+                this.file = resource.isFile() ? resource.getFile() : null;
+                this.content = this.file == null ? bytes : null;
+                this.length = bytes.length;
+                this.eTag = "\"" + DigestUtils.md5DigestAsHex(bytes) + "\"";
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedIOException("Unable to read the static asset " + resource, e);
+            }
+        }
+
+        boolean matches(List<String> ifNoneMatch)
+        {
+            for (String value : ifNoneMatch)
+            {
+                if (value.equals(eTag) || value.equals("*") || value.equals("W/" + eTag))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
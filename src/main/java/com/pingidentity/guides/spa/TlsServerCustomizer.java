@@ -0,0 +1,67 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.web.embedded.netty.NettyServerCustomizer;
+import org.springframework.stereotype.Component;
+import reactor.netty.http.server.HttpServer;
+import reactor.netty.tcp.SslProvider;
+
+import javax.net.ssl.SSLSessionContext;
+import java.time.Duration;
+
+/**
+ * A {@link NettyServerCustomizer} that tunes TLS session resumption, so returning clients can skip the public key
+ * operations of a full handshake.
+ * <p>
+ * Spring Boot configures TLS from the {@code server.ssl} properties, but not the server's session cache. This
+ * customizer sizes the cache that Spring Boot's SSL context keeps sessions in, with {@code tls.session-cache-size}
+ * sessions kept for {@code tls.session-timeout} at most.
+ */
+@Component
+public class TlsServerCustomizer implements NettyServerCustomizer
+{
+    private final int sessionCacheSize;
+    private final Duration sessionTimeout;
+
+    @Autowired
+    public TlsServerCustomizer(@Value("${tls.session-cache-size:20480}") int sessionCacheSize,
+                               @Value("${tls.session-timeout:1h}") Duration sessionTimeout)
+    {
+        this.sessionCacheSize = sessionCacheSize;
+        this.sessionTimeout = sessionTimeout;
+    }
+
+    @Override
+    public HttpServer apply(HttpServer server)
+    {
+        // The SSL context is only attached to the bootstrap once the server binds
+        return server.tcpConfiguration(tcp -> tcp.doOnBind(bootstrap -> {
+            SslProvider sslProvider = SslProvider.findSslSupport(bootstrap);
+            if (sslProvider != null)
+            {
+                SSLSessionContext sessions = sslProvider.getSslContext().sessionContext();
+                sessions.setSessionCacheSize(sessionCacheSize);
+                sessions.setSessionTimeout((int) sessionTimeout.getSeconds());
+            }
+        }));
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import com.pingidentity.guides.spa.TodoStore.Snapshot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pushes the changes to a user's todos to the clients subscribed to them, as server-sent events. Each event has the
+ * version of the write as its id: a {@code create} event has a created todo as its data, an {@code update} event the
+ * todo that replaced the one with the same id, and a {@code delete} event the removed todo.
+ * <p>
+ * Each user with at least one subscriber has a channel that multicasts each event to its subscribers. Every
+ * subscriber has its own bounded buffer. When a subscriber falls too far behind, it is either disconnected, so the
+ * client reconnects and reloads its todos, or its oldest buffered events are dropped, depending on
+ * {@code todos.events.overflow}. All subscribers share a single heartbeat timer, so an idle subscription only costs
+ * its buffer and a few small objects.
+ * <p>
+ * The store notifies its listeners while it holds the user's monitor, so events are queued to the channel in write
+ * order and only sent to the subscribers once the write has released the monitor. One thread at a time sends a
+ * channel's events, so they keep their order, and subscribers never hold up the writers of the user.
+ */
+@Component
+public class TodoEvents implements TodoStore.Listener
+{
+    static final String CREATE_EVENT = "create";
+    static final String UPDATE_EVENT = "update";
+    static final String DELETE_EVENT = "delete";
+
+    private static final ServerSentEvent<Todo> HEARTBEAT = ServerSentEvent.<Todo>builder().comment("heartbeat").build();
+
+    private final ConcurrentMap<String, Channel> channels = new ConcurrentHashMap<>();
+    private final int bufferSize;
+    private final BufferOverflowStrategy overflowStrategy;
+    private final Duration maxDuration;
+    private final Flux<ServerSentEvent<Todo>> heartbeat;
+
+    private final LongAdder subscribers = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    @Autowired
+    public TodoEvents(@Value("${todos.events.buffer-size:256}") int bufferSize,
+                      @Value("${todos.events.overflow:disconnect}") String overflow,
+                      @Value("${todos.events.heartbeat:15s}") Duration heartbeat,
+                      @Value("${todos.events.max-duration:5m}") Duration maxDuration)
+    {
+        this.bufferSize = bufferSize;
+        this.overflowStrategy = "drop-oldest".equals(overflow) ? BufferOverflowStrategy.DROP_OLDEST
+                                                               : BufferOverflowStrategy.ERROR;
+        this.maxDuration = maxDuration;
+        this.heartbeat = Flux.interval(heartbeat).map(tick -> HEARTBEAT).share();
+    }
+
+    /**
+     * Subscribes to the changes to a user's todos. The stream completes after {@code todos.events.max-duration}, so
+     * clients periodically reconnect and have their session checked again.
+     *
+     * @param userName the name of the user
+     * @return the events for the changes to the user's todos, interleaved with heartbeat comments
+     */
+    public Flux<ServerSentEvent<Todo>> subscribe(String userName)
+    {
+        Flux<ServerSentEvent<Todo>> events =
+                Flux.<ServerSentEvent<Todo>>create(sink -> {
+                        register(userName, sink);
+                        sink.onDispose(() -> unregister(userName, sink));
+                    }, FluxSink.OverflowStrategy.IGNORE)
+                    .onBackpressureBuffer(bufferSize, dropped -> overflows.increment(), overflowStrategy);
+
+        return Flux.merge(events, heartbeat).take(maxDuration);
+    }
+
+    @Override
+    public void created(String userName, Snapshot snapshot, int from)
+    {
+        Channel channel = channels.get(userName);
+        if (channel == null)
+        {
+            return;
+        }
+
+        // Each created todo was its own write, so the last one has the snapshot's version
+        long version = snapshot.getVersion() - (snapshot.getEndSlot() - from);
+        for (int slot = from; slot < snapshot.getEndSlot(); slot++)
+        {
+            queue(channel, CREATE_EVENT, ++version, snapshot.getTodo(slot));
+        }
+    }
+
+    @Override
+    public void replaced(String userName, Snapshot snapshot, int slot)
+    {
+        Channel channel = channels.get(userName);
+        if (channel != null)
+        {
+            queue(channel, UPDATE_EVENT, snapshot.getVersion(), snapshot.getTodo(snapshot.getEndSlot() - 1));
+        }
+    }
+
+    @Override
+    public void removed(String userName, Snapshot snapshot, int slot)
+    {
+        Channel channel = channels.get(userName);
+        if (channel != null)
+        {
+            queue(channel, DELETE_EVENT, snapshot.getVersion(), snapshot.getTodo(slot));
+        }
+    }
+
+    @Override
+    public void written(String userName)
+    {
+        Channel channel = channels.get(userName);
+        if (channel != null)
+        {
+            channel.drain();
+        }
+    }
+
+    /**
+     * @return the number of open subscriptions
+     */
+    public long getSubscriberCount()
+    {
+        return subscribers.sum();
+    }
+
+    /**
+     * @return the number of times a subscriber's buffer overflowed
+     */
+    public long getOverflowCount()
+    {
+        return overflows.sum();
+    }
+
+    private static void queue(Channel channel, String name, long version, Todo todo)
+    {
+        channel.pending.add(ServerSentEvent.<Todo>builder()
+                                           .event(name)
+                                           .id(Long.toString(version))
+                                           .data(todo)
+                                           .build());
+    }
+
+    private void register(String userName, FluxSink<ServerSentEvent<Todo>> sink)
+    {
+        channels.compute(userName, (unused, channel) -> {
+            Channel registered = channel == null ? new Channel() : channel;
+            registered.sinks.add(sink);
+            return registered;
+        });
+        subscribers.increment();
+    }
+
+    private void unregister(String userName, FluxSink<ServerSentEvent<Todo>> sink)
+    {
+        channels.computeIfPresent(userName, (unused, channel) -> {
+            channel.sinks.remove(sink);
+            return channel.sinks.isEmpty() ? null : channel;
+        });
+        subscribers.decrement();
+    }
+
+    private static final class Channel
+    {
+        private final CopyOnWriteArrayList<FluxSink<ServerSentEvent<Todo>>> sinks = new CopyOnWriteArrayList<>();
+        private final Queue<ServerSentEvent<Todo>> pending = new ConcurrentLinkedQueue<>();
+        // The number of drain calls that are still to be served by the thread that is sending
+        private final AtomicInteger drains = new AtomicInteger();
+
+        /**
+         * Sends the queued events to the subscribers, unless another thread is sending them, in which case that thread
+         * sends them too before it stops.
+         */
+        void drain()
+        {
+            if (drains.getAndIncrement() != 0)
+            {
+                return;
+            }
+
+            int missed = 1;
+            do
+            {
+                ServerSentEvent<Todo> event;
+                while ((event = pending.poll()) != null)
+                {
+                    for (FluxSink<ServerSentEvent<Todo>> sink : sinks)
+                    {
+                        sink.next(event);
+                    }
+                }
+                missed = drains.addAndGet(-missed);
+            }
+            while (missed != 0);
+        }
+    }
+}
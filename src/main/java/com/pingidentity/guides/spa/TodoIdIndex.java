@@ -0,0 +1,178 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A hash table from the ids of a user's todos to the slots they are kept in by the {@link TodoStore}.
+ * <p>
+ * The table only holds slot numbers, in open addressing with linear probing, and the ids are read from the store's id
+ * array, where the two halves of the id of each slot are kept in pairs. That is 4 bytes per entry, at most half of
+ * the table being used, instead of an entry object, a {@link java.util.UUID} and an {@link Integer} per todo. Entries
+ * are removed by moving the entries that follow them back, so lookups never have to skip removed entries.
+ * <p>
+ * Ids are chosen by clients, so each index hashes them with its own random seed. A client can't pick ids that fall in
+ * the same run of the table, which would make every lookup scan the whole run.
+ * <p>
+ * Not thread-safe. The store only uses it under the user's monitor.
+ */
+final class TodoIdIndex
+{
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int EMPTY = -1;
+
+    private final long seed = ThreadLocalRandom.current().nextLong();
+    private int[] table = newTable(INITIAL_CAPACITY);
+    private int size;
+
+    /**
+     * @param ids the store's id array
+     * @return the slot of the todo with the given id, or -1 if there is none
+     */
+    int find(long[] ids, long mostSignificantBits, long leastSignificantBits)
+    {
+        int mask = table.length - 1;
+        for (int i = hash(mostSignificantBits, leastSignificantBits) & mask; ; i = (i + 1) & mask)
+        {
+            int slot = table[i];
+            if (slot == EMPTY)
+            {
+                return -1;
+            }
+            if (ids[2 * slot] == mostSignificantBits && ids[2 * slot + 1] == leastSignificantBits)
+            {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Maps the id kept in a slot to that slot, replacing the slot it was mapped to before.
+     *
+     * @param ids the store's id array, which holds the id of the slot
+     */
+    void put(long[] ids, int slot)
+    {
+        if (2 * (size + 1) > table.length)
+        {
+            rehash(ids, table.length << 1);
+        }
+
+        long mostSignificantBits = ids[2 * slot];
+        long leastSignificantBits = ids[2 * slot + 1];
+        int mask = table.length - 1;
+        for (int i = hash(mostSignificantBits, leastSignificantBits) & mask; ; i = (i + 1) & mask)
+        {
+            int current = table[i];
+            if (current == EMPTY)
+            {
+                table[i] = slot;
+                size++;
+                return;
+            }
+            if (ids[2 * current] == mostSignificantBits && ids[2 * current + 1] == leastSignificantBits)
+            {
+                table[i] = slot;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the mapping of an id, if there is one.
+     *
+     * @param ids the store's id array
+     */
+    void remove(long[] ids, long mostSignificantBits, long leastSignificantBits)
+    {
+        int mask = table.length - 1;
+        int i = hash(mostSignificantBits, leastSignificantBits) & mask;
+        while (true)
+        {
+            int slot = table[i];
+            if (slot == EMPTY)
+            {
+                return;
+            }
+            if (ids[2 * slot] == mostSignificantBits && ids[2 * slot + 1] == leastSignificantBits)
+            {
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+
+        // Move back each following entry whose home is at or before the gap, so no lookup stops at the gap too early
+        int gap = i;
+        for (int j = (gap + 1) & mask; table[j] != EMPTY; j = (j + 1) & mask)
+        {
+            int home = hash(ids[2 * table[j]], ids[2 * table[j] + 1]) & mask;
+            if (((j - home) & mask) >= ((j - gap) & mask))
+            {
+                table[gap] = table[j];
+                gap = j;
+            }
+        }
+        table[gap] = EMPTY;
+        size--;
+    }
+
+    private void rehash(long[] ids, int capacity)
+    {
+        int[] old = table;
+        table = newTable(capacity);
+        int mask = capacity - 1;
+        for (int slot : old)
+        {
+            if (slot != EMPTY)
+            {
+                int i = hash(ids[2 * slot], ids[2 * slot + 1]) & mask;
+                while (table[i] != EMPTY)
+                {
+                    i = (i + 1) & mask;
+                }
+                table[i] = slot;
+            }
+        }
+    }
+
+    private static int[] newTable(int capacity)
+    {
+        int[] table = new int[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    /**
+     * Mixes the seed into the first half of the id and the result into the second half, with the finalizer of
+     * MurmurHash3, so which ids collide depends on the seed.
+     */
+    private int hash(long mostSignificantBits, long leastSignificantBits)
+    {
+        return (int) mix(mix(mostSignificantBits ^ seed) ^ leastSignificantBits);
+    }
+
+    private static long mix(long h)
+    {
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return h ^ (h >>> 33);
+    }
+}
@@ -0,0 +1,853 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import com.pingidentity.guides.spa.TodoStore.Snapshot;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UTFDataFormatException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * An append-only journal that makes the writes to the {@link TodoStore} durable.
+ * <p>
+ * Writes are appended to memory-mapped segment files by a single writer thread. The writer drains every write queued
+ * while the previous batch was being flushed and forces the whole batch to disk at once, so the cost of a flush is
+ * shared by all the requests in the batch. Once enough records have been written, the writer rolls to a new segment
+ * and a compacted snapshot of the store is written in the background, after which the segments covered by the
+ * snapshot are deleted. At startup, the latest snapshot is loaded and the remaining segments are replayed, and new
+ * records are appended to the last segment after its last complete record. Writes queued after the journal is closed
+ * fail rather than wait for a writer that is gone.
+ * <p>
+ * Every record carries the version of the user's todos after the write, so records that are already part of a
+ * snapshot are skipped when the journal is replayed. Snapshots only hold the todos that haven't been replaced or
+ * removed. Records and snapshots also carry the time of the user's last write, which is unknown for the ones written
+ * before they did.
+ * <p>
+ * The journal is disabled, and todos are only kept in memory, unless {@code todos.journal.directory} is set.
+ */
+@Component
+public class TodoJournal
+{
+    private static final Logger logger = LoggerFactory.getLogger(TodoJournal.class);
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+    private static final String SNAPSHOT_SUFFIX = ".dat";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int SNAPSHOT_MAGIC = 0x54444f32;
+    // Snapshots without the time of each user's last write
+    private static final int UNTIMED_SNAPSHOT_MAGIC = 0x54444f53;
+    private static final byte CREATE = 1;
+    private static final byte PUT = 2;
+    private static final byte REMOVE = 3;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int MIN_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_BATCH_SIZE = 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long snapshotThreshold;
+
+    private final Queue<PendingWrite> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean snapshotInProgress = new AtomicBoolean();
+    private volatile boolean running;
+    private volatile boolean writerWaiting;
+    private Thread writer;
+    private ExecutorService snapshotWriter;
+    private Target target;
+
+    // Only accessed by the writer thread once the journal is open
+    private Segment segment;
+    private long recordsSinceSnapshot;
+
+    private volatile Duration recoveryTime = Duration.ZERO;
+    private final LongAdder writeCount = new LongAdder();
+    private final LongAdder batchCount = new LongAdder();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    @Autowired
+    public TodoJournal(@Value("${todos.journal.directory:}") String directory,
+                       @Value("${todos.journal.segment-size:16MB}") DataSize segmentSize,
+                       @Value("${todos.journal.snapshot-threshold:100000}") long snapshotThreshold)
+    {
+        this.directory = directory.isEmpty() ? null : Paths.get(directory).toAbsolutePath();
+        this.segmentSize = (int) Math.max(MIN_SEGMENT_SIZE, Math.min(Integer.MAX_VALUE, segmentSize.toBytes()));
+        this.snapshotThreshold = Math.max(1, snapshotThreshold);
+    }
+
+    /**
+     * @return true if writes are journaled, false if todos are only kept in memory
+     */
+    public boolean isEnabled()
+    {
+        return directory != null;
+    }
+
+    /**
+     * Restores the contents of the journal into the target and starts accepting writes.
+     *
+     * @param target the store to restore and to take snapshots of
+     */
+    void open(Target target)
+    {
+        if (!isEnabled())
+        {
+            return;
+        }
+
+        this.target = target;
+        long start = System.nanoTime();
+        try
+        {
+            Files.createDirectories(directory);
+            segment = recover(target);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException("Unable to open the todo journal in " + directory, e);
+        }
+        recoveryTime = Duration.ofNanos(System.nanoTime() - start);
+        logger.info("Todo journal recovered from {} in {} ms", directory, recoveryTime.toMillis());
+
+        snapshotWriter = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "todo-journal-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        running = true;
+        writer = new Thread(this::runWriter, "todo-journal-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a created todo to be written to the journal. Must be called in the order the writes are applied to the
+     * user's todos.
+     *
+     * @param userName the name of the user
+     * @param version  the version of the user's todos after the write
+     * @param todo     the created todo
+     * @return a future that completes once the write is durable
+     */
+    CompletableFuture<Void> append(String userName, long version, Todo todo)
+    {
+        return queue(new PendingWrite(CREATE, userName, version, todo));
+    }
+
+    /**
+     * Queues a todo that replaced the todo with the same id, in the same way as {@link #append}.
+     */
+    CompletableFuture<Void> appendPut(String userName, long version, Todo todo)
+    {
+        return queue(new PendingWrite(PUT, userName, version, todo));
+    }
+
+    /**
+     * Queues the removal of a todo, in the same way as {@link #append}.
+     */
+    CompletableFuture<Void> appendRemove(String userName, long version, UUID id)
+    {
+        return queue(new PendingWrite(REMOVE, userName, version, newTodo(id, null)));
+    }
+
+    private CompletableFuture<Void> queue(PendingWrite write)
+    {
+        if (!running)
+        {
+            write.future.completeExceptionally(new IllegalStateException("The todo journal is not open"));
+            return write.future;
+        }
+
+        pending.offer(write);
+        if (writerWaiting)
+        {
+            LockSupport.unpark(writer);
+        }
+        // The writer may have drained the queue and stopped after the check above, so the write is failed here unless
+        // it was taken by the writer or by close()
+        if (!running && pending.remove(write))
+        {
+            write.future.completeExceptionally(new IllegalStateException("The todo journal is closed"));
+        }
+        return write.future;
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException
+    {
+        if (!running)
+        {
+            return;
+        }
+
+        running = false;
+        LockSupport.unpark(writer);
+        writer.join();
+        PendingWrite write;
+        while ((write = pending.poll()) != null)
+        {
+            write.future.completeExceptionally(new IllegalStateException("The todo journal is closed"));
+        }
+        snapshotWriter.shutdown();
+        snapshotWriter.awaitTermination(1, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @return the time it took to load the latest snapshot and replay the journal at startup
+     */
+    public Duration getRecoveryTime()
+    {
+        return recoveryTime;
+    }
+
+    /**
+     * @return the number of records written to the journal
+     */
+    public long getWriteCount()
+    {
+        return writeCount.sum();
+    }
+
+    /**
+     * @return the number of batches forced to disk
+     */
+    public long getBatchCount()
+    {
+        return batchCount.sum();
+    }
+
+    /**
+     * @return the distribution of the time between a write being queued and the write being durable
+     */
+    LatencyHistogram.Snapshot getWriteLatency()
+    {
+        return writeLatency.snapshot();
+    }
+
+    private void runWriter()
+    {
+        List<PendingWrite> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (running || !pending.isEmpty())
+        {
+            PendingWrite next = pending.poll();
+            if (next == null)
+            {
+                writerWaiting = true;
+                if (running && pending.isEmpty())
+                {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                writerWaiting = false;
+                continue;
+            }
+
+            do
+            {
+                batch.add(next);
+            }
+            while (batch.size() < MAX_BATCH_SIZE && (next = pending.poll()) != null);
+
+            commit(batch);
+            batch.clear();
+
+            if (recordsSinceSnapshot >= snapshotThreshold && snapshotInProgress.compareAndSet(false, true))
+            {
+                startSnapshot();
+            }
+        }
+
+        try
+        {
+            segment.force();
+        }
+        catch (RuntimeException e)
+        {
+            logger.warn("Unable to flush the todo journal on shutdown", e);
+        }
+    }
+
+    private void commit(List<PendingWrite> batch)
+    {
+        try
+        {
+            for (PendingWrite write : batch)
+            {
+                writeRecord(write);
+            }
+            segment.force();
+        }
+        catch (IOException | RuntimeException e)
+        {
+            logger.error("Unable to write to the todo journal", e);
+            for (PendingWrite write : batch)
+            {
+                write.future.completeExceptionally(e);
+            }
+            return;
+        }
+
+        long now = System.nanoTime();
+        for (PendingWrite write : batch)
+        {
+            writeLatency.record(now - write.queuedNanos);
+            write.future.complete(null);
+        }
+        writeCount.add(batch.size());
+        batchCount.increment();
+        recordsSinceSnapshot += batch.size();
+    }
+
+    private void writeRecord(PendingWrite write) throws IOException
+    {
+        byte[] userName = write.userName.getBytes(StandardCharsets.UTF_8);
+        // Removals only record the id
+        byte[] content = write.type == REMOVE ? null : write.todo.getContent().getBytes(StandardCharsets.UTF_8);
+        int payloadLength = 1 + 8 + 2 + userName.length + 16 + (content == null ? 0 : 2 + content.length) + 8;
+        int recordLength = RECORD_HEADER_SIZE + payloadLength;
+        if (recordLength > segmentSize)
+        {
+            throw new IOException("Journal record of " + recordLength + " bytes does not fit in a segment");
+        }
+
+        if (segment.buffer.remaining() < recordLength)
+        {
+            roll();
+        }
+
+        ByteBuffer buffer = segment.buffer;
+        int start = buffer.position();
+        buffer.position(start + RECORD_HEADER_SIZE);
+        buffer.put(write.type);
+        buffer.putLong(write.version);
+        buffer.putShort((short) userName.length);
+        buffer.put(userName);
+        buffer.putLong(write.todo.getId().getMostSignificantBits());
+        buffer.putLong(write.todo.getId().getLeastSignificantBits());
+        if (content != null)
+        {
+            buffer.putShort((short) content.length);
+            buffer.put(content);
+        }
+        buffer.putLong(write.queuedMillis);
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(start + RECORD_HEADER_SIZE);
+        payload.limit(start + recordLength);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        // The length is written last, so a record is only visible to recovery once it is complete
+        buffer.putInt(start + 4, (int) crc.getValue());
+        buffer.putInt(start, payloadLength);
+    }
+
+    private void roll() throws IOException
+    {
+        segment.force();
+        int index = segment.index + 1;
+        segment = Segment.create(segmentPath(index), index, segmentSize);
+    }
+
+    private void startSnapshot()
+    {
+        int coveredSegment = segment.index;
+        try
+        {
+            roll();
+        }
+        catch (IOException e)
+        {
+            logger.error("Unable to roll the todo journal", e);
+            snapshotInProgress.set(false);
+            return;
+        }
+        recordsSinceSnapshot = 0;
+
+        // Every record in the covered segments was applied to the store before it was queued, so the snapshot taken
+        // from here on includes all of them
+        snapshotWriter.execute(() -> {
+            try
+            {
+                writeSnapshot(coveredSegment);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                logger.error("Unable to write a todo snapshot", e);
+            }
+            finally
+            {
+                snapshotInProgress.set(false);
+            }
+        });
+    }
+
+    private void writeSnapshot(int coveredSegment) throws IOException
+    {
+        long start = System.nanoTime();
+        Path snapshotPath = snapshotPath(coveredSegment);
+        Path tempPath = directory.resolve(snapshotPath.getFileName() + TEMP_SUFFIX);
+
+        try (FileChannel channel = FileChannel.open(tempPath,
+                                                    StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE))
+        {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            try
+            {
+                target.forEachUser((userName, snapshot) -> writeUserSnapshot(out, userName, snapshot));
+            }
+            catch (UncheckedIOException e)
+            {
+                throw e.getCause();
+            }
+            out.writeBoolean(false);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+
+        Files.move(tempPath, snapshotPath, StandardCopyOption.ATOMIC_MOVE);
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                int index = fileIndex(file, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+                if (index < 0)
+                {
+                    index = fileIndex(file, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+                }
+                if (index >= 0 && index <= coveredSegment && !file.equals(snapshotPath))
+                {
+                    Files.delete(file);
+                }
+            }
+        }
+
+        logger.info("Wrote todo snapshot {} in {} ms",
+                    snapshotPath.getFileName(),
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private static void writeUserSnapshot(DataOutputStream out, String userName, Snapshot snapshot)
+    {
+        try
+        {
+            out.writeBoolean(true);
+            out.writeUTF(userName);
+            out.writeLong(snapshot.getVersion());
+            out.writeLong(snapshot.getLastWriteTime());
+            out.writeInt(snapshot.size());
+            for (int slot = snapshot.nextSlot(0); slot < snapshot.getEndSlot(); slot = snapshot.nextSlot(slot + 1))
+            {
+                out.writeLong(snapshot.getMostSignificantIdBits(slot));
+                out.writeLong(snapshot.getLeastSignificantIdBits(slot));
+                out.writeUTF(snapshot.getContent(slot));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Loads the latest snapshot and replays the segments after it.
+     *
+     * @return the segment to append to: the last one, after its last complete record, or else a new one
+     */
+    private Segment recover(Target target) throws IOException
+    {
+        TreeMap<Integer, Path> segments = new TreeMap<>();
+        TreeMap<Integer, Path> snapshots = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory))
+        {
+            for (Path file : files)
+            {
+                int index = fileIndex(file, SEGMENT_PREFIX, SEGMENT_SUFFIX);
+                if (index >= 0)
+                {
+                    segments.put(index, file);
+                }
+                index = fileIndex(file, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+                if (index >= 0)
+                {
+                    snapshots.put(index, file);
+                }
+            }
+        }
+
+        int coveredSegment = -1;
+        for (Integer index : snapshots.descendingKeySet())
+        {
+            Path snapshotPath = snapshots.get(index);
+            if (isValidSnapshot(snapshotPath))
+            {
+                readSnapshot(snapshotPath, target);
+                coveredSegment = index;
+                break;
+            }
+            logger.warn("Ignoring corrupt todo snapshot {}", snapshotPath);
+        }
+
+        long[] records = new long[1];
+        int tailEnd = 0;
+        for (Path segmentPath : segments.tailMap(coveredSegment, false).values())
+        {
+            tailEnd = replaySegment(segmentPath, target, records);
+        }
+        logger.info("Replayed {} todo journal records", records[0]);
+
+        // Reusing the last segment keeps every restart from adding a preallocated segment
+        if (!segments.isEmpty() && segments.lastKey() > coveredSegment)
+        {
+            return Segment.open(segments.lastEntry().getValue(), segments.lastKey(), tailEnd);
+        }
+        int index = Math.max(coveredSegment, segments.isEmpty() ? -1 : segments.lastKey()) + 1;
+        return Segment.create(segmentPath(index), index, segmentSize);
+    }
+
+    private static boolean isValidSnapshot(Path snapshotPath) throws IOException
+    {
+        try (InputStream fileIn = new BufferedInputStream(Files.newInputStream(snapshotPath), 64 * 1024))
+        {
+            CheckedInputStream checked = new CheckedInputStream(fileIn, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+            int magic = in.readInt();
+            if (magic != SNAPSHOT_MAGIC && magic != UNTIMED_SNAPSHOT_MAGIC)
+            {
+                return false;
+            }
+            while (in.readBoolean())
+            {
+                in.readUTF();
+                in.readLong();
+                if (magic == SNAPSHOT_MAGIC)
+                {
+                    in.readLong();
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    in.readLong();
+                    in.readLong();
+                    in.readUTF();
+                }
+            }
+            long expected = checked.getChecksum().getValue();
+            return in.readLong() == expected;
+        }
+        catch (EOFException | UTFDataFormatException e)
+        {
+            return false;
+        }
+    }
+
+    private static void readSnapshot(Path snapshotPath, Target target) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(snapshotPath), 64 * 1024)))
+        {
+            boolean timed = in.readInt() == SNAPSHOT_MAGIC;
+            while (in.readBoolean())
+            {
+                String userName = in.readUTF();
+                long version = in.readLong();
+                long lastWriteTime = timed ? in.readLong() : 0;
+                int count = in.readInt();
+                List<Todo> todos = new ArrayList<>(count);
+                for (int i = 0; i < count; i++)
+                {
+                    todos.add(newTodo(new UUID(in.readLong(), in.readLong()), in.readUTF()));
+                }
+                target.restore(userName, version, todos, lastWriteTime);
+            }
+        }
+    }
+
+    /**
+     * Applies the complete records of a segment to the target.
+     *
+     * @param records a counter of the records replayed
+     * @return the offset after the last complete record
+     */
+    private static int replaySegment(Path segmentPath, Target target, long[] records) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(segmentPath, StandardOpenOption.READ))
+        {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            CRC32 crc = new CRC32();
+            int end = 0;
+            while (buffer.remaining() >= RECORD_HEADER_SIZE)
+            {
+                int start = buffer.position();
+                int payloadLength = buffer.getInt();
+                int checksum = buffer.getInt();
+                if (payloadLength <= 0 || payloadLength > buffer.remaining())
+                {
+                    break;
+                }
+
+                ByteBuffer payload = buffer.slice();
+                payload.limit(payloadLength);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if ((int) crc.getValue() != checksum)
+                {
+                    logger.warn("Ignoring torn record at offset {} of {}", start, segmentPath);
+                    break;
+                }
+
+                byte type = payload.get();
+                if (type == CREATE || type == PUT || type == REMOVE)
+                {
+                    long version = payload.getLong();
+                    String userName = readString(payload);
+                    UUID id = new UUID(payload.getLong(), payload.getLong());
+                    String content = type == REMOVE ? null : readString(payload);
+                    // Records written before the write time was added end here
+                    long writeTime = payload.remaining() >= Long.BYTES ? payload.getLong() : 0;
+                    if (type == CREATE)
+                    {
+                        target.replay(userName, version, newTodo(id, content), writeTime);
+                    }
+                    else if (type == PUT)
+                    {
+                        target.replayPut(userName, version, newTodo(id, content), writeTime);
+                    }
+                    else
+                    {
+                        target.replayRemove(userName, version, id, writeTime);
+                    }
+                    records[0]++;
+                }
+                else
+                {
+                    logger.warn("Ignoring record of unknown type {} at offset {} of {}", type, start, segmentPath);
+                }
+                end = start + RECORD_HEADER_SIZE + payloadLength;
+                buffer.position(end);
+            }
+            return end;
+        }
+    }
+
+    private static String readString(ByteBuffer buffer)
+    {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Todo newTodo(UUID id, String content)
+    {
+        Todo todo = new Todo();
+        todo.setId(id);
+        todo.setContent(content);
+        return todo;
+    }
+
+    private Path segmentPath(int index)
+    {
+        return directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX));
+    }
+
+    private Path snapshotPath(int index)
+    {
+        return directory.resolve(String.format("%s%010d%s", SNAPSHOT_PREFIX, index, SNAPSHOT_SUFFIX));
+    }
+
+    private static int fileIndex(Path file, String prefix, String suffix)
+    {
+        String name = file.getFileName().toString();
+        if (!name.startsWith(prefix) || !name.endsWith(suffix))
+        {
+            return -1;
+        }
+
+        try
+        {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - suffix.length()));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * The store that the journal restores at startup and takes snapshots of.
+     */
+    interface Target
+    {
+        /**
+         * Replaces a user's todos with the contents of a snapshot.
+         *
+         * @param lastWriteTime the time of the user's last write in milliseconds since the epoch, or 0 if unknown
+         */
+        void restore(String userName, long version, List<Todo> todos, long lastWriteTime);
+
+        /**
+         * Applies a journaled create, unless the user's todos are already at or beyond the given version.
+         *
+         * @param writeTime the time of the write in milliseconds since the epoch, or 0 if unknown
+         */
+        void replay(String userName, long version, Todo todo, long writeTime);
+
+        /**
+         * Applies a journaled replacement of the todo with the same id, in the same way as {@link #replay}.
+         */
+        void replayPut(String userName, long version, Todo todo, long writeTime);
+
+        /**
+         * Applies a journaled removal, in the same way as {@link #replay}.
+         */
+        void replayRemove(String userName, long version, UUID id, long writeTime);
+
+        /**
+         * Visits the current snapshot of each user's todos, without blocking writers.
+         */
+        void forEachUser(BiConsumer<String, Snapshot> consumer);
+    }
+
+    private static final class PendingWrite
+    {
+        private final byte type;
+        private final String userName;
+        private final long version;
+        private final Todo todo;
+        private final long queuedNanos = System.nanoTime();
+        private final long queuedMillis = System.currentTimeMillis();
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private PendingWrite(byte type, String userName, long version, Todo todo)
+        {
+            this.type = type;
+            this.userName = userName;
+            this.version = version;
+            this.todo = todo;
+        }
+    }
+
+    private static final class Segment
+    {
+        private final int index;
+        private final MappedByteBuffer buffer;
+
+        private Segment(int index, MappedByteBuffer buffer)
+        {
+            this.index = index;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Opens an existing segment to append to.
+         *
+         * @param end the offset after the last complete record
+         */
+        static Segment open(Path path, int index, int end) throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                // Whatever follows the last complete record, such as a torn record, is cleared so no part of it can
+                // be read as a record once new ones are appended. Only the bytes that aren't zero are written, so the
+                // untouched end of the segment stays as it is.
+                for (int offset = end; offset < buffer.limit(); offset++)
+                {
+                    if (buffer.get(offset) != 0)
+                    {
+                        buffer.put(offset, (byte) 0);
+                    }
+                }
+                buffer.position(end);
+                return new Segment(index, buffer);
+            }
+        }
+
+        static Segment create(Path path, int index, int size) throws IOException
+        {
+            try (FileChannel channel = FileChannel.open(path,
+                                                        StandardOpenOption.CREATE_NEW,
+                                                        StandardOpenOption.READ,
+                                                        StandardOpenOption.WRITE))
+            {
+                // The mapping stays valid after the channel is closed, and is released when the buffer is collected
+                return new Segment(index, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+
+        void force()
+        {
+            buffer.force();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.json.UTF8JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.pingidentity.guides.spa.TodoStore.Snapshot;
+import org.springframework.boot.jackson.JsonComponent;
+
+import java.io.IOException;
+
+/**
+ * Writes a {@link Snapshot} as a JSON array of todos straight from the store's layout, without creating a
+ * {@link Controller.Todo}, a {@link java.util.UUID} or a {@link String} per todo. Ids are formatted from their two
+ * halves into a reused buffer, and content is copied to the output as the UTF-8 it is kept as.
+ * <p>
+ * Registered with Spring Boot's {@code ObjectMapper} as a {@link JsonComponent}. The output is the same as for a list
+ * of {@link Controller.Todo}s.
+ */
+@JsonComponent
+public class TodoJsonSerializer extends StdSerializer<Snapshot>
+{
+    static final int ID_LENGTH = 36;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    public TodoJsonSerializer()
+    {
+        super(Snapshot.class);
+    }
+
+    @Override
+    public void serialize(Snapshot todos, JsonGenerator generator, SerializerProvider provider) throws IOException
+    {
+        char[] id = new char[ID_LENGTH];
+        generator.writeStartArray();
+        for (int slot = todos.nextSlot(0); slot < todos.getEndSlot(); slot = todos.nextSlot(slot + 1))
+        {
+            generator.writeStartObject();
+            writeFields(todos, slot, generator, id);
+            generator.writeEndObject();
+        }
+        generator.writeEndArray();
+    }
+
+    @Override
+    public boolean isEmpty(SerializerProvider provider, Snapshot todos)
+    {
+        return todos.isEmpty();
+    }
+
+    /**
+     * Writes the fields of a todo to an object that has been started.
+     *
+     * @param slot the slot of the todo in the snapshot
+     * @param id   a buffer of {@link #ID_LENGTH} chars that the id is formatted in
+     */
+    static void writeFields(Snapshot todos, int slot, JsonGenerator generator, char[] id) throws IOException
+    {
+        formatId(todos.getMostSignificantIdBits(slot), todos.getLeastSignificantIdBits(slot), id);
+        generator.writeFieldName("id");
+        generator.writeString(id, 0, ID_LENGTH);
+
+        generator.writeFieldName("content");
+        if (generator instanceof UTF8JsonGenerator)
+        {
+            todos.readContent(slot, generator::writeUTF8String);
+        }
+        else
+        {
+            // Generators that write chars, or buffer tokens, don't support writing UTF-8
+            generator.writeString(todos.getContent(slot));
+        }
+    }
+
+    /**
+     * Formats an id the same way as {@link java.util.UUID#toString()}.
+     */
+    static void formatId(long mostSignificantBits, long leastSignificantBits, char[] id)
+    {
+        hex(mostSignificantBits >>> 32, id, 0, 8);
+        id[8] = '-';
+        hex(mostSignificantBits >>> 16, id, 9, 4);
+        id[13] = '-';
+        hex(mostSignificantBits, id, 14, 4);
+        id[18] = '-';
+        hex(leastSignificantBits >>> 48, id, 19, 4);
+        id[23] = '-';
+        hex(leastSignificantBits, id, 24, 12);
+    }
+
+    private static void hex(long value, char[] chars, int offset, int digits)
+    {
+        for (int i = offset + digits - 1; i >= offset; i--)
+        {
+            chars[i] = HEX_DIGITS[(int) value & 0xf];
+            value >>>= 4;
+        }
+    }
+}
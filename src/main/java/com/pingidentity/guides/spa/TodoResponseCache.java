@@ -0,0 +1,369 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.pingidentity.guides.spa.Controller.Todos;
+import com.pingidentity.guides.spa.TodoStore.Snapshot;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.unit.DataSize;
+
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of the JSON of each user's whole list of todos, so a list that is read again before it is written is only
+ * encoded once per version.
+ * <p>
+ * An entry holds the encoded {@link Todos} of one user, with the list and version of the {@link Snapshot} it was
+ * encoded from, and only matches a snapshot of the same list and version. A hit is wrapped in a {@link DataBuffer}
+ * as it is, without copying it. Writes are seen as a {@link TodoStore.Listener} and drop the user's encoded list, so
+ * its memory is freed before the next read, but it is the version that keeps stale lists from being served.
+ * <p>
+ * The cache holds at most {@code todos.response-cache.max-size} bytes of JSON, and 0 turns it off. Lists of more than
+ * an eighth of that are not cached, so one user can't flush everyone else. Lookups take no lock: entries are kept in a
+ * {@link ConcurrentHashMap} and a hit only sets the entry's referenced flag. When the cache is full, entries are
+ * evicted in the order they were added, except that an entry that was read since the eviction last passed it gets a
+ * second chance, which approximates LRU without reordering anything on a hit. An entry is marked as evicted with a
+ * compare-and-set before it is taken out of the map, so an encoding that races with the eviction starts over with a
+ * new entry instead of filling a removed one.
+ */
+@Component
+public class TodoResponseCache implements TodoStore.Listener
+{
+    // The map node, entry and encoded list besides the JSON itself
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final Encoded EVICTED = new Encoded(-1, -1, new byte[0]);
+
+    private final ObjectWriter todosWriter;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    // Guarded by itself, and only touched when a user is added or the cache is full
+    private final Queue<Entry> clock = new ArrayDeque<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    @Autowired
+    public TodoResponseCache(ObjectMapper objectMapper,
+                             @Value("${todos.response-cache.max-size:64MB}") DataSize maxSize)
+    {
+        this.todosWriter = objectMapper.writerFor(Todos.class);
+        this.maxBytes = maxSize.toBytes();
+        this.maxEntryBytes = maxBytes / 8;
+    }
+
+    @Override
+    public void created(String userName, Snapshot snapshot, int from)
+    {
+        invalidate(userName);
+    }
+
+    @Override
+    public void replaced(String userName, Snapshot snapshot, int slot)
+    {
+        invalidate(userName);
+    }
+
+    @Override
+    public void removed(String userName, Snapshot snapshot, int slot)
+    {
+        invalidate(userName);
+    }
+
+    /**
+     * Returns the JSON of a user's whole list of todos, from the cache if the snapshot has been encoded before.
+     *
+     * @param userName the name of the user
+     * @param todos    a snapshot of the user's todos
+     * @return a buffer with the JSON of the {@link Todos} of the snapshot
+     */
+    public DataBuffer encode(String userName, Snapshot todos, DataBufferFactory bufferFactory)
+    {
+        if (maxBytes <= 0)
+        {
+            return bufferFactory.wrap(write(new Todos(todos)));
+        }
+
+        Entry entry = entries.get(userName);
+        Encoded encoded = entry == null ? null : entry.encoded.get();
+        if (encoded != null && encoded.matches(todos))
+        {
+            entry.referenced = true;
+            hits.increment();
+            return bufferFactory.wrap(encoded.json);
+        }
+
+        misses.increment();
+        byte[] json = write(new Todos(todos));
+        if (json.length <= maxEntryBytes)
+        {
+            put(userName, new Encoded(todos.getListId(), todos.getVersion(), json));
+        }
+        return bufferFactory.wrap(json);
+    }
+
+    /**
+     * Returns the JSON of a page of a user's todos, which is not cached.
+     */
+    public DataBuffer encodePage(Todos page, DataBufferFactory bufferFactory)
+    {
+        return bufferFactory.wrap(write(page));
+    }
+
+    /**
+     * @return the number of users with an entry in the cache
+     */
+    public int getEntryCount()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the bytes taken by the entries, including an estimate of their overhead
+     */
+    public long getUsedBytes()
+    {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return the most bytes the entries may take
+     */
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+
+    /**
+     * @return the number of reads served from the cache
+     */
+    public long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of reads that had to encode the list
+     */
+    public long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of entries evicted to make room for others
+     */
+    public long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of encoded lists dropped because the list was written
+     */
+    public long getInvalidationCount()
+    {
+        return invalidations.sum();
+    }
+
+    private byte[] write(Todos todos)
+    {
+        try
+        {
+            return todosWriter.writeValueAsBytes(todos);
+        }
+        catch (JsonProcessingException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void put(String userName, Encoded encoded)
+    {
+        while (true)
+        {
+            Entry entry = entries.get(userName);
+            if (entry == null)
+            {
+                Entry created = new Entry(userName);
+                entry = entries.putIfAbsent(userName, created);
+                if (entry == null)
+                {
+                    entry = created;
+                    usedBytes.addAndGet(ENTRY_OVERHEAD);
+                    synchronized (clock)
+                    {
+                        clock.add(created);
+                    }
+                }
+            }
+
+            if (entry.set(encoded))
+            {
+                break;
+            }
+            // The entry was evicted between the lookup and filling it
+        }
+        evictIfFull();
+    }
+
+    private void invalidate(String userName)
+    {
+        Entry entry = entries.get(userName);
+        if (entry != null && entry.clear())
+        {
+            invalidations.increment();
+        }
+    }
+
+    private void evictIfFull()
+    {
+        if (usedBytes.get() <= maxBytes)
+        {
+            return;
+        }
+
+        synchronized (clock)
+        {
+            // Every entry is passed at most twice, in case readers keep setting the referenced flags
+            for (int visits = 2 * clock.size(); usedBytes.get() > maxBytes && visits > 0; visits--)
+            {
+                Entry entry = clock.remove();
+                if (entry.referenced && entry.encoded.get() != null)
+                {
+                    entry.referenced = false;
+                    clock.add(entry);
+                }
+                else
+                {
+                    entry.evict();
+                    entries.remove(entry.userName, entry);
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * The JSON of a snapshot, and the list and version it was encoded from.
+     */
+    private static final class Encoded
+    {
+        private final long listId;
+        private final long version;
+        private final byte[] json;
+
+        Encoded(long listId, long version, byte[] json)
+        {
+            this.listId = listId;
+            this.version = version;
+            this.json = json;
+        }
+
+        boolean matches(Snapshot todos)
+        {
+            return listId == todos.getListId() && version == todos.getVersion();
+        }
+    }
+
+    /**
+     * A user's place in the cache, which outlives the encoded lists it holds until it is evicted.
+     */
+    private final class Entry
+    {
+        private final String userName;
+        // The encoded list, null once it has been invalidated, or EVICTED
+        private final AtomicReference<Encoded> encoded = new AtomicReference<>();
+        private volatile boolean referenced;
+
+        Entry(String userName)
+        {
+            this.userName = userName;
+        }
+
+        /**
+         * Replaces an older encoding of the list, so a slow reader never replaces a newer one.
+         *
+         * @return false if the entry was evicted
+         */
+        boolean set(Encoded next)
+        {
+            while (true)
+            {
+                Encoded current = encoded.get();
+                if (current == EVICTED)
+                {
+                    return false;
+                }
+                if (current != null && current.listId == next.listId && current.version >= next.version)
+                {
+                    return true;
+                }
+                if (encoded.compareAndSet(current, next))
+                {
+                    usedBytes.addAndGet(next.json.length - (current == null ? 0 : current.json.length));
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return true if an encoded list was dropped
+         */
+        boolean clear()
+        {
+            while (true)
+            {
+                Encoded current = encoded.get();
+                if (current == null || current == EVICTED)
+                {
+                    return false;
+                }
+                if (encoded.compareAndSet(current, null))
+                {
+                    usedBytes.addAndGet(-current.json.length);
+                    return true;
+                }
+            }
+        }
+
+        void evict()
+        {
+            Encoded current = encoded.getAndSet(EVICTED);
+            usedBytes.addAndGet(-ENTRY_OVERHEAD - (current == null ? 0 : current.json.length));
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import com.pingidentity.guides.spa.TodoStore.Snapshot;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An inverted index of the words in each user's todos, so searches only look at the todos that contain the words of
+ * the query instead of scanning the whole list.
+ * <p>
+ * Content is split into words at every character that is neither a letter nor a digit, and words are lower-cased.
+ * Each user has a map from each word to a posting list of the positions of the todos that contain it, which the
+ * {@link TodoStore} gives todos in the order they are written and keeps when it compacts the list, so posting lists are
+ * sorted. A query matches the todos that contain all of its words: the shortest posting list is walked and each
+ * position is looked up in the others with a binary search. A replaced todo is indexed again at its new position, and
+ * the positions of replaced and removed todos are dropped from the posting lists, along with words that no todo
+ * contains any more.
+ * <p>
+ * The index is updated as a {@link TodoStore.Listener}, so there is a single writer per user. Posting lists are
+ * published the same way as {@link Snapshot}s: the writer appends to a shared array, or copies it to drop a position,
+ * and publishes a new immutable view of it, so searches never block. Each user's index also publishes the last
+ * snapshot it indexed, which bounds the positions a search returns, so a search sees either all or none of the words
+ * of a todo.
+ */
+@Component
+public class TodoSearchIndex implements TodoStore.Listener
+{
+    private static final int INITIAL_POSTINGS_CAPACITY = 4;
+    private static final int MAX_QUERY_WORDS = 16;
+
+    private final ConcurrentNavigableMap<String, UserIndex> users = new ConcurrentSkipListMap<>();
+    private final LongAdder wordCount = new LongAdder();
+    private final LongAdder postingCount = new LongAdder();
+
+    @Override
+    public void created(String userName, Snapshot snapshot, int from)
+    {
+        getOrCreate(userName).index(snapshot);
+    }
+
+    @Override
+    public void replaced(String userName, Snapshot snapshot, int slot)
+    {
+        UserIndex userIndex = getOrCreate(userName);
+        userIndex.unindex(snapshot, slot);
+        userIndex.index(snapshot);
+    }
+
+    @Override
+    public void removed(String userName, Snapshot snapshot, int slot)
+    {
+        UserIndex userIndex = getOrCreate(userName);
+        userIndex.unindex(snapshot, slot);
+        userIndex.index(snapshot);
+    }
+
+    @Override
+    public void compacted(String userName, Snapshot snapshot)
+    {
+        // The todos are the same, and they are looked up by their positions in the compacted slots from now on
+        getOrCreate(userName).index(snapshot);
+    }
+
+    @Override
+    public void recovered(String userName, Snapshot snapshot)
+    {
+        getOrCreate(userName).index(snapshot);
+    }
+
+    /**
+     * Splits text into the words the index is searched by, in the order they first appear.
+     *
+     * @param text the content of a todo or a query
+     * @return the distinct lower-cased words of the text
+     */
+    static String[] words(String text)
+    {
+        Set<String> words = new LinkedHashSet<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); )
+        {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint))
+            {
+                if (start < 0)
+                {
+                    start = i;
+                }
+            }
+            else if (start >= 0)
+            {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return words.toArray(new String[0]);
+    }
+
+    /**
+     * Splits a query into words, with the same rules as content.
+     *
+     * @return the distinct words of the query
+     * @throws IllegalArgumentException if the query has no words or too many
+     */
+    static String[] queryWords(String query)
+    {
+        String[] words = words(query);
+        if (words.length == 0)
+        {
+            throw new IllegalArgumentException("The query must contain at least one word");
+        }
+        if (words.length > MAX_QUERY_WORDS)
+        {
+            throw new IllegalArgumentException("The query must not contain more than " + MAX_QUERY_WORDS + " words");
+        }
+        return words;
+    }
+
+    /**
+     * Passes a user's todos that contain all the words to a consumer, in the order they were created, until it
+     * returns {@code false}.
+     *
+     * @param userName the name of the user
+     * @param words    the words from {@link #queryWords(String)}
+     * @param start    the position in the user's todos to start at
+     * @param consumer the consumer of matching todos
+     * @return {@code false} if the consumer stopped the search
+     */
+    boolean search(String userName, String[] words, int start, MatchConsumer consumer)
+    {
+        UserIndex userIndex = users.get(userName);
+        return userIndex == null || userIndex.search(userName, words, start, consumer);
+    }
+
+    /**
+     * Searches the todos of all users, one user at a time in the order of their names, until the consumer returns
+     * {@code false}.
+     *
+     * @param words     the words from {@link #queryWords(String)}
+     * @param fromUser  the first user to search
+     * @param fromStart the position in the first user's todos to start at
+     * @param consumer  the consumer of matching todos
+     * @return {@code false} if the consumer stopped the search
+     */
+    boolean searchAll(String[] words, String fromUser, int fromStart, MatchConsumer consumer)
+    {
+        for (Map.Entry<String, UserIndex> entry : users.tailMap(fromUser, true).entrySet())
+        {
+            int start = entry.getKey().equals(fromUser) ? fromStart : 0;
+            if (!entry.getValue().search(entry.getKey(), words, start, consumer))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of distinct words of each user, summed over all users
+     */
+    public long getWordCount()
+    {
+        return wordCount.sum();
+    }
+
+    /**
+     * @return the number of entries in all posting lists
+     */
+    public long getPostingCount()
+    {
+        return postingCount.sum();
+    }
+
+    private UserIndex getOrCreate(String userName)
+    {
+        UserIndex userIndex = users.get(userName);
+        if (userIndex == null)
+        {
+            userIndex = users.computeIfAbsent(userName, name -> new UserIndex());
+        }
+
+        return userIndex;
+    }
+
+    /**
+     * Receives the todos matched by a search.
+     */
+    interface MatchConsumer
+    {
+        /**
+         * @param userName the name of the user the todo belongs to
+         * @param position the position of the todo in the user's todos
+         * @param todo     the matching todo
+         * @return {@code true} to continue the search
+         */
+        boolean accept(String userName, int position, Todo todo);
+    }
+
+    private final class UserIndex
+    {
+        private final Map<String, Postings> postings = new ConcurrentHashMap<>();
+        private volatile Snapshot indexed = Snapshot.EMPTY;
+
+        /**
+         * Indexes the todos of the snapshot that aren't indexed yet. Only called by the user's writer.
+         */
+        void index(Snapshot snapshot)
+        {
+            // Recovered snapshots may hold todos that were replaced or removed while the journal was replayed
+            for (int slot = snapshot.slotAt(indexed.getEndPosition()); slot < snapshot.getEndSlot(); slot++)
+            {
+                if (snapshot.isLive(slot))
+                {
+                    int position = snapshot.getPosition(slot);
+                    for (String word : words(snapshot.getContent(slot)))
+                    {
+                        add(word, position);
+                    }
+                }
+            }
+
+            // Published last, so searches only return todos whose words are all in the posting lists
+            indexed = snapshot;
+        }
+
+        /**
+         * Drops the position of a replaced or removed todo from the posting lists of its words. Only called by the
+         * user's writer, before the snapshot is indexed.
+         *
+         * @param slot the slot of the todo in the snapshot
+         */
+        void unindex(Snapshot snapshot, int slot)
+        {
+            int position = snapshot.getPosition(slot);
+            for (String word : words(snapshot.getContent(slot)))
+            {
+                remove(word, position);
+            }
+        }
+
+        private void add(String word, int position)
+        {
+            Postings current = postings.get(word);
+            if (current == null)
+            {
+                int[] positions = new int[INITIAL_POSTINGS_CAPACITY];
+                positions[0] = position;
+                postings.put(word, new Postings(positions, 1));
+                wordCount.increment();
+            }
+            else
+            {
+                int[] positions = current.positions;
+                if (current.size == positions.length)
+                {
+                    // Posting lists already published keep referencing the old array
+                    positions = Arrays.copyOf(positions, current.size << 1);
+                }
+                positions[current.size] = position;
+                postings.put(word, new Postings(positions, current.size + 1));
+            }
+            postingCount.increment();
+        }
+
+        private void remove(String word, int position)
+        {
+            Postings current = postings.get(word);
+            int index = current == null ? -1 : Arrays.binarySearch(current.positions, 0, current.size, position);
+            if (index < 0)
+            {
+                return;
+            }
+
+            if (current.size == 1)
+            {
+                postings.remove(word);
+                wordCount.decrement();
+            }
+            else
+            {
+                // Searches may be reading the shared array, so the position is dropped from a copy
+                int[] positions = new int[Math.max(INITIAL_POSTINGS_CAPACITY, current.size)];
+                System.arraycopy(current.positions, 0, positions, 0, index);
+                System.arraycopy(current.positions, index + 1, positions, index, current.size - index - 1);
+                postings.put(word, new Postings(positions, current.size - 1));
+            }
+            postingCount.decrement();
+        }
+
+        boolean search(String userName, String[] words, int start, MatchConsumer consumer)
+        {
+            Snapshot snapshot = indexed;
+            Postings[] lists = new Postings[words.length];
+            for (int i = 0; i < words.length; i++)
+            {
+                lists[i] = postings.get(words[i]);
+                if (lists[i] == null)
+                {
+                    return true;
+                }
+            }
+            Arrays.sort(lists, Comparator.comparingInt(list -> list.size));
+
+            Postings shortest = lists[0];
+            for (int i = shortest.indexOf(start); i < shortest.size; i++)
+            {
+                int position = shortest.positions[i];
+                if (position >= snapshot.getEndPosition())
+                {
+                    break;
+                }
+
+                // The posting lists may be newer than the snapshot, so the todo is checked against it
+                int slot = snapshot.slotAt(position);
+                if (slot < snapshot.getEndSlot() && snapshot.getPosition(slot) == position && snapshot.isLive(slot) &&
+                    containsAll(lists, position) && !consumer.accept(userName, position, snapshot.getTodo(slot)))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean containsAll(Postings[] lists, int position)
+        {
+            for (int i = 1; i < lists.length; i++)
+            {
+                if (Arrays.binarySearch(lists[i].positions, 0, lists[i].size, position) < 0)
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * An immutable view of the sorted positions of the todos that contain a word.
+     */
+    private static final class Postings
+    {
+        private final int[] positions;
+        private final int size;
+
+        Postings(int[] positions, int size)
+        {
+            this.positions = positions;
+            this.size = size;
+        }
+
+        /**
+         * @return the index of the first position that is at least {@code position}
+         */
+        int indexOf(int position)
+        {
+            int index = Arrays.binarySearch(positions, 0, size, position);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+}
@@ -0,0 +1,1199 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * An in-memory store for the todos of each user.
+ * <p>
+ * Each user's todos are kept in append-only arrays of slots that are owned by that user's writers. Writers for the
+ * same user are serialized on a per-user monitor, so writers for different users never contend. After each write an
+ * immutable {@link Snapshot} of the list is published through a volatile field, so readers never block.
+ * <p>
+ * Todos aren't kept as objects. Each user's arrays hold the two halves of each id and a reference to the content, which
+ * is kept as UTF-8 in the user's {@link ContentArena}, on the heap or off it with {@code todos.store.off-heap}. That is
+ * 24 bytes per todo besides its content and its entry in the id index, and the garbage collector only sees a few
+ * arrays per user. {@link Todo}s are created when a snapshot is iterated, while the {@link TodoJsonSerializer} writes
+ * JSON straight from the arrays and the arena.
+ * <p>
+ * Todos are identified by the ids their clients choose. Each user has a {@link TodoIdIndex} from ids to slots, so
+ * replacing or removing a todo takes constant time, and creating a todo with an id the user already has, which is what
+ * a retried create looks like, leaves the todos as they are and completes with the todo's own journal write. A todo
+ * whose journal write failed stays in memory, and the next write of it journals it again. Published slots are never
+ * written again, except to mark them with the version that replaced or removed their todo, so older snapshots still see
+ * it, and a replaced todo is written to a new slot at the end of the list. Once the replaced and removed todos take
+ * more slots or more content than the others, the user's todos are compacted: the others are copied to new arrays and a
+ * new arena, and published again with the same version. Each todo also has a position, which is given in the order
+ * todos are written and is kept by compactions, so cursors and search postings that refer to positions stay valid.
+ * <p>
+ * Each user may have at most {@code todos.max-per-user} todos. The limit is checked under the user's monitor, so
+ * concurrent writes can't exceed it, and it isn't applied to the todos recovered from the journal.
+ * <p>
+ * When the {@link TodoJournal} is enabled, the store is restored from it on startup and every write is queued to it
+ * in the same order as it is applied. Each write is also passed to the registered {@link Listener}s. The store is
+ * created eagerly even with lazy initialization, so the journal is recovered before the first request.
+ */
+@Component
+@Lazy(false)
+public class TodoStore implements TodoJournal.Target
+{
+    private static final int INITIAL_CAPACITY = 8;
+
+    private final ConcurrentMap<String, UserTodos> users = new ConcurrentHashMap<>();
+    private final AtomicLong nextListId = new AtomicLong(1);
+    private final LongAdder todoCount = new LongAdder();
+    private final LongAdder totalContentBytes = new LongAdder();
+    private final LongAdder removedCount = new LongAdder();
+    private final LongAdder arenaBytes = new LongAdder();
+    private final LongAdder compactionCount = new LongAdder();
+    private final TodoJournal journal;
+    private final boolean offHeap;
+    private final int maxTodosPerUser;
+    private final Listener[] listeners;
+
+    public TodoStore(TodoJournal journal,
+                     @Value("${todos.store.off-heap:false}") boolean offHeap,
+                     @Value("${todos.max-per-user:10000}") int maxTodosPerUser,
+                     ObjectProvider<Listener> listeners)
+    {
+        this.journal = journal;
+        this.offHeap = offHeap;
+        this.maxTodosPerUser = maxTodosPerUser;
+        this.listeners = listeners.orderedStream().toArray(Listener[]::new);
+        journal.open(this);
+
+        // Listeners are only notified of writes, so they are told once about the todos recovered from the journal
+        for (Listener listener : this.listeners)
+        {
+            forEachUser(listener::recovered);
+        }
+    }
+
+    /**
+     * Returns the current todos for a user.
+     *
+     * @param userName the name of the user
+     * @return a snapshot of the user's todos, which is empty if the user has never created a todo
+     */
+    public Snapshot read(String userName)
+    {
+        UserTodos userTodos = users.get(userName);
+        if (userTodos == null)
+        {
+            return Snapshot.EMPTY;
+        }
+
+        return userTodos.snapshot;
+    }
+
+    /**
+     * Appends a todo to a user's todos, unless the user already has a todo with the same id, which is left as it is.
+     * The todo is visible to readers as soon as this method returns.
+     *
+     * @param userName the name of the user
+     * @param todo     the todo to append
+     * @return a {@link Mono} that completes once the todo is durable
+     * @throws QuotaExceededException if the todo is new and the user already has {@code todos.max-per-user} todos
+     */
+    public Mono<Void> add(String userName, Todo todo)
+    {
+        CompletableFuture<Void> durable;
+        try
+        {
+            durable = getOrCreate(userName).add(todo);
+        }
+        finally
+        {
+            notifyWritten(userName);
+        }
+        return durable == null ? Mono.empty() : Mono.fromFuture(durable);
+    }
+
+    /**
+     * Appends several todos to a user's todos as a single write, so readers see either none or all of them. Todos with
+     * an id that the user already has, or that is repeated in the list, are left out.
+     *
+     * @param userName the name of the user
+     * @param todos    the todos to append, in order
+     * @return a {@link Mono} that completes once all the todos are durable
+     * @throws QuotaExceededException if the new todos would take the user over {@code todos.max-per-user} todos, in
+     *                                which case none of them are appended
+     */
+    public Mono<Void> addAll(String userName, List<Todo> todos)
+    {
+        if (todos.isEmpty())
+        {
+            return Mono.empty();
+        }
+
+        CompletableFuture<Void> durable;
+        try
+        {
+            durable = getOrCreate(userName).addAll(todos);
+        }
+        finally
+        {
+            notifyWritten(userName);
+        }
+        return durable == null ? Mono.empty() : Mono.fromFuture(durable);
+    }
+
+    /**
+     * Replaces the todo with the same id as the given one, which moves it to the end of the list, or appends the todo
+     * if the user has no todo with that id. Replacing a todo with the same content leaves it as it is.
+     *
+     * @param userName the name of the user
+     * @param todo     the todo to write
+     * @return a {@link Mono} of whether the todo was appended, that completes once the write is durable
+     * @throws QuotaExceededException if the todo is new and the user already has {@code todos.max-per-user} todos
+     */
+    public Mono<Boolean> put(String userName, Todo todo)
+    {
+        try
+        {
+            return Mono.fromFuture(getOrCreate(userName).put(todo));
+        }
+        finally
+        {
+            notifyWritten(userName);
+        }
+    }
+
+    /**
+     * Removes the todo with the given id from a user's todos.
+     *
+     * @param userName the name of the user
+     * @param id       the id of the todo
+     * @return a {@link Mono} of whether the user had the todo, that completes once the removal is durable
+     */
+    public Mono<Boolean> remove(String userName, UUID id)
+    {
+        UserTodos userTodos = users.get(userName);
+        if (userTodos == null)
+        {
+            return Mono.just(false);
+        }
+
+        try
+        {
+            return Mono.fromFuture(userTodos.remove(id));
+        }
+        finally
+        {
+            notifyWritten(userName);
+        }
+    }
+
+    /**
+     * @return the names of the users with todos. The set is a live view whose iterators are weakly consistent, so
+     * iterating it never blocks writers.
+     */
+    public Set<String> getUserNames()
+    {
+        return Collections.unmodifiableSet(users.keySet());
+    }
+
+    /**
+     * @return the number of users with todos
+     */
+    public int getUserCount()
+    {
+        return users.size();
+    }
+
+    /**
+     * @return the number of todos of all users
+     */
+    public long getTodoCount()
+    {
+        return todoCount.sum();
+    }
+
+    /**
+     * @return the size of the content of all todos, encoded as UTF-8
+     */
+    public long getContentBytes()
+    {
+        return totalContentBytes.sum();
+    }
+
+    /**
+     * @return the number of slots that hold replaced or removed todos, which are reclaimed when a user's todos are
+     * compacted
+     */
+    public long getRemovedCount()
+    {
+        return removedCount.sum();
+    }
+
+    /**
+     * @return whether the content of todos is kept off the heap
+     */
+    public boolean isOffHeap()
+    {
+        return offHeap;
+    }
+
+    /**
+     * @return the memory allocated for the content of todos, which is more than {@link #getContentBytes()} because
+     * each user's arena is allocated ahead and holds the content of replaced and removed todos until it is compacted
+     */
+    public long getArenaBytes()
+    {
+        return arenaBytes.sum();
+    }
+
+    /**
+     * @return the number of times a user's todos were compacted
+     */
+    public long getCompactionCount()
+    {
+        return compactionCount.sum();
+    }
+
+    @Override
+    public void restore(String userName, long version, List<Todo> todos, long lastWriteTime)
+    {
+        getOrCreate(userName).restore(version, todos, lastWriteTime);
+    }
+
+    @Override
+    public void replay(String userName, long version, Todo todo, long writeTime)
+    {
+        getOrCreate(userName).replay(version, todo, writeTime);
+    }
+
+    @Override
+    public void replayPut(String userName, long version, Todo todo, long writeTime)
+    {
+        getOrCreate(userName).replayPut(version, todo, writeTime);
+    }
+
+    @Override
+    public void replayRemove(String userName, long version, UUID id, long writeTime)
+    {
+        getOrCreate(userName).replayRemove(version, id, writeTime);
+    }
+
+    @Override
+    public void forEachUser(BiConsumer<String, Snapshot> consumer)
+    {
+        for (Map.Entry<String, UserTodos> entry : users.entrySet())
+        {
+            consumer.accept(entry.getKey(), entry.getValue().snapshot);
+        }
+    }
+
+    private UserTodos getOrCreate(String userName)
+    {
+        UserTodos userTodos = users.get(userName);
+        if (userTodos == null)
+        {
+            userTodos = users.computeIfAbsent(userName, UserTodos::new);
+        }
+
+        return userTodos;
+    }
+
+    private void notifyWritten(String userName)
+    {
+        for (Listener listener : listeners)
+        {
+            listener.written(userName);
+        }
+    }
+
+    private static <T> CompletableFuture<T> thenReturn(CompletableFuture<Void> durable, T value)
+    {
+        return durable == null ? CompletableFuture.completedFuture(value) : durable.thenApply(ignored -> value);
+    }
+
+    /**
+     * Thrown when a write would take a user over the maximum number of todos.
+     */
+    static final class QuotaExceededException extends RuntimeException
+    {
+        QuotaExceededException(int maxTodos)
+        {
+            super("A user is limited to " + maxTodos + " todos");
+        }
+    }
+
+    /**
+     * Notified of each write to a user's todos. Listeners are called while the user's monitor is held, so the
+     * notifications for a user arrive in write order and must not block. Listeners that hand the changes to code they
+     * don't control queue them, and pass them on from {@link #written}, which is called once the monitor is released.
+     */
+    interface Listener
+    {
+        /**
+         * @param userName the name of the user
+         * @param snapshot the snapshot published by the write
+         * @param from     the slot of the first created todo. The created todos take the slots up to the end of the
+         *                 snapshot.
+         */
+        void created(String userName, Snapshot snapshot, int from);
+
+        /**
+         * @param userName the name of the user
+         * @param snapshot the snapshot published by the write
+         * @param slot     the slot of the replaced todo. The todo that replaced it takes the last slot of the snapshot.
+         */
+        default void replaced(String userName, Snapshot snapshot, int slot)
+        {
+        }
+
+        /**
+         * @param userName the name of the user
+         * @param snapshot the snapshot published by the write
+         * @param slot     the slot of the removed todo, which can still be read from the snapshot
+         */
+        default void removed(String userName, Snapshot snapshot, int slot)
+        {
+        }
+
+        /**
+         * Called when a write compacted a user's todos, which moves them to new slots. The snapshot holds the same
+         * todos, at the same positions and version, as the one published by the write before, so only listeners that
+         * keep snapshots need to replace them.
+         *
+         * @param userName the name of the user
+         * @param snapshot the compacted todos
+         */
+        default void compacted(String userName, Snapshot snapshot)
+        {
+        }
+
+        /**
+         * Called once for each user whose todos were recovered from the journal at startup, before any writes.
+         *
+         * @param userName the name of the user
+         * @param snapshot the recovered todos
+         */
+        default void recovered(String userName, Snapshot snapshot)
+        {
+        }
+
+        /**
+         * Called after each write to a user's todos, or attempt to write, once the user's monitor is released. Calls
+         * for the same user may be concurrent, and may come in a different order than the writes.
+         *
+         * @param userName the name of the user
+         */
+        default void written(String userName)
+        {
+        }
+    }
+
+    private final class UserTodos
+    {
+        // Fewer slots aren't worth compacting
+        private static final int MIN_COMPACTION_SLOTS = 8;
+
+        private final String userName;
+        private final long id = nextListId.getAndIncrement();
+        // The most and least significant bits of the id in each slot, in pairs
+        private long[] ids = new long[2 * INITIAL_CAPACITY];
+        private long[] contents = new long[INITIAL_CAPACITY];
+        // The version that replaced or removed the todo in each slot, or 0, allocated by the first such write
+        private long[] removedAt;
+        // The position of the todo in each slot, or null while each slot is its own position
+        private int[] positions;
+        private ContentArena arena = new ContentArena(offHeap, 0);
+        private TodoIdIndex index = new TodoIdIndex();
+        private int slots;
+        private int nextPosition;
+        private int size;
+        private long contentBytes;
+        // The journal write of each todo that isn't known to be durable, by id, while it is pending and, once it
+        // failed, until the todo is written again. Created by the first journaled write.
+        private ConcurrentMap<UUID, CompletableFuture<Void>> writes;
+        private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+        UserTodos(String userName)
+        {
+            this.userName = userName;
+            arenaBytes.add(arena.getAllocatedBytes());
+        }
+
+        synchronized CompletableFuture<Void> add(Todo todo)
+        {
+            int slot = find(todo.getId());
+            if (slot >= 0)
+            {
+                return retried(todo.getId(), slot);
+            }
+
+            checkQuota(1);
+            int from = slots;
+            long version = snapshot.version + 1;
+            append(todo);
+            publish(version, System.currentTimeMillis());
+            notifyCreated(from);
+            return journal.isEnabled() ? journaled(todo.getId(), journal.append(userName, version, todo)) : null;
+        }
+
+        synchronized CompletableFuture<Void> addAll(List<Todo> todos)
+        {
+            List<Todo> created = newTodos(todos);
+            checkQuota(created.size());
+            List<CompletableFuture<Void>> durable = new ArrayList<>();
+            for (Todo todo : todos)
+            {
+                int slot = find(todo.getId());
+                CompletableFuture<Void> write = slot >= 0 ? retried(todo.getId(), slot) : null;
+                if (write != null)
+                {
+                    durable.add(write);
+                }
+            }
+
+            if (!created.isEmpty())
+            {
+                int from = slots;
+                long version = snapshot.version;
+                for (Todo todo : created)
+                {
+                    append(todo);
+                }
+
+                // Publish once, so the whole batch becomes visible together. The journal relies on writes being
+                // applied before they are queued to it.
+                publish(version + created.size(), System.currentTimeMillis());
+                notifyCreated(from);
+                if (journal.isEnabled())
+                {
+                    for (int i = 0; i < created.size(); i++)
+                    {
+                        Todo todo = created.get(i);
+                        durable.add(journaled(todo.getId(), journal.append(userName, version + i + 1, todo)));
+                    }
+                }
+            }
+
+            return durable.isEmpty() ? null : CompletableFuture.allOf(durable.toArray(new CompletableFuture<?>[0]));
+        }
+
+        synchronized CompletableFuture<Boolean> put(Todo todo)
+        {
+            int slot = find(todo.getId());
+            if (slot < 0)
+            {
+                checkQuota(1);
+                int from = slots;
+                long version = snapshot.version + 1;
+                append(todo);
+                publish(version, System.currentTimeMillis());
+                notifyCreated(from);
+                CompletableFuture<Void> durable =
+                        journal.isEnabled() ? journaled(todo.getId(), journal.append(userName, version, todo)) : null;
+                return thenReturn(durable, true);
+            }
+
+            if (ContentArena.getString(arena.getBuffer(), contents[slot]).equals(todo.getContent()))
+            {
+                return thenReturn(retried(todo.getId(), slot), false);
+            }
+
+            return thenReturn(replace(todo, slot), false);
+        }
+
+        synchronized CompletableFuture<Boolean> remove(UUID todoId)
+        {
+            int slot = find(todoId);
+            if (slot < 0)
+            {
+                // The todo may be gone because of a removal that isn't durable yet, which a retry waits for
+                CompletableFuture<Void> write = writes == null ? null : writes.get(todoId);
+                if (write == null)
+                {
+                    return CompletableFuture.completedFuture(false);
+                }
+                if (!write.isCompletedExceptionally())
+                {
+                    return thenReturn(write, true);
+                }
+
+                // The removal failed, so it is journaled again with a version of its own
+                long version = snapshot.version + 1;
+                publish(version, System.currentTimeMillis());
+                return thenReturn(journaled(todoId, journal.appendRemove(userName, version, todoId)), true);
+            }
+
+            long version = snapshot.version + 1;
+            index.remove(ids, todoId.getMostSignificantBits(), todoId.getLeastSignificantBits());
+            markRemoved(slot, version);
+            publish(version, System.currentTimeMillis());
+            notifyRemoved(slot);
+            if (compactIfSparse())
+            {
+                notifyCompacted();
+            }
+            CompletableFuture<Void> durable =
+                    journal.isEnabled() ? journaled(todoId, journal.appendRemove(userName, version, todoId)) : null;
+            return thenReturn(durable, true);
+        }
+
+        /**
+         * Writes a todo to a new slot at the end of the list in place of the todo in the given slot.
+         *
+         * @return the journal write, or null if the journal is disabled
+         */
+        private CompletableFuture<Void> replace(Todo todo, int slot)
+        {
+            long version = snapshot.version + 1;
+            // The new slot is written first, so content that doesn't fit in the arena leaves the todo as it was
+            append(todo);
+            markRemoved(slot, version);
+            publish(version, System.currentTimeMillis());
+            notifyReplaced(slot);
+            if (compactIfSparse())
+            {
+                notifyCompacted();
+            }
+            return journal.isEnabled() ? journaled(todo.getId(), journal.appendPut(userName, version, todo)) : null;
+        }
+
+        /**
+         * Called for a write that leaves a todo as it is, such as a retried create. The write completes with the
+         * todo's own journal write. If that write failed, the todo is written again as a replacement of itself, which
+         * moves it to the end of the list, so it is restored the same way whether or not the failed record made it to
+         * the journal.
+         *
+         * @return the todo's journal write, or null if the todo is durable
+         */
+        private CompletableFuture<Void> retried(UUID todoId, int slot)
+        {
+            CompletableFuture<Void> write = writes == null ? null : writes.get(todoId);
+            if (write == null || !write.isCompletedExceptionally())
+            {
+                return write;
+            }
+
+            return replace(snapshot.getTodo(slot), slot);
+        }
+
+        synchronized void replay(long version, Todo todo, long writeTime)
+        {
+            if (version > snapshot.version)
+            {
+                append(todo);
+                publish(version, replayedWriteTime(writeTime));
+            }
+        }
+
+        synchronized void replayPut(long version, Todo todo, long writeTime)
+        {
+            if (version > snapshot.version)
+            {
+                int slot = find(todo.getId());
+                append(todo);
+                if (slot >= 0)
+                {
+                    markRemoved(slot, version);
+                }
+                publish(version, replayedWriteTime(writeTime));
+                compactIfSparse();
+            }
+        }
+
+        synchronized void replayRemove(long version, UUID todoId, long writeTime)
+        {
+            if (version > snapshot.version)
+            {
+                int slot = find(todoId);
+                if (slot >= 0)
+                {
+                    index.remove(ids, todoId.getMostSignificantBits(), todoId.getLeastSignificantBits());
+                    markRemoved(slot, version);
+                }
+                publish(version, replayedWriteTime(writeTime));
+                compactIfSparse();
+            }
+        }
+
+        /**
+         * Records written before the journal kept write times leave the time of the last write as it was.
+         */
+        private long replayedWriteTime(long writeTime)
+        {
+            return writeTime == 0 ? snapshot.lastWriteTime : writeTime;
+        }
+
+        synchronized void restore(long version, List<Todo> todos, long lastWriteTime)
+        {
+            todoCount.add(-size);
+            totalContentBytes.add(-contentBytes);
+            removedCount.add(size - slots);
+            arenaBytes.add(-arena.getAllocatedBytes());
+            int capacity = Math.max(INITIAL_CAPACITY, todos.size());
+            ids = new long[2 * capacity];
+            contents = new long[capacity];
+            removedAt = null;
+            positions = null;
+            arena = new ContentArena(offHeap, 0);
+            arenaBytes.add(arena.getAllocatedBytes());
+            index = new TodoIdIndex();
+            slots = 0;
+            nextPosition = 0;
+            size = 0;
+            contentBytes = 0;
+
+            for (Todo todo : todos)
+            {
+                append(todo);
+            }
+            publish(version, lastWriteTime);
+        }
+
+        private int find(UUID todoId)
+        {
+            return index.find(ids, todoId.getMostSignificantBits(), todoId.getLeastSignificantBits());
+        }
+
+        /**
+         * @return the todos whose ids are neither in the user's todos nor earlier in the list
+         */
+        private List<Todo> newTodos(List<Todo> todos)
+        {
+            List<Todo> created = new ArrayList<>(todos.size());
+            Set<UUID> seen = new HashSet<>();
+            for (Todo todo : todos)
+            {
+                if (find(todo.getId()) < 0 && seen.add(todo.getId()))
+                {
+                    created.add(todo);
+                }
+            }
+            return created;
+        }
+
+        private void checkQuota(int count)
+        {
+            if (count > maxTodosPerUser - size)
+            {
+                throw new QuotaExceededException(maxTodosPerUser);
+            }
+        }
+
+        private CompletableFuture<Void> journaled(UUID todoId, CompletableFuture<Void> durable)
+        {
+            ConcurrentMap<UUID, CompletableFuture<Void>> writes = this.writes;
+            if (writes == null)
+            {
+                writes = new ConcurrentHashMap<>();
+                this.writes = writes;
+            }
+
+            writes.put(todoId, durable);
+            // Failed writes are kept, so the next write of the todo journals it again
+            ConcurrentMap<UUID, CompletableFuture<Void>> pending = writes;
+            durable.thenRun(() -> pending.remove(todoId, durable));
+            return durable;
+        }
+
+        private void notifyCreated(int from)
+        {
+            for (Listener listener : listeners)
+            {
+                listener.created(userName, snapshot, from);
+            }
+        }
+
+        private void notifyReplaced(int slot)
+        {
+            for (Listener listener : listeners)
+            {
+                listener.replaced(userName, snapshot, slot);
+            }
+        }
+
+        private void notifyRemoved(int slot)
+        {
+            for (Listener listener : listeners)
+            {
+                listener.removed(userName, snapshot, slot);
+            }
+        }
+
+        private void notifyCompacted()
+        {
+            for (Listener listener : listeners)
+            {
+                listener.compacted(userName, snapshot);
+            }
+        }
+
+        /**
+         * Writes a todo to the slot after the last one and indexes its id, without publishing it.
+         */
+        private void append(Todo todo)
+        {
+            if (slots == contents.length)
+            {
+                // Snapshots already published keep referencing the old arrays
+                ids = Arrays.copyOf(ids, ids.length << 1);
+                contents = Arrays.copyOf(contents, contents.length << 1);
+                if (removedAt != null)
+                {
+                    removedAt = Arrays.copyOf(removedAt, contents.length);
+                }
+                if (positions != null)
+                {
+                    positions = Arrays.copyOf(positions, contents.length);
+                }
+            }
+
+            // Slots below the published end are only written to mark them as removed, so it is safe to hand out the
+            // arrays
+            long allocated = arena.getAllocatedBytes();
+            contents[slots] = arena.add(todo.getContent().getBytes(StandardCharsets.UTF_8));
+            arenaBytes.add(arena.getAllocatedBytes() - allocated);
+            ids[2 * slots] = todo.getId().getMostSignificantBits();
+            ids[2 * slots + 1] = todo.getId().getLeastSignificantBits();
+            if (positions != null)
+            {
+                positions[slots] = nextPosition;
+            }
+            index.put(ids, slots);
+            int bytes = ContentArena.length(contents[slots]);
+            slots++;
+            nextPosition++;
+            size++;
+
+            todoCount.increment();
+            totalContentBytes.add(bytes);
+            contentBytes += bytes;
+        }
+
+        /**
+         * Marks the todo in a slot as replaced or removed by a version, without publishing it.
+         */
+        private void markRemoved(int slot, long version)
+        {
+            if (removedAt == null)
+            {
+                // Snapshots published before have no marks, which is right for them as the mark is for a later version
+                removedAt = new long[contents.length];
+            }
+            // Snapshots that read the slot concurrently see either 0 or a later version than theirs, so the todo is
+            // still there for them either way
+            removedAt[slot] = version;
+            int bytes = ContentArena.length(contents[slot]);
+            size--;
+
+            todoCount.decrement();
+            totalContentBytes.add(-bytes);
+            contentBytes -= bytes;
+            removedCount.increment();
+        }
+
+        /**
+         * Copies the todos that haven't been replaced or removed to new arrays and a new arena, once the others take
+         * more slots or more content than them, and publishes the copy with the same version. The cost of a
+         * compaction is at most that of the writes since the last one, and the todos keep their positions.
+         *
+         * @return whether the todos were compacted
+         */
+        private boolean compactIfSparse()
+        {
+            int removed = slots - size;
+            long removedBytes = arena.getUsedBytes() - contentBytes;
+            if (removed < MIN_COMPACTION_SLOTS || (removed <= size && removedBytes <= contentBytes))
+            {
+                return false;
+            }
+
+            int capacity = Math.max(INITIAL_CAPACITY, size + (size >> 1));
+            long[] liveIds = new long[2 * capacity];
+            long[] liveContents = new long[capacity];
+            int[] livePositions = new int[capacity];
+            ContentArena liveArena = new ContentArena(offHeap, (int) Math.min(Integer.MAX_VALUE, contentBytes * 3 / 2));
+            ByteBuffer content = arena.getBuffer();
+            int live = 0;
+            for (int slot = 0; slot < slots; slot++)
+            {
+                // Every mark is for the current version or an earlier one
+                if (removedAt[slot] == 0)
+                {
+                    liveIds[2 * live] = ids[2 * slot];
+                    liveIds[2 * live + 1] = ids[2 * slot + 1];
+                    liveContents[live] = liveArena.add(content, contents[slot]);
+                    livePositions[live] = positions == null ? slot : positions[slot];
+                    live++;
+                }
+            }
+
+            arenaBytes.add(liveArena.getAllocatedBytes() - arena.getAllocatedBytes());
+            removedCount.add(-removed);
+            compactionCount.increment();
+            // Published snapshots keep the old arrays and arena
+            ids = liveIds;
+            contents = liveContents;
+            positions = livePositions;
+            removedAt = null;
+            arena = liveArena;
+            slots = live;
+            index = new TodoIdIndex();
+            for (int slot = 0; slot < slots; slot++)
+            {
+                index.put(ids, slot);
+            }
+
+            publish(snapshot.version, snapshot.lastWriteTime);
+            return true;
+        }
+
+        private void publish(long version, long writeTime)
+        {
+            snapshot = new Snapshot(id,
+                                    ids,
+                                    contents,
+                                    removedAt,
+                                    positions,
+                                    arena.getBuffer(),
+                                    0,
+                                    slots,
+                                    0,
+                                    nextPosition,
+                                    size,
+                                    version,
+                                    contentBytes,
+                                    writeTime);
+        }
+    }
+
+    /**
+     * An immutable view of a user's todos at a point in time. The todos are kept in slots in the order they were
+     * written, and the slots of the todos replaced or removed by the time of the snapshot are skipped. Iterating it
+     * creates a {@link Todo} for each item read, while the accessors that take a slot read the arrays and the arena
+     * directly.
+     * <p>
+     * Slots are only valid within a snapshot, as compactions move todos to other slots. Positions are what refer to a
+     * todo across snapshots: they increase with the slots, and each todo keeps its position until it is replaced or
+     * removed.
+     */
+    static final class Snapshot extends AbstractCollection<Todo>
+    {
+        static final Snapshot EMPTY =
+                new Snapshot(0, new long[0], new long[0], null, null, null, 0, 0, 0, 0, 0, 0, 0, 0);
+
+        private final long listId;
+        private final long[] ids;
+        private final long[] contents;
+        private final long[] removedAt;
+        private final int[] positions;
+        private final ByteBuffer content;
+        private final int startSlot;
+        private final int endSlot;
+        private final int startPosition;
+        private final int endPosition;
+        private final int size;
+        private final long version;
+        private final long contentBytes;
+        private final long lastWriteTime;
+
+        private Snapshot(long listId,
+                         long[] ids,
+                         long[] contents,
+                         long[] removedAt,
+                         int[] positions,
+                         ByteBuffer content,
+                         int startSlot,
+                         int endSlot,
+                         int startPosition,
+                         int endPosition,
+                         int size,
+                         long version,
+                         long contentBytes,
+                         long lastWriteTime)
+        {
+            this.listId = listId;
+            this.ids = ids;
+            this.contents = contents;
+            this.removedAt = removedAt;
+            this.positions = positions;
+            this.content = content;
+            this.startSlot = startSlot;
+            this.endSlot = endSlot;
+            this.startPosition = startPosition;
+            this.endPosition = endPosition;
+            this.size = size;
+            this.version = version;
+            this.contentBytes = contentBytes;
+            this.lastWriteTime = lastWriteTime;
+        }
+
+        /**
+         * @return an identifier for the user's list that is unique within this store, or 0 for an empty list that
+         * was never written to
+         */
+        long getListId()
+        {
+            return listId;
+        }
+
+        /**
+         * @return the number of writes applied to the user's todos when this snapshot was taken
+         */
+        long getVersion()
+        {
+            return version;
+        }
+
+        /**
+         * @return the size of the content of the todos, encoded as UTF-8, which is kept up to date by each write
+         */
+        long getContentBytes()
+        {
+            return contentBytes;
+        }
+
+        /**
+         * @return the time of the last write in milliseconds since the epoch, or 0 if there was none or it was
+         * recovered from a journal written before write times were recorded
+         */
+        long getLastWriteTime()
+        {
+            return lastWriteTime;
+        }
+
+        /**
+         * @return the first slot of the snapshot
+         */
+        int getStartSlot()
+        {
+            return startSlot;
+        }
+
+        /**
+         * @return the slot after the last slot of the snapshot
+         */
+        int getEndSlot()
+        {
+            return endSlot;
+        }
+
+        /**
+         * @return the position of the first todo of the snapshot, or where the next todo will be for an empty page
+         */
+        int getStartPosition()
+        {
+            return startPosition;
+        }
+
+        /**
+         * @return the position after the last todo of the snapshot, which is where the next todo will be for a whole
+         * list
+         */
+        int getEndPosition()
+        {
+            return endPosition;
+        }
+
+        /**
+         * @return the position of the todo in a slot
+         */
+        int getPosition(int slot)
+        {
+            return positions == null ? checkSlot(slot) : positions[checkSlot(slot)];
+        }
+
+        /**
+         * @return the first slot whose todo is at or after the given position, which doesn't need to hold a todo in
+         * this snapshot, or the end slot if there is none
+         */
+        int slotAt(int position)
+        {
+            if (positions == null)
+            {
+                return Math.max(startSlot, Math.min(position, endSlot));
+            }
+
+            int index = Arrays.binarySearch(positions, startSlot, endSlot, position);
+            return index >= 0 ? index : -index - 1;
+        }
+
+        /**
+         * @return whether a slot holds a todo in this snapshot, rather than one that was replaced or removed
+         */
+        boolean isLive(int slot)
+        {
+            checkSlot(slot);
+            return removedAt == null || removedAt[slot] == 0 || removedAt[slot] > version;
+        }
+
+        /**
+         * @return the first slot at or after the given one that holds a todo in this snapshot, or the end slot if
+         * there is none
+         */
+        int nextSlot(int slot)
+        {
+            for (int i = Math.max(slot, startSlot); i < endSlot; i++)
+            {
+                if (removedAt == null || removedAt[i] == 0 || removedAt[i] > version)
+                {
+                    return i;
+                }
+            }
+            return endSlot;
+        }
+
+        long getMostSignificantIdBits(int slot)
+        {
+            return ids[2 * checkSlot(slot)];
+        }
+
+        long getLeastSignificantIdBits(int slot)
+        {
+            return ids[2 * checkSlot(slot) + 1];
+        }
+
+        UUID getId(int slot)
+        {
+            return new UUID(getMostSignificantIdBits(slot), getLeastSignificantIdBits(slot));
+        }
+
+        String getContent(int slot)
+        {
+            return ContentArena.getString(content, contents[checkSlot(slot)]);
+        }
+
+        /**
+         * Passes the content of a todo, encoded as UTF-8, to a consumer without decoding it.
+         */
+        void readContent(int slot, ContentArena.Utf8Consumer consumer) throws IOException
+        {
+            ContentArena.read(content, contents[checkSlot(slot)], consumer);
+        }
+
+        Todo getTodo(int slot)
+        {
+            Todo todo = new Todo();
+            todo.setId(getId(slot));
+            todo.setContent(getContent(slot));
+            return todo;
+        }
+
+        @Override
+        public Iterator<Todo> iterator()
+        {
+            return new Iterator<Todo>()
+            {
+                private int slot = nextSlot(startSlot);
+
+                @Override
+                public boolean hasNext()
+                {
+                    return slot < endSlot;
+                }
+
+                @Override
+                public Todo next()
+                {
+                    if (!hasNext())
+                    {
+                        throw new NoSuchElementException();
+                    }
+
+                    Todo todo = getTodo(slot);
+                    slot = nextSlot(slot + 1);
+                    return todo;
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            return size;
+        }
+
+        /**
+         * Returns a snapshot of the todos from a position on, so pages are serialized the same way as whole lists. The
+         * list id, version, content size and last write time are those of the whole list.
+         *
+         * @param fromPosition the position to start at, which doesn't need to hold a todo
+         * @param limit        the maximum number of todos in the page
+         */
+        Snapshot page(int fromPosition, int limit)
+        {
+            int start = nextSlot(slotAt(fromPosition));
+            int end = start;
+            int count = 0;
+            for (int slot = start; slot < endSlot && count < limit; slot = nextSlot(slot + 1))
+            {
+                count++;
+                end = slot + 1;
+            }
+
+            int pageStart = count == 0 ? endPosition : getPosition(start);
+            return new Snapshot(listId,
+                                ids,
+                                contents,
+                                removedAt,
+                                positions,
+                                content,
+                                start,
+                                end,
+                                pageStart,
+                                count == 0 ? pageStart : getPosition(end - 1) + 1,
+                                count,
+                                version,
+                                contentBytes,
+                                lastWriteTime);
+        }
+
+        private int checkSlot(int slot)
+        {
+            if (slot < startSlot || slot >= endSlot)
+            {
+                throw new IndexOutOfBoundsException("Slot: " + slot + ", Slots: " + startSlot + "-" + endSlot);
+            }
+            return slot;
+        }
+    }
+}
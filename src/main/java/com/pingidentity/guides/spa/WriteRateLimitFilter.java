@@ -0,0 +1,309 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.stereotype.Component;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link WebFilter} that limits how fast each user can write todos, with a token bucket per user.
+ * <p>
+ * Every request that writes to {@code /todos} takes a token, whether it creates one todo or a batch. The size of the
+ * bucket and the rate it refills at come from the user's roles, as configured in {@code todos.write-limit.roles}: a
+ * comma separated list of {@code role:rate:burst}, with the rate in tokens per second, where the role {@code *}
+ * applies to users without a listed role. A user with several listed roles gets the highest rate. A request that finds
+ * the bucket empty is answered with {@code 429 Too Many Requests} and a {@code Retry-After} header with the seconds
+ * until a token is available.
+ * <p>
+ * A bucket is kept as the single time at which it would be full again, as in the generic cell rate algorithm, so
+ * taking a token is one compare-and-set and never blocks. A bucket whose time has passed is full, which is the same as
+ * having no bucket, so every {@code todos.write-limit.eviction-interval} the buckets of idle users are removed. A
+ * bucket is marked as removed with a compare-and-set before it is taken out of the map, so a request that races with
+ * the eviction starts over with a new bucket instead of taking a token from a removed one.
+ * <p>
+ * The filter runs after the security filters, so the user is known. How many todos a user may have is limited by the
+ * {@link TodoStore}.
+ */
+@Component
+@Order(0)
+public class WriteRateLimitFilter implements WebFilter
+{
+    private static final String TODOS_PATH = "/todos";
+    private static final String ANY_ROLE = "*";
+    private static final String ROLE_PREFIX = "ROLE_";
+    private static final long EVICTED = -1;
+
+    private final boolean enabled;
+    private final Map<String, Limit> limits;
+    private final Limit defaultLimit;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final long startNanos = System.nanoTime();
+    private final Disposable eviction;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+
+    @Autowired
+    public WriteRateLimitFilter(@Value("${todos.write-limit.enabled:true}") boolean enabled,
+                                @Value("${todos.write-limit.roles:*:10:50}") String roles,
+                                @Value("${todos.write-limit.eviction-interval:1m}") Duration evictionInterval)
+    {
+        this.enabled = enabled;
+        this.limits = parseLimits(roles);
+        this.defaultLimit = limits.get(ANY_ROLE);
+        this.eviction = enabled ? Flux.interval(evictionInterval).subscribe(tick -> evictIdleUsers()) : null;
+    }
+
+    @PreDestroy
+    public void close()
+    {
+        if (eviction != null)
+        {
+            eviction.dispose();
+        }
+    }
+
+    @Override
+    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain)
+    {
+        if (!enabled || !isWrite(exchange.getRequest()))
+        {
+            return chain.filter(exchange);
+        }
+
+        return exchange.getPrincipal()
+                       .filter(Authentication.class::isInstance)
+                       .map(principal -> acquire((Authentication) principal))
+                       .defaultIfEmpty(0L)
+                       .flatMap(waitNanos -> waitNanos > 0 ? reject(exchange.getResponse(), waitNanos)
+                                                           : chain.filter(exchange));
+    }
+
+    /**
+     * @return the number of users with a bucket that isn't full
+     */
+    public int getUserCount()
+    {
+        return buckets.size();
+    }
+
+    /**
+     * @return the number of writes rejected because the user's bucket was empty
+     */
+    public long getRejectedCount()
+    {
+        return rejected.sum();
+    }
+
+    /**
+     * @return the number of buckets removed because they were full
+     */
+    public long getEvictionCount()
+    {
+        return evicted.sum();
+    }
+
+    private static boolean isWrite(ServerHttpRequest request)
+    {
+        HttpMethod method = request.getMethod();
+        if (method == HttpMethod.GET || method == HttpMethod.HEAD || method == HttpMethod.OPTIONS)
+        {
+            return false;
+        }
+
+        String path = request.getPath().pathWithinApplication().value();
+        return path.equals(TODOS_PATH) || path.startsWith(TODOS_PATH + '/');
+    }
+
+    /**
+     * Takes a token from the user's bucket.
+     *
+     * @return 0 if a token was taken, or else the nanoseconds until one is available
+     */
+    private long acquire(Authentication user)
+    {
+        while (true)
+        {
+            Bucket bucket = buckets.get(user.getName());
+            if (bucket == null)
+            {
+                bucket = buckets.computeIfAbsent(user.getName(), userName -> new Bucket(limit(user)));
+            }
+
+            long waitNanos = bucket.acquire(now());
+            if (waitNanos >= 0)
+            {
+                return waitNanos;
+            }
+            // The bucket was evicted between the lookup and taking a token
+        }
+    }
+
+    private Limit limit(Authentication user)
+    {
+        Limit limit = null;
+        for (GrantedAuthority authority : user.getAuthorities())
+        {
+            Limit roleLimit = limits.get(authority.getAuthority().replace(ROLE_PREFIX, ""));
+            if (roleLimit != null && (limit == null || roleLimit.intervalNanos < limit.intervalNanos))
+            {
+                limit = roleLimit;
+            }
+        }
+        return limit != null ? limit : defaultLimit;
+    }
+
+    private Mono<Void> reject(ServerHttpResponse response, long waitNanos)
+    {
+        rejected.increment();
+        response.setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+        long seconds = Math.max(1, (waitNanos + TimeUnit.SECONDS.toNanos(1) - 1) / TimeUnit.SECONDS.toNanos(1));
+        response.getHeaders().set(HttpHeaders.RETRY_AFTER, Long.toString(seconds));
+        return response.setComplete();
+    }
+
+    private void evictIdleUsers()
+    {
+        long now = now();
+        for (Map.Entry<String, Bucket> entry : buckets.entrySet())
+        {
+            if (entry.getValue().evictIfFull(now))
+            {
+                buckets.remove(entry.getKey(), entry.getValue());
+                evicted.increment();
+            }
+        }
+    }
+
+    /**
+     * @return the nanoseconds since this filter was created, which unlike {@link System#nanoTime()} is never negative
+     */
+    private long now()
+    {
+        return System.nanoTime() - startNanos;
+    }
+
+    static Map<String, Limit> parseLimits(String roles)
+    {
+        Map<String, Limit> limits = new HashMap<>();
+        for (String role : roles.split(","))
+        {
+            String[] fields = role.trim().split(":");
+            if (fields.length != 3)
+            {
+                throw new IllegalArgumentException("Expected role:rate:burst but got " + role);
+            }
+
+            double rate = Double.parseDouble(fields[1]);
+            int burst = Integer.parseInt(fields[2]);
+            if (rate <= 0 || burst < 1)
+            {
+                throw new IllegalArgumentException("The rate and burst of " + fields[0] + " must be positive");
+            }
+            limits.put(fields[0], new Limit((long) (TimeUnit.SECONDS.toNanos(1) / rate), burst));
+        }
+        if (!limits.containsKey(ANY_ROLE))
+        {
+            throw new IllegalArgumentException("todos.write-limit.roles must have a limit for " + ANY_ROLE);
+        }
+        return limits;
+    }
+
+    static final class Limit
+    {
+        private final long intervalNanos;
+        private final long burstNanos;
+
+        Limit(long intervalNanos, int burst)
+        {
+            this.intervalNanos = Math.max(1, intervalNanos);
+            this.burstNanos = this.intervalNanos * burst;
+        }
+    }
+
+    static final class Bucket
+    {
+        private final Limit limit;
+        // The time at which the bucket is full again, or EVICTED
+        private final AtomicLong fullAt = new AtomicLong();
+
+        Bucket(Limit limit)
+        {
+            this.limit = limit;
+        }
+
+        /**
+         * @return 0 if a token was taken, the nanoseconds until one is available, or -1 if the bucket was evicted
+         */
+        long acquire(long now)
+        {
+            while (true)
+            {
+                long current = fullAt.get();
+                if (current == EVICTED)
+                {
+                    return -1;
+                }
+
+                // Each token moves the time the bucket is full again one interval further away
+                long next = Math.max(current, now) + limit.intervalNanos;
+                long waitNanos = next - now - limit.burstNanos;
+                if (waitNanos > 0)
+                {
+                    return waitNanos;
+                }
+                if (fullAt.compareAndSet(current, next))
+                {
+                    return 0;
+                }
+            }
+        }
+
+        boolean evictIfFull(long now)
+        {
+            long current = fullAt.get();
+            return current != EVICTED && current <= now && fullAt.compareAndSet(current, EVICTED);
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.web.server.WebSession;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the {@link BoundedWebSessionStore}, with its sweeper running.
+ */
+class BoundedWebSessionStoreTest
+{
+    private final List<BoundedWebSessionStore> stores = new ArrayList<>();
+
+    @AfterEach
+    void closeStores() throws InterruptedException
+    {
+        for (BoundedWebSessionStore store : stores)
+        {
+            store.close();
+        }
+    }
+
+    @Test
+    void storesStartedSessionsOnly()
+    {
+        BoundedWebSessionStore store = newStore(10, Duration.ofSeconds(1));
+        WebSession empty = store.createWebSession().block();
+        empty.save().block();
+        WebSession started = newSession(store);
+
+        assertNull(store.retrieveSession(empty.getId()).block());
+        assertSame(started, store.retrieveSession(started.getId()).block());
+        assertEquals(1, store.getSessionCount());
+        assertEquals(1, store.getAttributeCount());
+    }
+
+    @Test
+    void nullAttributeDoesNotStartSession()
+    {
+        BoundedWebSessionStore store = newStore(10, Duration.ofSeconds(1));
+        WebSession session = store.createWebSession().block();
+        session.getAttributes().put("SPRING_SECURITY_CONTEXT", null);
+        session.save().block();
+
+        assertFalse(session.isStarted());
+        assertEquals(0, store.getSessionCount());
+    }
+
+    @Test
+    void storingRemovedSessionAgainFilesItOnce()
+    {
+        BoundedWebSessionStore store = newStore(10, Duration.ofSeconds(1));
+        WebSession session = newSession(store);
+        for (int i = 0; i < 100; i++)
+        {
+            // A request still holding the session saves it after another one removed it
+            store.removeSession(session.getId()).block();
+            session.save().block();
+        }
+
+        assertSame(session, store.retrieveSession(session.getId()).block());
+        assertEquals(1, store.getSessionCount());
+        assertEquals(1, store.getWheelEntryCount());
+    }
+
+    @Test
+    void evictsLeastRecentlyUsedSessionBeyondCapacity() throws InterruptedException
+    {
+        BoundedWebSessionStore store = newStore(2, Duration.ofMillis(10));
+        WebSession first = newSession(store);
+        Thread.sleep(20);
+        WebSession second = newSession(store);
+        Thread.sleep(20);
+        store.retrieveSession(first.getId()).block();
+        Thread.sleep(20);
+        WebSession third = newSession(store);
+
+        assertNotNull(store.retrieveSession(first.getId()).block());
+        assertNull(store.retrieveSession(second.getId()).block());
+        assertNotNull(store.retrieveSession(third.getId()).block());
+        assertEquals(2, store.getSessionCount());
+        assertEquals(1, store.getEvictionCount());
+    }
+
+    @Test
+    void evictedSessionIsNotStoredAgain()
+    {
+        BoundedWebSessionStore store = newStore(1, Duration.ofSeconds(1));
+        WebSession evicted = newSession(store);
+        WebSession kept = newSession(store);
+
+        // A request still holding the evicted session saves it
+        evicted.getAttributes().put("other", "value");
+        evicted.save().block();
+
+        assertNull(store.retrieveSession(evicted.getId()).block());
+        assertSame(kept, store.retrieveSession(kept.getId()).block());
+        assertEquals(1, store.getEvictionCount());
+    }
+
+    @Test
+    void expiredSessionIsNotStoredAgain()
+    {
+        BoundedWebSessionStore store = newStore(10, Duration.ofMillis(10));
+        WebSession session = store.createWebSession().block();
+        session.setMaxIdleTime(Duration.ofMillis(50));
+        session.getAttributes().put("name", "idle");
+        session.save().block();
+        awaitTrue(() -> store.getExpirationCount() == 1);
+
+        session.save().block();
+
+        assertEquals(0, store.getSessionCount());
+        assertNull(store.retrieveSession(session.getId()).block());
+    }
+
+    @Test
+    void sweeperRemovesIdleSessions()
+    {
+        BoundedWebSessionStore store = newStore(10, Duration.ofMillis(10));
+        WebSession idle = store.createWebSession().block();
+        idle.setMaxIdleTime(Duration.ofMillis(50));
+        idle.getAttributes().put("name", "idle");
+        idle.save().block();
+        WebSession active = newSession(store);
+
+        awaitTrue(() -> store.getExpirationCount() == 1);
+        assertEquals(1, store.getSessionCount());
+        assertNull(store.retrieveSession(idle.getId()).block());
+        assertSame(active, store.retrieveSession(active.getId()).block());
+        awaitTrue(() -> store.getWheelEntryCount() == 1);
+    }
+
+    @Test
+    void changedIdReplacesPreviousOne()
+    {
+        BoundedWebSessionStore store = newStore(10, Duration.ofSeconds(1));
+        WebSession session = newSession(store);
+        String previousId = session.getId();
+        session.changeSessionId().block();
+
+        assertNull(store.retrieveSession(previousId).block());
+        assertSame(session, store.retrieveSession(session.getId()).block());
+    }
+
+    @Test
+    void invalidatedSessionIsRemoved()
+    {
+        BoundedWebSessionStore store = newStore(10, Duration.ofSeconds(1));
+        WebSession session = newSession(store);
+        session.invalidate().block();
+
+        assertNull(store.retrieveSession(session.getId()).block());
+        assertTrue(session.getAttributes().isEmpty());
+        assertEquals(0, store.getSessionCount());
+    }
+
+    private BoundedWebSessionStore newStore(int maxSessions, Duration sweepInterval)
+    {
+        BoundedWebSessionStore store = new BoundedWebSessionStore(maxSessions, sweepInterval);
+        stores.add(store);
+        return store;
+    }
+
+    private static WebSession newSession(BoundedWebSessionStore store)
+    {
+        WebSession session = store.createWebSession().block();
+        session.getAttributes().put("name", "value");
+        session.save().block();
+        return session;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition)
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean())
+        {
+            assertTrue(System.nanoTime() < deadline, "Timed out waiting for the sweeper");
+            Thread.yield();
+        }
+    }
+}
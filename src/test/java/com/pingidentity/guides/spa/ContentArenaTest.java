@@ -0,0 +1,111 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the {@link ContentArena}, on the heap and in direct buffers.
+ */
+class ContentArenaTest
+{
+    @Test
+    void keepsContentAcrossGrowthOnHeap()
+    {
+        keepsContentAcrossGrowth(false);
+    }
+
+    @Test
+    void keepsContentAcrossGrowthOffHeap()
+    {
+        keepsContentAcrossGrowth(true);
+    }
+
+    @Test
+    void copiesContentFromAnotherArena()
+    {
+        ContentArena source = new ContentArena(true, 0);
+        long first = source.add(utf8("first"));
+        long second = source.add(utf8("s\u00e9cond"));
+
+        ContentArena target = new ContentArena(false, 0);
+        long copied = target.add(source.getBuffer(), second);
+        assertEquals("s\u00e9cond", ContentArena.getString(target.getBuffer(), copied));
+        assertEquals(ContentArena.length(second), target.getUsedBytes());
+        assertEquals("first", ContentArena.getString(source.getBuffer(), first));
+    }
+
+    @Test
+    void readPassesUtf8Bytes() throws Exception
+    {
+        ContentArena arena = new ContentArena(false, 0);
+        arena.add(utf8("skipped"));
+        long reference = arena.add(utf8("na\u00efve"));
+
+        StringBuilder read = new StringBuilder();
+        ContentArena.read(arena.getBuffer(), reference, (bytes, offset, length) ->
+                read.append(new String(bytes, offset, length, StandardCharsets.UTF_8)));
+        assertEquals("na\u00efve", read.toString());
+    }
+
+    @Test
+    void rejectsContentLongerThanMaxLength()
+    {
+        ContentArena arena = new ContentArena(false, 0);
+        assertThrows(IllegalArgumentException.class, () -> arena.add(new byte[ContentArena.MAX_LENGTH + 1]));
+        assertEquals(0, arena.getUsedBytes());
+    }
+
+    private static void keepsContentAcrossGrowth(boolean offHeap)
+    {
+        ContentArena arena = new ContentArena(offHeap, 0);
+        ByteBuffer first = arena.getBuffer();
+        List<Long> references = new ArrayList<>();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++)
+        {
+            references.add(arena.add(utf8("todo " + i)));
+            buffers.add(arena.getBuffer());
+        }
+
+        assertTrue(arena.getAllocatedBytes() >= arena.getUsedBytes());
+        assertEquals(offHeap, !arena.getBuffer().hasArray());
+        for (int i = 0; i < references.size(); i++)
+        {
+            // Content is readable both from the buffer it was published with and from the current one
+            assertEquals("todo " + i, ContentArena.getString(buffers.get(i), references.get(i)));
+            assertEquals("todo " + i, ContentArena.getString(arena.getBuffer(), references.get(i)));
+        }
+        assertEquals("todo 0", ContentArena.getString(first, references.get(0)));
+    }
+
+    private static byte[] utf8(String content)
+    {
+        return content.getBytes(StandardCharsets.UTF_8);
+    }
+}
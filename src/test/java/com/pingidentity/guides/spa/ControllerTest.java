@@ -0,0 +1,351 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pingidentity.guides.spa.Controller.BatchResult;
+import com.pingidentity.guides.spa.Controller.ItemResult;
+import com.pingidentity.guides.spa.Controller.Todo;
+import com.pingidentity.guides.spa.Controller.Todos;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.codec.ServerSentEvent;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.server.ServerWebInputException;
+import reactor.core.publisher.Flux;
+import reactor.test.StepVerifier;
+
+import javax.validation.Validation;
+import javax.validation.ValidatorFactory;
+import java.io.IOException;
+import java.security.Principal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.pingidentity.guides.spa.TodoFixtures.contents;
+import static com.pingidentity.guides.spa.TodoFixtures.newJournal;
+import static com.pingidentity.guides.spa.TodoFixtures.newStore;
+import static com.pingidentity.guides.spa.TodoFixtures.newTodo;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Tests the {@link Controller} called directly, without the web layer in front of it.
+ */
+class ControllerTest
+{
+    private static final Principal ALICE = () -> "alice";
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private TodoJournal journal;
+    private ValidatorFactory validatorFactory;
+    private TodoStore store;
+    private Controller controller;
+
+    @BeforeEach
+    void createController()
+    {
+        journal = newJournal();
+        TodoEvents events = new TodoEvents(256, "disconnect", Duration.ofSeconds(15), Duration.ofMinutes(5));
+        TodoSearchIndex searchIndex = new TodoSearchIndex();
+        TodoResponseCache responseCache = new TodoResponseCache(objectMapper, DataSize.ofMegabytes(1));
+        store = newStore(journal, false, 100, events, searchIndex, responseCache);
+        validatorFactory = Validation.buildDefaultValidatorFactory();
+        controller = new Controller(store, events, searchIndex, responseCache, validatorFactory.getValidator());
+    }
+
+    @AfterEach
+    void close() throws InterruptedException
+    {
+        validatorFactory.close();
+        journal.close();
+    }
+
+    @Test
+    void batchCreatesValidItemsAndReportsInvalidOnes()
+    {
+        Todo valid = newTodo("valid");
+        Todo empty = newTodo("");
+        BatchResult result = controller.createAll(ALICE, Flux.just(Optional.of(valid), Optional.of(empty))).block();
+
+        assertEquals(1, result.getCreated());
+        assertEquals(Arrays.asList(201, 400), statuses(result));
+        assertEquals(empty.getId(), result.getResults().get(1).getId());
+        assertEquals(Collections.singletonList("content must not be empty"), result.getResults().get(1).getErrors());
+        assertEquals(Collections.singletonList("valid"), contents(store.read("alice")));
+    }
+
+    @Test
+    void batchReportsNullItemsAsInvalid()
+    {
+        Todo valid = newTodo("valid");
+        BatchResult result = controller.createAll(ALICE, Flux.just(Optional.empty(), Optional.of(valid))).block();
+
+        assertEquals(1, result.getCreated());
+        assertEquals(Arrays.asList(400, 201), statuses(result));
+        ItemResult rejected = result.getResults().get(0);
+        assertNull(rejected.getId());
+        assertEquals(Collections.singletonList("must not be null"), rejected.getErrors());
+        assertEquals(Collections.singletonList("valid"), contents(store.read("alice")));
+    }
+
+    @Test
+    void pagesFollowCursorsToTheEnd() throws IOException
+    {
+        List<UUID> added = addTodos(25);
+
+        List<UUID> read = new ArrayList<>();
+        List<Integer> pageSizes = new ArrayList<>();
+        String cursor = null;
+        do
+        {
+            Todos page = readPage(10, cursor);
+            page.getTodos().forEach(todo -> read.add(todo.getId()));
+            pageSizes.add(page.getTodos().size());
+            cursor = page.getNext();
+        }
+        while (cursor != null);
+
+        assertEquals(Arrays.asList(10, 10, 5), pageSizes);
+        assertEquals(added, read);
+    }
+
+    @Test
+    void readWithoutLimitOrCursorReturnsWholeList() throws IOException
+    {
+        List<UUID> added = addTodos(25);
+
+        Todos todos = readPage(null, null);
+        assertEquals(added, ids(todos.getTodos()));
+        assertNull(todos.getNext());
+    }
+
+    @Test
+    void streamStartsAtCursor() throws IOException
+    {
+        List<UUID> added = addTodos(25);
+        String cursor = readPage(10, null).getNext();
+
+        assertEquals(added, ids(controller.stream(ALICE, null).collectList().block()));
+        assertEquals(added.subList(10, 25), ids(controller.stream(ALICE, cursor).collectList().block()));
+    }
+
+    @Test
+    void cursorStaysValidWhenEarlierTodosAreReplacedOrRemoved() throws IOException
+    {
+        List<UUID> added = addTodos(40);
+        String cursor = readPage(10, null).getNext();
+
+        for (int i = 0; i < 40; i++)
+        {
+            if (i < 10 || i >= 20)
+            {
+                store.remove("alice", added.get(i)).block();
+            }
+        }
+        assertNotEquals(0L, store.getCompactionCount(), "The todos were not compacted");
+        // Replacing a todo moves it to the end, where the cursor reaches it again
+        Todo replaced = newTodo("replaced");
+        replaced.setId(added.get(12));
+        store.put("alice", replaced).block();
+
+        Todos page = readPage(10, cursor);
+        List<UUID> expected = new ArrayList<>(added.subList(10, 20));
+        expected.remove(added.get(12));
+        expected.add(added.get(12));
+        assertEquals(expected, ids(page.getTodos()));
+    }
+
+    @Test
+    void invalidCursorOrLimitIsRejected()
+    {
+        assertThrows(ServerWebInputException.class, () -> controller.read(ALICE, 10, "not a cursor", exchange(null)));
+        assertThrows(ServerWebInputException.class, () -> controller.read(ALICE, 10, "AAAA", exchange(null)));
+        assertThrows(ServerWebInputException.class, () -> controller.read(ALICE, 0, null, exchange(null)));
+    }
+
+    @Test
+    void unchangedListIsNotModified()
+    {
+        addTodos(3);
+        MockServerWebExchange first = exchange(null);
+        assertNotNull(controller.read(ALICE, null, null, first).block());
+        String eTag = first.getResponse().getHeaders().getETag();
+        assertNotNull(eTag);
+
+        MockServerWebExchange second = exchange(eTag);
+        assertNull(controller.read(ALICE, null, null, second).block());
+        assertEquals(HttpStatus.NOT_MODIFIED, second.getResponse().getStatusCode());
+
+        store.add("alice", newTodo("another")).block();
+        MockServerWebExchange afterWrite = exchange(eTag);
+        assertNotNull(controller.read(ALICE, null, null, afterWrite).block());
+        assertNotEquals(eTag, afterWrite.getResponse().getHeaders().getETag());
+    }
+
+    @Test
+    void unchangedPageIsNotModified() throws IOException
+    {
+        addTodos(30);
+        String cursor = readPage(10, null).getNext();
+        MockServerWebExchange first = exchange(null);
+        controller.read(ALICE, 10, cursor, first).block();
+        String eTag = first.getResponse().getHeaders().getETag();
+
+        MockServerWebExchange second = exchange(eTag);
+        assertNull(controller.read(ALICE, 10, cursor, second).block());
+        assertEquals(HttpStatus.NOT_MODIFIED, second.getResponse().getStatusCode());
+
+        // Pages of the same list have their own tags
+        MockServerWebExchange otherPage = exchange(eTag);
+        assertNotNull(controller.read(ALICE, 20, cursor, otherPage).block());
+        MockServerWebExchange wholeList = exchange(eTag);
+        assertNotNull(controller.read(ALICE, null, null, wholeList).block());
+    }
+
+    @Test
+    void unchangedUserIsNotModified()
+    {
+        Authentication user = new UsernamePasswordAuthenticationToken("alice", null,
+                                                                      AuthorityUtils.createAuthorityList("ROLE_user"));
+        MockServerWebExchange first = exchange(null);
+        assertNotNull(controller.user(user, first).block());
+        String eTag = first.getResponse().getHeaders().getETag();
+
+        MockServerWebExchange second = exchange(eTag);
+        assertNull(controller.user(user, second).block());
+        assertEquals(HttpStatus.NOT_MODIFIED, second.getResponse().getStatusCode());
+
+        // The tag changes with the user's groups
+        Authentication sre = new UsernamePasswordAuthenticationToken("alice", null,
+                                                                     AuthorityUtils.createAuthorityList("ROLE_sre"));
+        MockServerWebExchange regrouped = exchange(eTag);
+        assertNotNull(controller.user(sre, regrouped).block());
+    }
+
+    @Test
+    void watchPushesCreatedTodosOfTheUserOnly()
+    {
+        Todo first = newTodo("first");
+        Todo second = newTodo("second");
+        Todo third = newTodo("third");
+
+        StepVerifier.create(controller.watch(ALICE))
+                    .then(() ->
+                    {
+                        store.add("bob", newTodo("not alice's")).block();
+                        store.add("alice", first).block();
+                        store.addAll("alice", Arrays.asList(second, third)).block();
+                    })
+                    .assertNext(event -> assertCreated(event, "1", first))
+                    .assertNext(event -> assertCreated(event, "2", second))
+                    .assertNext(event -> assertCreated(event, "3", third))
+                    .thenCancel()
+                    .verify(Duration.ofSeconds(10));
+    }
+
+    @Test
+    void subscriberCanWriteTodosOfTheUserWhileNotified()
+    {
+        Todo first = newTodo("first");
+        Todo second = newTodo("second");
+
+        StepVerifier.create(controller.watch(ALICE))
+                    .then(() -> store.add("alice", first).block())
+                    .assertNext(event ->
+                    {
+                        assertCreated(event, "1", first);
+                        // Waiting for another writer of the user would deadlock if events were sent under its monitor
+                        CompletableFuture<Void> write = CompletableFuture.runAsync(() -> store.add("alice", second)
+                                                                                              .block());
+                        assertDoesNotThrow(() -> write.get(5, TimeUnit.SECONDS));
+                    })
+                    .assertNext(event -> assertCreated(event, "2", second))
+                    .thenCancel()
+                    .verify(Duration.ofSeconds(10));
+    }
+
+    private static void assertCreated(ServerSentEvent<Todo> event, String id, Todo todo)
+    {
+        assertEquals(TodoEvents.CREATE_EVENT, event.event());
+        assertEquals(id, event.id());
+        assertEquals(todo.getId(), event.data().getId());
+    }
+
+    private List<UUID> addTodos(int count)
+    {
+        List<UUID> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+        {
+            Todo todo = newTodo("todo " + i);
+            ids.add(todo.getId());
+            store.add("alice", todo).block();
+        }
+        return ids;
+    }
+
+    private Todos readPage(Integer limit, String cursor) throws IOException
+    {
+        DataBuffer buffer = controller.read(ALICE, limit, cursor, exchange(null)).block();
+        byte[] json = new byte[buffer.readableByteCount()];
+        buffer.read(json);
+        return objectMapper.readValue(json, Todos.class);
+    }
+
+    private static MockServerWebExchange exchange(String ifNoneMatch)
+    {
+        MockServerHttpRequest.BaseBuilder<?> request = MockServerHttpRequest.get("/todos");
+        if (ifNoneMatch != null)
+        {
+            request.ifNoneMatch(ifNoneMatch);
+        }
+        return MockServerWebExchange.from(request);
+    }
+
+    private static List<UUID> ids(Collection<Todo> todos)
+    {
+        return todos.stream().map(Todo::getId).collect(Collectors.toList());
+    }
+
+    private static List<Integer> statuses(BatchResult result)
+    {
+        return result.getResults().stream().map(ItemResult::getStatus).collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.EncryptedCookieSecurityContextRepository.Contents;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpCookie;
+import org.springframework.http.ResponseCookie;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.authority.SimpleGrantedAuthority;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextImpl;
+
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the encryption, expiry and refresh of the cookies of the {@link EncryptedCookieSecurityContextRepository}.
+ */
+class EncryptedCookieSecurityContextRepositoryTest
+{
+    private static final String OLD_KEY = Base64.getEncoder().encodeToString(new byte[32]);
+    private static final String NEW_KEY = Base64.getEncoder().encodeToString(new byte[16]);
+    private static final List<GrantedAuthority> ROLES =
+            Collections.singletonList(new SimpleGrantedAuthority("ROLE_user"));
+
+    private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(5);
+    private static final Duration REFRESH_INTERVAL = Duration.ofMinutes(1);
+    private static final Duration MAX_AGE = Duration.ofHours(8);
+
+    @Test
+    void savedCookieAuthenticatesLaterRequests()
+    {
+        EncryptedCookieSecurityContextRepository repository = newRepository("AUTH", OLD_KEY);
+        String cookie = save(repository);
+
+        SecurityContext context = load(repository, "AUTH", cookie);
+        assertNotNull(context);
+        Authentication authentication = context.getAuthentication();
+        assertEquals("alice", authentication.getName());
+        assertEquals(ROLES, authentication.getAuthorities());
+    }
+
+    @Test
+    void tamperedCookieIsRejected()
+    {
+        EncryptedCookieSecurityContextRepository repository = newRepository("AUTH", OLD_KEY);
+        byte[] token = Base64.getUrlDecoder().decode(save(repository));
+        token[token.length - 1] ^= 1;
+
+        assertNull(load(repository, "AUTH", Base64.getUrlEncoder().withoutPadding().encodeToString(token)));
+        assertNull(load(repository, "AUTH", "not a cookie"));
+    }
+
+    @Test
+    void cookieIsOnlyAcceptedUnderItsName()
+    {
+        String cookie = save(newRepository("AUTH", OLD_KEY));
+
+        assertNull(load(newRepository("OTHER", OLD_KEY), "OTHER", cookie));
+    }
+
+    @Test
+    void cookiesOfRotatedKeysAreAcceptedUntilTheKeyIsRemoved()
+    {
+        String cookie = save(newRepository("AUTH", OLD_KEY));
+
+        assertNotNull(load(newRepository("AUTH", NEW_KEY, OLD_KEY), "AUTH", cookie));
+        assertNull(load(newRepository("AUTH", NEW_KEY), "AUTH", cookie));
+    }
+
+    @Test
+    void refreshKeepsLoginTimeAndMovesDeadline()
+    {
+        EncryptedCookieSecurityContextRepository repository = newRepository("AUTH", OLD_KEY);
+        long now = System.currentTimeMillis();
+        long issued = now - Duration.ofHours(1).toMillis();
+        String cookie = repository.encrypt("alice", ROLES, issued, now + Duration.ofMinutes(3).toMillis());
+
+        MockServerWebExchange exchange = exchange("AUTH", cookie);
+        assertNotNull(repository.load(exchange).block());
+
+        ResponseCookie refreshed = exchange.getResponse().getCookies().getFirst("AUTH");
+        assertNotNull(refreshed, "The cookie was not reissued");
+        Contents contents = repository.decrypt(refreshed.getValue());
+        assertEquals(issued, contents.issuedMillis);
+        assertTrue(contents.deadlineMillis >= now + IDLE_TIMEOUT.toMillis());
+    }
+
+    @Test
+    void saveReplacesCookieRefreshedByLoad()
+    {
+        EncryptedCookieSecurityContextRepository repository = newRepository("AUTH", OLD_KEY);
+        long now = System.currentTimeMillis();
+        String cookie = repository.encrypt("alice", ROLES, now - Duration.ofHours(1).toMillis(), now + 1_000);
+
+        MockServerWebExchange exchange = exchange("AUTH", cookie);
+        assertNotNull(repository.load(exchange).block());
+        repository.save(exchange, new SecurityContextImpl()).block();
+
+        List<ResponseCookie> cookies = exchange.getResponse().getCookies().get("AUTH");
+        assertEquals(1, cookies.size());
+        assertEquals(Duration.ZERO, cookies.get(0).getMaxAge());
+    }
+
+    @Test
+    void recentlyRefreshedCookieIsNotReissued()
+    {
+        EncryptedCookieSecurityContextRepository repository = newRepository("AUTH", OLD_KEY);
+        long now = System.currentTimeMillis();
+        String cookie = repository.encrypt("alice", ROLES, now, now + IDLE_TIMEOUT.toMillis());
+
+        MockServerWebExchange exchange = exchange("AUTH", cookie);
+        assertNotNull(repository.load(exchange).block());
+        assertFalse(exchange.getResponse().getCookies().containsKey("AUTH"));
+    }
+
+    @Test
+    void deadlineNeverMovesPastMaxAge()
+    {
+        EncryptedCookieSecurityContextRepository repository = newRepository("AUTH", OLD_KEY);
+        long issued = 1_000_000;
+        long nearMaxAge = issued + MAX_AGE.toMillis() - Duration.ofMinutes(2).toMillis();
+
+        assertEquals(issued + Duration.ofMinutes(5).toMillis(), repository.deadline(issued, issued));
+        assertEquals(issued + MAX_AGE.toMillis(), repository.deadline(issued, nearMaxAge));
+
+        // A cookie at its maximum age is no longer reissued, however often it is used
+        String cookie = repository.encrypt("alice", ROLES, issued, repository.deadline(issued, nearMaxAge));
+        Contents contents = repository.decrypt(cookie);
+        assertFalse(repository.isExpired(contents, nearMaxAge));
+        assertEquals(contents.deadlineMillis, repository.deadline(issued, nearMaxAge + REFRESH_INTERVAL.toMillis()));
+        assertTrue(repository.isExpired(contents, issued + MAX_AGE.toMillis()));
+    }
+
+    @Test
+    void cookieOlderThanMaxAgeIsRejected()
+    {
+        EncryptedCookieSecurityContextRepository repository = newRepository("AUTH", OLD_KEY);
+        long now = System.currentTimeMillis();
+        // Issued under a longer maximum age, so its deadline is still ahead
+        String cookie = repository.encrypt("alice",
+                                           ROLES,
+                                           now - MAX_AGE.toMillis() - 1,
+                                           now + IDLE_TIMEOUT.toMillis());
+
+        MockServerWebExchange exchange = exchange("AUTH", cookie);
+        assertNull(repository.load(exchange).block());
+        assertFalse(exchange.getResponse().getCookies().containsKey("AUTH"));
+    }
+
+    @Test
+    void cookieIdleForIdleTimeoutIsRejected()
+    {
+        EncryptedCookieSecurityContextRepository repository = newRepository("AUTH", OLD_KEY);
+        long now = System.currentTimeMillis();
+        String cookie = repository.encrypt("alice", ROLES, now - IDLE_TIMEOUT.toMillis(), now);
+
+        assertNull(load(repository, "AUTH", cookie));
+    }
+
+    private static EncryptedCookieSecurityContextRepository newRepository(String cookieName, String... keys)
+    {
+        return new EncryptedCookieSecurityContextRepository(cookieName, keys, IDLE_TIMEOUT, REFRESH_INTERVAL, MAX_AGE);
+    }
+
+    private static String save(EncryptedCookieSecurityContextRepository repository)
+    {
+        MockServerWebExchange exchange = MockServerWebExchange.from(MockServerHttpRequest.get("/todos"));
+        Authentication authentication = new UsernamePasswordAuthenticationToken("alice", null, ROLES);
+        repository.save(exchange, new SecurityContextImpl(authentication)).block();
+
+        ResponseCookie cookie = exchange.getResponse().getCookies().getFirst("AUTH");
+        assertNotNull(cookie);
+        return cookie.getValue();
+    }
+
+    private static SecurityContext load(EncryptedCookieSecurityContextRepository repository,
+                                        String cookieName,
+                                        String cookie)
+    {
+        return repository.load(exchange(cookieName, cookie)).block();
+    }
+
+    private static MockServerWebExchange exchange(String cookieName, String cookie)
+    {
+        HttpCookie requestCookie = new HttpCookie(cookieName, cookie);
+        return MockServerWebExchange.from(MockServerHttpRequest.get("/todos").cookie(requestCookie));
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the {@link RequestLogBuffer}.
+ */
+class RequestLogBufferTest
+{
+    @Test
+    void drainsEntriesInOrderWithFullUri()
+    {
+        RequestLogBuffer buffer = new RequestLogBuffer(8);
+        URI page = URI.create("https://localhost:8443/todos?limit=10&cursor=AAAA");
+        assertTrue(buffer.offer("GET", page, 200, 42, 1_000));
+        assertTrue(buffer.offer("DELETE", URI.create("https://localhost:8443/todos/1"), 404, -1, 2_000));
+
+        List<String> lines = new ArrayList<>();
+        assertEquals(2, buffer.drain((method, uri, status, contentLength, latencyNanos) ->
+                lines.add(method + " " + uri + " " + status + " " + contentLength + " " + latencyNanos), 10));
+        assertEquals(Arrays.asList("GET https://localhost:8443/todos?limit=10&cursor=AAAA 200 42 1000",
+                                   "DELETE https://localhost:8443/todos/1 404 -1 2000"),
+                     lines);
+        assertEquals(0, buffer.drain((method, uri, status, contentLength, latencyNanos) -> lines.add(method), 10));
+    }
+
+    @Test
+    void rejectsEntriesWhenFullUntilDrained()
+    {
+        // The capacity is rounded up to a power of two
+        RequestLogBuffer buffer = new RequestLogBuffer(3);
+        for (int i = 0; i < 4; i++)
+        {
+            assertTrue(buffer.offer("GET", uri(i), 200, 0, 0));
+        }
+        assertFalse(buffer.offer("GET", uri(4), 200, 0, 0));
+
+        List<URI> drained = new ArrayList<>();
+        assertEquals(1, buffer.drain((method, uri, status, contentLength, latencyNanos) -> drained.add(uri), 1));
+        assertTrue(buffer.offer("GET", uri(5), 200, 0, 0));
+        assertEquals(4, buffer.drain((method, uri, status, contentLength, latencyNanos) -> drained.add(uri), 10));
+        assertEquals(Arrays.asList(uri(0), uri(1), uri(2), uri(3), uri(5)), drained);
+    }
+
+    @Test
+    void keepsEveryEntryOfConcurrentProducers() throws Exception
+    {
+        RequestLogBuffer buffer = new RequestLogBuffer(1024);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<Integer>> producers = new ArrayList<>();
+            for (int p = 0; p < 4; p++)
+            {
+                int producer = p;
+                producers.add(executor.submit(() ->
+                {
+                    int offered = 0;
+                    for (int i = 0; i < 10_000; i++)
+                    {
+                        if (buffer.offer("GET", uri(producer * 10_000 + i), 200, 0, 0))
+                        {
+                            offered++;
+                        }
+                    }
+                    return offered;
+                }));
+            }
+
+            Set<URI> drained = new HashSet<>();
+            int offered = 0;
+            for (Future<Integer> producer : producers)
+            {
+                while (!producer.isDone())
+                {
+                    buffer.drain((method, uri, status, contentLength, latencyNanos) -> drained.add(uri), 512);
+                }
+                offered += producer.get(1, TimeUnit.MINUTES);
+            }
+            buffer.drain((method, uri, status, contentLength, latencyNanos) -> drained.add(uri), Integer.MAX_VALUE);
+
+            // Entries may be dropped when the buffer is full, but none is lost or seen twice once accepted
+            assertEquals(offered, drained.size());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static URI uri(int i)
+    {
+        return URI.create("/todos?page=" + i);
+    }
+}
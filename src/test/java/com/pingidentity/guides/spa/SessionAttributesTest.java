@@ -0,0 +1,101 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the {@link SessionAttributes} against a {@link HashMap}.
+ */
+class SessionAttributesTest
+{
+    private final SessionAttributes attributes = new SessionAttributes();
+
+    @Test
+    void behavesLikeHashMap()
+    {
+        Map<String, Object> expected = new HashMap<>();
+        for (int i = 0; i < 20; i++)
+        {
+            assertEquals(expected.put("key" + i % 7, i), attributes.put("key" + i % 7, i));
+            if (i % 3 == 0)
+            {
+                assertEquals(expected.remove("key" + i % 5), attributes.remove("key" + i % 5));
+            }
+            assertEquals(expected, attributes);
+            assertEquals(expected.size(), attributes.size());
+        }
+        assertEquals(expected.get("key1"), attributes.get("key1"));
+        assertNull(attributes.get("missing"));
+    }
+
+    @Test
+    void putOfNullRemovesAttribute()
+    {
+        attributes.put("kept", "value");
+        attributes.put("removed", "value");
+
+        assertEquals("value", attributes.put("removed", null));
+        assertNull(attributes.put("never added", null));
+        assertFalse(attributes.containsKey("removed"));
+        assertFalse(attributes.containsKey("never added"));
+        assertEquals(1, attributes.size());
+    }
+
+    @Test
+    void putOfNullIntoEmptyAttributesLeavesThemEmpty()
+    {
+        attributes.put("name", null);
+
+        assertTrue(attributes.isEmpty());
+    }
+
+    @Test
+    void rejectsNullNames()
+    {
+        assertThrows(NullPointerException.class, () -> attributes.put(null, "value"));
+    }
+
+    @Test
+    void iteratorWorksOnCopy()
+    {
+        attributes.put("first", 1);
+        attributes.put("second", 2);
+
+        Iterator<Map.Entry<String, Object>> iterator = attributes.entrySet().iterator();
+        Map.Entry<String, Object> first = iterator.next();
+        iterator.remove();
+        attributes.put("third", 3);
+
+        assertEquals("second", iterator.next().getKey());
+        assertFalse(iterator.hasNext());
+        assertFalse(attributes.containsKey(first.getKey()));
+        assertEquals(2, attributes.size());
+    }
+}
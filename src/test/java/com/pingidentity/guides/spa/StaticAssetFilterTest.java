@@ -0,0 +1,61 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests how the {@link StaticAssetFilter} reads Accept-Encoding.
+ */
+class StaticAssetFilterTest
+{
+    @Test
+    void acceptsListedEncodingsUnlessTheirQualityIsZero()
+    {
+        assertTrue(StaticAssetFilter.accepts(Collections.singletonList("gzip, deflate, br"), "br"));
+        assertTrue(StaticAssetFilter.accepts(Collections.singletonList("GZIP;q=0.5"), "gzip"));
+        assertFalse(StaticAssetFilter.accepts(Collections.singletonList("gzip;q=0, br"), "gzip"));
+        assertFalse(StaticAssetFilter.accepts(Collections.singletonList("gzip;q=0.0"), "gzip"));
+        assertFalse(StaticAssetFilter.accepts(Collections.singletonList("deflate"), "gzip"));
+    }
+
+    @Test
+    void wildcardAcceptsEncodingsThatAreNotListed()
+    {
+        assertTrue(StaticAssetFilter.accepts(Collections.singletonList("*"), "br"));
+        assertTrue(StaticAssetFilter.accepts(Arrays.asList("gzip;q=0", "*;q=0.1"), "br"));
+        assertFalse(StaticAssetFilter.accepts(Collections.singletonList("*;q=0"), "br"));
+        assertFalse(StaticAssetFilter.accepts(Collections.singletonList("gzip, *;q=0"), "br"));
+    }
+
+    @Test
+    void listedEncodingTakesPrecedenceOverWildcard()
+    {
+        assertFalse(StaticAssetFilter.accepts(Collections.singletonList("*, br;q=0"), "br"));
+        assertFalse(StaticAssetFilter.accepts(Arrays.asList("*", "br;q=0"), "br"));
+        assertTrue(StaticAssetFilter.accepts(Collections.singletonList("*;q=0, br"), "br"));
+        assertTrue(StaticAssetFilter.accepts(Collections.singletonList("*, br;q=0"), "gzip"));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import com.pingidentity.guides.spa.TodoStore.Snapshot;
+import org.springframework.beans.factory.support.StaticListableBeanFactory;
+import org.springframework.util.unit.DataSize;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Creates the journals, stores and todos shared by the tests and benchmarks of the todo store, and reads snapshots
+ * back for assertions.
+ */
+final class TodoFixtures
+{
+    private TodoFixtures()
+    {
+    }
+
+    /**
+     * @return a disabled journal, so the store only keeps its todos in memory
+     */
+    static TodoJournal newJournal()
+    {
+        return new TodoJournal("", DataSize.ofMegabytes(16), 100_000);
+    }
+
+    /**
+     * @return a store that keeps its todos on the heap, without a limit on the todos of a user
+     */
+    static TodoStore newStore(TodoJournal journal, TodoStore.Listener... listeners)
+    {
+        return newStore(journal, false, Integer.MAX_VALUE, listeners);
+    }
+
+    /**
+     * @param listeners the listeners of the store, which are notified in this order
+     */
+    static TodoStore newStore(TodoJournal journal, boolean offHeap, int maxTodos, TodoStore.Listener... listeners)
+    {
+        StaticListableBeanFactory beans = new StaticListableBeanFactory();
+        for (int i = 0; i < listeners.length; i++)
+        {
+            beans.addBean("listener" + i, listeners[i]);
+        }
+        return new TodoStore(journal, offHeap, maxTodos, beans.getBeanProvider(TodoStore.Listener.class));
+    }
+
+    static Todo newTodo(String content)
+    {
+        Todo todo = new Todo();
+        todo.setId(UUID.randomUUID());
+        todo.setContent(content);
+        return todo;
+    }
+
+    static Todo withContent(Todo todo, String content)
+    {
+        Todo copy = new Todo();
+        copy.setId(todo.getId());
+        copy.setContent(content);
+        return copy;
+    }
+
+    static List<UUID> ids(Snapshot todos)
+    {
+        List<UUID> ids = new ArrayList<>();
+        for (Todo todo : todos)
+        {
+            ids.add(todo.getId());
+        }
+        return ids;
+    }
+
+    static List<String> contents(Snapshot todos)
+    {
+        List<String> contents = new ArrayList<>();
+        for (Todo todo : todos)
+        {
+            contents.add(todo.getContent());
+        }
+        return contents;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Tests the {@link TodoIdIndex} against a {@link HashMap}, with ids laid out in slots the way the {@link TodoStore}
+ * keeps them.
+ */
+class TodoIdIndexTest
+{
+    private final TodoIdIndex index = new TodoIdIndex();
+    private long[] ids = new long[64];
+    private int slots;
+
+    @Test
+    void findsPutIds()
+    {
+        UUID first = UUID.randomUUID();
+        UUID second = UUID.randomUUID();
+        put(first);
+        put(second);
+
+        assertEquals(0, find(first));
+        assertEquals(1, find(second));
+        assertEquals(-1, find(UUID.randomUUID()));
+    }
+
+    @Test
+    void putOfKnownIdMovesItToNewSlot()
+    {
+        UUID id = UUID.randomUUID();
+        put(id);
+        put(UUID.randomUUID());
+        put(id);
+
+        assertEquals(2, find(id));
+    }
+
+    @Test
+    void removeLeavesOtherIdsFindable()
+    {
+        List<UUID> added = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++)
+        {
+            UUID id = UUID.randomUUID();
+            added.add(id);
+            put(id);
+        }
+
+        // Removing every other id leaves gaps in every run of the table, which the following entries are moved into
+        for (int i = 0; i < added.size(); i += 2)
+        {
+            remove(added.get(i));
+        }
+        for (int i = 0; i < added.size(); i++)
+        {
+            assertEquals(i % 2 == 0 ? -1 : i, find(added.get(i)));
+        }
+    }
+
+    @Test
+    void removeOfUnknownIdDoesNothing()
+    {
+        UUID id = UUID.randomUUID();
+        put(id);
+        remove(UUID.randomUUID());
+
+        assertEquals(0, find(id));
+    }
+
+    @Test
+    void idsChosenToCollideAreStillFound()
+    {
+        // These ids all had the same hash before the hash was seeded, so they formed a single run
+        List<UUID> colliding = new ArrayList<>();
+        for (long i = 1; i <= 2_000; i++)
+        {
+            UUID id = new UUID(Long.rotateLeft(i, 32), i);
+            colliding.add(id);
+            put(id);
+        }
+        for (int i = 0; i < colliding.size(); i += 3)
+        {
+            remove(colliding.get(i));
+        }
+
+        for (int i = 0; i < colliding.size(); i++)
+        {
+            assertEquals(i % 3 == 0 ? -1 : i, find(colliding.get(i)));
+        }
+    }
+
+    @Test
+    void randomOperationsMatchHashMap()
+    {
+        Random random = new Random(42);
+        // A small pool of ids, so ids are often put again and removed
+        UUID[] pool = new UUID[512];
+        for (int i = 0; i < pool.length; i++)
+        {
+            pool[i] = UUID.randomUUID();
+        }
+
+        Map<UUID, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100_000; i++)
+        {
+            UUID id = pool[random.nextInt(pool.length)];
+            if (random.nextInt(3) == 0)
+            {
+                remove(id);
+                expected.remove(id);
+            }
+            else
+            {
+                expected.put(id, put(id));
+            }
+
+            if (i % 1_000 == 0)
+            {
+                for (UUID any : pool)
+                {
+                    assertEquals(expected.getOrDefault(any, -1).intValue(), find(any), "Slot of " + any);
+                }
+            }
+        }
+    }
+
+    private int put(UUID id)
+    {
+        if (2 * slots == ids.length)
+        {
+            ids = Arrays.copyOf(ids, ids.length << 1);
+        }
+        ids[2 * slots] = id.getMostSignificantBits();
+        ids[2 * slots + 1] = id.getLeastSignificantBits();
+        index.put(ids, slots);
+        return slots++;
+    }
+
+    private int find(UUID id)
+    {
+        return index.find(ids, id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+    private void remove(UUID id)
+    {
+        index.remove(ids, id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+}
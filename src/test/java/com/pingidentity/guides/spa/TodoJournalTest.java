@@ -0,0 +1,277 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import com.pingidentity.guides.spa.TodoStore.Snapshot;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.pingidentity.guides.spa.TodoFixtures.contents;
+import static com.pingidentity.guides.spa.TodoFixtures.ids;
+import static com.pingidentity.guides.spa.TodoFixtures.newStore;
+import static com.pingidentity.guides.spa.TodoFixtures.newTodo;
+import static com.pingidentity.guides.spa.TodoFixtures.withContent;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the {@link TodoJournal} restores the {@link TodoStore} after a restart or a crash.
+ */
+class TodoJournalTest
+{
+    @TempDir
+    Path directory;
+
+    private final List<TodoJournal> journals = new ArrayList<>();
+
+    @AfterEach
+    void closeJournals() throws InterruptedException
+    {
+        for (TodoJournal journal : journals)
+        {
+            journal.close();
+        }
+    }
+
+    @Test
+    void replaysWritesAfterRestart() throws Exception
+    {
+        TodoJournal journal = newJournal(100_000);
+        TodoStore store = newStore(journal);
+        Todo kept = newTodo("kept");
+        Todo replaced = newTodo("replaced");
+        Todo removed = newTodo("removed");
+        store.add("alice", kept).block();
+        store.addAll("alice", Arrays.asList(replaced, removed)).block();
+        store.put("alice", withContent(replaced, "replacement")).block();
+        store.remove("alice", removed.getId()).block();
+        store.add("bob", newTodo("bob's")).block();
+        journal.close();
+
+        TodoStore restored = newStore(newJournal(100_000));
+        Snapshot alice = restored.read("alice");
+        assertEquals(Arrays.asList(kept.getId(), replaced.getId()), ids(alice));
+        assertEquals(Arrays.asList("kept", "replacement"), contents(alice));
+        assertEquals(store.read("alice").getVersion(), alice.getVersion());
+        assertEquals(Arrays.asList("bob's"), contents(restored.read("bob")));
+        assertEquals(3, restored.getTodoCount());
+    }
+
+    @Test
+    void restoresFromSnapshotAndLaterSegments() throws Exception
+    {
+        // A snapshot is taken after every batch, while the records after it stay in the segments
+        TodoJournal journal = newJournal(1);
+        TodoStore store = newStore(journal);
+        List<Todo> todos = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            Todo todo = newTodo("todo " + i);
+            todos.add(todo);
+            store.add("alice", todo).block();
+            if (i % 10 == 0)
+            {
+                store.remove("alice", todos.remove(0).getId()).block();
+            }
+        }
+        journal.close();
+        assertFalse(files("snapshot-").isEmpty());
+
+        TodoStore restored = newStore(newJournal(1));
+        Snapshot alice = restored.read("alice");
+        assertEquals(todos.stream().map(Todo::getId).collect(Collectors.toList()), ids(alice));
+        assertEquals(store.read("alice").getVersion(), alice.getVersion());
+    }
+
+    @Test
+    void restoresTimeOfLastWrite() throws Exception
+    {
+        TodoJournal journal = newJournal(100_000);
+        TodoStore store = newStore(journal);
+        long before = System.currentTimeMillis();
+        store.add("alice", newTodo("first")).block();
+        Todo removed = newTodo("removed");
+        store.add("alice", removed).block();
+        store.remove("alice", removed.getId()).block();
+        long after = System.currentTimeMillis();
+        journal.close();
+
+        long lastWriteTime = newStore(newJournal(100_000)).read("alice").getLastWriteTime();
+        assertTrue(lastWriteTime >= before && lastWriteTime <= after, "Last write at " + lastWriteTime);
+    }
+
+    @Test
+    void restoresTimeOfLastWriteFromSnapshot() throws Exception
+    {
+        // Alice's todos are only in the snapshots taken during Bob's writes, and not in the segments after them
+        TodoJournal journal = newJournal(1);
+        TodoStore store = newStore(journal);
+        long before = System.currentTimeMillis();
+        store.add("alice", newTodo("first")).block();
+        long after = System.currentTimeMillis();
+        for (int i = 0; i < 50; i++)
+        {
+            store.add("bob", newTodo("todo " + i)).block();
+        }
+        journal.close();
+
+        Snapshot alice = newStore(newJournal(1)).read("alice");
+        assertEquals(Arrays.asList("first"), contents(alice));
+        assertTrue(alice.getLastWriteTime() >= before && alice.getLastWriteTime() <= after,
+                   "Last write at " + alice.getLastWriteTime());
+    }
+
+    @Test
+    void ignoresTornRecordAndAppendsAfterLastCompleteOne() throws Exception
+    {
+        TodoJournal journal = newJournal(100_000);
+        TodoStore store = newStore(journal);
+        store.add("alice", newTodo("first")).block();
+        store.add("alice", newTodo("second")).block();
+        store.add("alice", newTodo("torn")).block();
+        journal.close();
+
+        // A crash in the middle of the last write leaves its record with a checksum that doesn't match
+        Path segment = files("journal-").get(0);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            int last = buffer.limit() - 1;
+            while (buffer.get(last) == 0)
+            {
+                last--;
+            }
+            buffer.put(last, (byte) (buffer.get(last) ^ 1));
+        }
+
+        journal = newJournal(100_000);
+        store = newStore(journal);
+        assertEquals(Arrays.asList("first", "second"), contents(store.read("alice")));
+        assertEquals(2, store.read("alice").getVersion());
+        store.add("alice", newTodo("third")).block();
+        journal.close();
+
+        Snapshot alice = newStore(newJournal(100_000)).read("alice");
+        assertEquals(Arrays.asList("first", "second", "third"), contents(alice));
+        assertEquals(3, alice.getVersion());
+    }
+
+    @Test
+    void reusesLastSegmentOnRestart() throws Exception
+    {
+        for (int restart = 0; restart < 5; restart++)
+        {
+            TodoJournal journal = newJournal(100_000);
+            newStore(journal).add("alice", newTodo("todo " + restart)).block();
+            journal.close();
+        }
+
+        assertEquals(1, files("journal-").size());
+        assertEquals(5, newStore(newJournal(100_000)).read("alice").size());
+    }
+
+    @Test
+    void writesAfterCloseFail() throws Exception
+    {
+        TodoJournal journal = newJournal(100_000);
+        newStore(journal);
+        journal.close();
+
+        CompletableFuture<Void> durable = journal.append("alice", 1, newTodo("late"));
+        assertTrue(durable.isCompletedExceptionally());
+    }
+
+    @Test
+    void writesRacingWithCloseComplete() throws Exception
+    {
+        TodoJournal journal = newJournal(100_000);
+        newStore(journal);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            List<Future<List<CompletableFuture<Void>>>> writers = new ArrayList<>();
+            for (int w = 0; w < 4; w++)
+            {
+                String userName = "user-" + w;
+                writers.add(executor.submit(() ->
+                {
+                    List<CompletableFuture<Void>> writes = new ArrayList<>();
+                    for (int version = 1; version <= 20_000; version++)
+                    {
+                        writes.add(journal.append(userName, version, newTodo("todo")));
+                    }
+                    return writes;
+                }));
+            }
+            Thread.sleep(5);
+            journal.close();
+
+            // Every write is either durable or failed, none is left waiting for the writer
+            for (Future<List<CompletableFuture<Void>>> writer : writers)
+            {
+                for (CompletableFuture<Void> write : writer.get(1, TimeUnit.MINUTES))
+                {
+                    assertTrue(write.isDone(), "A write was left pending after close");
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private TodoJournal newJournal(long snapshotThreshold)
+    {
+        TodoJournal journal = new TodoJournal(directory.toString(), DataSize.ofKilobytes(64), snapshotThreshold);
+        journals.add(journal);
+        return journal;
+    }
+
+    private List<Path> files(String prefix) throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.filter(file -> file.getFileName().toString().startsWith(prefix))
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static com.pingidentity.guides.spa.TodoFixtures.newJournal;
+import static com.pingidentity.guides.spa.TodoFixtures.newStore;
+import static com.pingidentity.guides.spa.TodoFixtures.newTodo;
+import static com.pingidentity.guides.spa.TodoFixtures.withContent;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the {@link TodoSearchIndex} as a listener of a {@link TodoStore}.
+ */
+class TodoSearchIndexTest
+{
+    @TempDir
+    Path directory;
+
+    private TodoJournal journal;
+    private TodoSearchIndex searchIndex;
+    private TodoStore store;
+
+    @BeforeEach
+    void createStore()
+    {
+        journal = newJournal();
+        searchIndex = new TodoSearchIndex();
+        store = newStore(journal, searchIndex);
+    }
+
+    @AfterEach
+    void closeJournal() throws InterruptedException
+    {
+        journal.close();
+    }
+
+    @Test
+    void splitsTextIntoDistinctLowerCasedWords()
+    {
+        assertArrayEquals(new String[] {"buy", "milk", "eggs", "2x"},
+                          TodoSearchIndex.words("Buy MILK, eggs & milk!2x"));
+        assertArrayEquals(new String[] {"caf\u00e9", "na\u00efve"}, TodoSearchIndex.words("Caf\u00c9 (na\u00efve)"));
+        assertArrayEquals(new String[0], TodoSearchIndex.words(" -- "));
+    }
+
+    @Test
+    void rejectsQueriesWithoutWordsOrWithTooMany()
+    {
+        assertThrows(IllegalArgumentException.class, () -> TodoSearchIndex.queryWords(" ,. "));
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < 17; i++)
+        {
+            query.append("word").append(i).append(' ');
+        }
+        assertThrows(IllegalArgumentException.class, () -> TodoSearchIndex.queryWords(query.toString()));
+    }
+
+    @Test
+    void matchesTodosThatContainAllWords()
+    {
+        store.addAll("alice", Arrays.asList(newTodo("Buy milk"), newTodo("Buy bread"), newTodo("Milk the cow")))
+             .block();
+
+        assertEquals(Arrays.asList("Buy milk"), search("alice", "milk BUY"));
+        assertEquals(Arrays.asList("Buy milk", "Milk the cow"), search("alice", "milk"));
+        assertEquals(Collections.emptyList(), search("alice", "buy cheese"));
+        assertEquals(Collections.emptyList(), search("alice", "mil"));
+    }
+
+    @Test
+    void searchesOnlyTheTodosOfTheUser()
+    {
+        store.add("alice", newTodo("alice's milk")).block();
+        store.add("bob", newTodo("bob's milk")).block();
+
+        assertEquals(Arrays.asList("alice's milk"), search("alice", "milk"));
+        assertEquals(Arrays.asList("bob's milk"), search("bob", "milk"));
+        assertEquals(Collections.emptyList(), search("carol", "milk"));
+    }
+
+    @Test
+    void searchStopsWhenConsumerDoesAndResumesFromPosition()
+    {
+        for (int i = 0; i < 5; i++)
+        {
+            store.add("alice", newTodo("match " + i)).block();
+            store.add("alice", newTodo("other " + i)).block();
+        }
+
+        List<Integer> positions = new ArrayList<>();
+        assertFalse(searchIndex.search("alice", TodoSearchIndex.queryWords("match"), 0, (userName, position, todo) ->
+        {
+            positions.add(position);
+            return positions.size() < 2;
+        }));
+
+        List<String> rest = new ArrayList<>();
+        assertTrue(searchIndex.search("alice", TodoSearchIndex.queryWords("match"), positions.get(1) + 1,
+                                      (userName, position, todo) -> rest.add(todo.getContent())));
+        assertEquals(Arrays.asList("match 2", "match 3", "match 4"), rest);
+    }
+
+    @Test
+    void searchAllGoesThroughUsersInOrderOfName()
+    {
+        for (String userName : Arrays.asList("carol", "alice", "bob"))
+        {
+            store.addAll(userName, Arrays.asList(newTodo(userName + " first todo"), newTodo(userName + " second todo")))
+                 .block();
+        }
+
+        assertEquals(Arrays.asList("alice first todo",
+                                   "alice second todo",
+                                   "bob first todo",
+                                   "bob second todo",
+                                   "carol first todo",
+                                   "carol second todo"),
+                     searchAll("", 0));
+
+        // A cursor is the user and the position to resume at
+        List<Integer> positions = new ArrayList<>();
+        searchIndex.search("bob", TodoSearchIndex.queryWords("second"), 0, (userName, position, todo) ->
+                positions.add(position));
+        assertEquals(Arrays.asList("bob second todo", "carol first todo", "carol second todo"),
+                     searchAll("bob", positions.get(0)));
+    }
+
+    @Test
+    void indexesTodosRecoveredFromJournal() throws InterruptedException
+    {
+        TodoJournal persistent = new TodoJournal(directory.toString(), DataSize.ofKilobytes(64), 100_000);
+        newStore(persistent, new TodoSearchIndex()).add("alice", newTodo("Buy milk")).block();
+        persistent.close();
+
+        TodoSearchIndex recovered = new TodoSearchIndex();
+        persistent = new TodoJournal(directory.toString(), DataSize.ofKilobytes(64), 100_000);
+        try
+        {
+            newStore(persistent, recovered);
+            List<String> matches = new ArrayList<>();
+            recovered.search("alice", TodoSearchIndex.queryWords("milk"), 0, (userName, position, todo) ->
+                    matches.add(todo.getContent()));
+            assertEquals(Arrays.asList("Buy milk"), matches);
+        }
+        finally
+        {
+            persistent.close();
+        }
+    }
+
+    @Test
+    void replacedAndRemovedTodosAreDroppedFromPostings()
+    {
+        Todo milk = newTodo("Buy milk");
+        Todo bread = newTodo("Buy bread");
+        store.addAll("alice", Arrays.asList(milk, bread)).block();
+        assertEquals(3, searchIndex.getWordCount());
+        assertEquals(4, searchIndex.getPostingCount());
+
+        store.put("alice", withContent(milk, "Buy oat milk")).block();
+        assertEquals(Arrays.asList("Buy bread", "Buy oat milk"), search("alice", "buy"));
+        assertEquals(4, searchIndex.getWordCount());
+        assertEquals(5, searchIndex.getPostingCount());
+
+        store.remove("alice", bread.getId()).block();
+        assertEquals(Arrays.asList("Buy oat milk"), search("alice", "buy"));
+        assertEquals(Collections.emptyList(), search("alice", "bread"));
+        assertEquals(3, searchIndex.getWordCount());
+        assertEquals(3, searchIndex.getPostingCount());
+    }
+
+    @Test
+    void postingsStayBoundedUnderEdits()
+    {
+        List<Todo> todos = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            todos.add(newTodo("shared word" + i));
+        }
+        store.addAll("alice", todos).block();
+
+        for (int round = 0; round < 1_000; round++)
+        {
+            Todo todo = todos.get(round % todos.size());
+            store.put("alice", withContent(todo, "shared word" + round % todos.size() + " round" + round)).block();
+        }
+
+        // Each todo has three words, only the last round of each is left
+        assertEquals(30, searchIndex.getPostingCount());
+        assertEquals(1 + 10 + 10, searchIndex.getWordCount());
+        assertEquals(10, search("alice", "shared").size());
+        assertEquals(Arrays.asList("shared word3 round993"), search("alice", "round993"));
+        assertEquals(Collections.emptyList(), search("alice", "round3"));
+    }
+
+    @Test
+    void searchesFindTodosAfterCompaction()
+    {
+        List<Todo> todos = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+        {
+            todos.add(newTodo((i % 2 == 0 ? "even" : "odd") + " todo " + i));
+        }
+        store.addAll("alice", todos).block();
+        List<Integer> positions = new ArrayList<>();
+        searchIndex.search("alice", TodoSearchIndex.queryWords("odd"), 0, (userName, position, todo) ->
+        {
+            positions.add(position);
+            return true;
+        });
+
+        for (int i = 0; i < 30; i++)
+        {
+            store.remove("alice", todos.get(i).getId()).block();
+        }
+        assertTrue(store.getCompactionCount() > 0, "The todos were never compacted");
+
+        assertEquals(Arrays.asList("odd todo 31", "odd todo 33", "odd todo 35", "odd todo 37", "odd todo 39"),
+                     search("alice", "odd"));
+        // A cursor taken before the compaction still starts at the same todo
+        List<String> fromCursor = new ArrayList<>();
+        searchIndex.search("alice", TodoSearchIndex.queryWords("odd"), positions.get(17), (userName, position, todo) ->
+        {
+            fromCursor.add(todo.getContent());
+            return true;
+        });
+        assertEquals(Arrays.asList("odd todo 35", "odd todo 37", "odd todo 39"), fromCursor);
+    }
+
+    private List<String> searchAll(String fromUser, int fromStart)
+    {
+        List<String> matches = new ArrayList<>();
+        searchIndex.searchAll(TodoSearchIndex.queryWords("todo"), fromUser, fromStart, (owner, position, todo) ->
+                matches.add(todo.getContent()));
+        return matches;
+    }
+
+    private List<String> search(String userName, String query)
+    {
+        List<String> matches = new ArrayList<>();
+        searchIndex.search(userName, TodoSearchIndex.queryWords(query), 0, (owner, position, todo) ->
+        {
+            matches.add(todo.getContent());
+            return true;
+        });
+        return matches;
+    }
+}
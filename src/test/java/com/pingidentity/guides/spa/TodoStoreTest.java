@@ -0,0 +1,773 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.Controller.Todo;
+import com.pingidentity.guides.spa.TodoStore.Snapshot;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.pingidentity.guides.spa.TodoFixtures.contents;
+import static com.pingidentity.guides.spa.TodoFixtures.ids;
+import static com.pingidentity.guides.spa.TodoFixtures.newJournal;
+import static com.pingidentity.guides.spa.TodoFixtures.newStore;
+import static com.pingidentity.guides.spa.TodoFixtures.newTodo;
+import static com.pingidentity.guides.spa.TodoFixtures.withContent;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Tests the {@link TodoStore} without a journal, or with one that fails writes, including concurrent writers and
+ * readers.
+ */
+class TodoStoreTest
+{
+    private static final int MAX_TODOS = 100;
+
+    private TodoJournal journal;
+    private TodoStore store;
+
+    @BeforeEach
+    void createStore()
+    {
+        journal = newJournal();
+        store = newStore(journal, false, MAX_TODOS);
+    }
+
+    @AfterEach
+    void closeJournal() throws InterruptedException
+    {
+        journal.close();
+    }
+
+    @Test
+    void addAppendsTodosInOrder()
+    {
+        Todo first = newTodo("first");
+        Todo second = newTodo("second");
+        store.add("user", first).block();
+        store.add("user", second).block();
+
+        Snapshot todos = store.read("user");
+        assertEquals(2, todos.size());
+        assertEquals(2, todos.getVersion());
+        assertEquals(Arrays.asList(first.getId(), second.getId()), ids(todos));
+        assertEquals(Arrays.asList("first", "second"), contents(todos));
+        assertEquals(2, store.getTodoCount());
+        assertEquals("firstsecond".length(), store.getContentBytes());
+    }
+
+    @Test
+    void contentIsKeptAsUtf8OnAndOffHeap()
+    {
+        String content = "Caf\u00e9 \u2615 \ud83d\ude00";
+        for (boolean offHeap : new boolean[] {false, true})
+        {
+            TodoStore store = newStore(journal, offHeap, MAX_TODOS);
+            Todo todo = newTodo(content);
+            store.add("user", todo).block();
+
+            Snapshot todos = store.read("user");
+            assertEquals(Arrays.asList(todo.getId()), ids(todos));
+            assertEquals(Arrays.asList(content), contents(todos));
+            assertEquals(content.getBytes(StandardCharsets.UTF_8).length, store.getContentBytes());
+        }
+    }
+
+    @Test
+    void addLeavesTodoWithKnownIdAsItIs()
+    {
+        Todo todo = newTodo("original");
+        store.add("user", todo).block();
+        Todo retried = new Todo();
+        retried.setId(todo.getId());
+        retried.setContent("retried");
+        store.add("user", retried).block();
+
+        Snapshot todos = store.read("user");
+        assertEquals(1, todos.size());
+        assertEquals(1, todos.getVersion());
+        assertEquals(Arrays.asList("original"), contents(todos));
+    }
+
+    @Test
+    void addAllSkipsKnownAndRepeatedIds()
+    {
+        Todo known = newTodo("known");
+        store.add("user", known).block();
+        Todo created = newTodo("created");
+        store.addAll("user", Arrays.asList(known, created, created)).block();
+
+        Snapshot todos = store.read("user");
+        assertEquals(Arrays.asList(known.getId(), created.getId()), ids(todos));
+        assertEquals(2, todos.getVersion());
+    }
+
+    @Test
+    void addAllAppendsTodosInOrder()
+    {
+        store.add("user", newTodo("first")).block();
+        store.addAll("user", Arrays.asList(newTodo("second"), newTodo("third"))).block();
+        store.addAll("user", Collections.emptyList()).block();
+
+        Snapshot todos = store.read("user");
+        assertEquals(Arrays.asList("first", "second", "third"), contents(todos));
+        assertEquals(3, todos.getVersion());
+    }
+
+    @Test
+    void snapshotIsNotChangedByLaterWrites()
+    {
+        store.add("user", newTodo("first")).block();
+        Snapshot before = store.read("user");
+        store.add("user", newTodo("second")).block();
+        store.addAll("user", Arrays.asList(newTodo("third"), newTodo("fourth"))).block();
+
+        assertEquals(1, before.size());
+        assertEquals(Arrays.asList("first"), contents(before));
+        assertEquals(4, store.read("user").size());
+    }
+
+    @Test
+    void readOfUnknownUserIsEmpty()
+    {
+        assertSame(Snapshot.EMPTY, store.read("nobody"));
+    }
+
+    @Test
+    void writesOverQuotaAreRejected()
+    {
+        List<Todo> todos = new ArrayList<>();
+        for (int i = 0; i < MAX_TODOS - 1; i++)
+        {
+            todos.add(newTodo("todo " + i));
+        }
+        store.addAll("user", todos).block();
+
+        assertThrows(TodoStore.QuotaExceededException.class,
+                     () -> store.addAll("user", Arrays.asList(newTodo("a"), newTodo("b"))));
+        assertEquals(MAX_TODOS - 1, store.read("user").size());
+        store.add("user", newTodo("last")).block();
+        assertThrows(TodoStore.QuotaExceededException.class, () -> store.add("user", newTodo("over")));
+        assertEquals(MAX_TODOS, store.read("user").size());
+    }
+
+    @Test
+    void putReplacesTodoAndMovesItToEnd()
+    {
+        Todo first = newTodo("first");
+        Todo second = newTodo("second");
+        store.addAll("user", Arrays.asList(first, second)).block();
+        Snapshot before = store.read("user");
+
+        assertEquals(false, store.put("user", withContent(first, "first, again")).block());
+        Snapshot after = store.read("user");
+        assertEquals(Arrays.asList(second.getId(), first.getId()), ids(after));
+        assertEquals(Arrays.asList("second", "first, again"), contents(after));
+        assertEquals(3, after.getVersion());
+        assertEquals(2, store.getTodoCount());
+        assertEquals("secondfirst, again".length(), store.getContentBytes());
+        assertEquals(Arrays.asList("first", "second"), contents(before));
+    }
+
+    @Test
+    void putOfSameContentLeavesTodoAsItIs()
+    {
+        Todo todo = newTodo("same");
+        store.add("user", todo).block();
+
+        assertEquals(false, store.put("user", withContent(todo, "same")).block());
+        assertEquals(1, store.read("user").getVersion());
+        assertEquals(0, store.getRemovedCount());
+    }
+
+    @Test
+    void putOfUnknownIdAppendsTodo()
+    {
+        store.add("user", newTodo("first")).block();
+
+        assertEquals(true, store.put("user", newTodo("second")).block());
+        assertEquals(Arrays.asList("first", "second"), contents(store.read("user")));
+    }
+
+    @Test
+    void removeDropsTodoFromLaterSnapshotsOnly()
+    {
+        Todo kept = newTodo("kept");
+        Todo removed = newTodo("removed");
+        store.addAll("user", Arrays.asList(kept, removed)).block();
+        Snapshot before = store.read("user");
+
+        assertEquals(true, store.remove("user", removed.getId()).block());
+        assertEquals(false, store.remove("user", removed.getId()).block());
+        assertEquals(false, store.remove("nobody", removed.getId()).block());
+        assertEquals(Arrays.asList(kept.getId()), ids(store.read("user")));
+        assertEquals(Arrays.asList(kept.getId(), removed.getId()), ids(before));
+        assertEquals(1, store.getTodoCount());
+        assertEquals(1, store.getRemovedCount());
+
+        // The id can be used again once it is removed
+        store.add("user", withContent(removed, "added again")).block();
+        assertEquals(Arrays.asList("kept", "added again"), contents(store.read("user")));
+    }
+
+    @Test
+    void retryOfFailedCreateJournalsTodoAgain()
+    {
+        FlakyJournal flakyJournal = new FlakyJournal();
+        TodoStore flakyStore = newStore(flakyJournal, false, MAX_TODOS);
+        Todo first = newTodo("first");
+        Todo second = newTodo("second");
+        Todo third = newTodo("third");
+
+        flakyJournal.failNextWrite();
+        assertThrows(IllegalStateException.class, () -> flakyStore.add("user", first).block());
+        // A later write that is durable doesn't make the failed one durable
+        flakyStore.add("user", second).block();
+        flakyStore.addAll("user", Arrays.asList(first, third)).block();
+        assertEquals(Arrays.asList("2 create second", "3 put first", "4 create third"), flakyJournal.records);
+        assertEquals(Arrays.asList("second", "first", "third"), contents(flakyStore.read("user")));
+
+        // Once the todo is durable, retries leave it as it is
+        flakyStore.add("user", first).block();
+        assertEquals(false, flakyStore.put("user", first).block());
+        assertEquals(3, flakyJournal.records.size());
+    }
+
+    @Test
+    void retryOfFailedRemovalJournalsItAgain()
+    {
+        FlakyJournal flakyJournal = new FlakyJournal();
+        TodoStore flakyStore = newStore(flakyJournal, false, MAX_TODOS);
+        Todo todo = newTodo("removed");
+        flakyStore.add("user", todo).block();
+
+        flakyJournal.failNextWrite();
+        assertThrows(IllegalStateException.class, () -> flakyStore.remove("user", todo.getId()).block());
+        assertEquals(true, flakyStore.remove("user", todo.getId()).block());
+        assertEquals(false, flakyStore.remove("user", todo.getId()).block());
+        assertEquals(Arrays.asList("1 create removed", "3 remove removed"), flakyJournal.records);
+        assertEquals(0, flakyStore.read("user").size());
+    }
+
+    @Test
+    void quotaCountsTodosLeftAfterRemovals()
+    {
+        List<Todo> todos = new ArrayList<>();
+        for (int i = 0; i < MAX_TODOS; i++)
+        {
+            todos.add(newTodo("todo " + i));
+        }
+        store.addAll("user", todos).block();
+        assertThrows(TodoStore.QuotaExceededException.class, () -> store.add("user", newTodo("over")));
+
+        store.remove("user", todos.get(0).getId()).block();
+        store.add("user", newTodo("fits")).block();
+        assertEquals(MAX_TODOS, store.read("user").size());
+    }
+
+    @Test
+    void replacedAndRemovedTodosAreCompacted()
+    {
+        List<Todo> todos = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+        {
+            todos.add(newTodo("todo " + i));
+        }
+        store.addAll("user", todos).block();
+        long arenaBytes = store.getArenaBytes();
+
+        // Far more dead slots and content than the quota, which must be reclaimed as the user goes
+        for (int round = 0; round < 1_000; round++)
+        {
+            Todo todo = todos.get(round % todos.size());
+            store.put("user", withContent(todo, "todo " + round % todos.size() + " edited " + round)).block();
+        }
+        for (int i = 0; i < 10; i++)
+        {
+            store.remove("user", todos.get(i).getId()).block();
+        }
+
+        Snapshot compacted = store.read("user");
+        assertTrue(store.getCompactionCount() > 0, "The todos were never compacted");
+        assertTrue(store.getRemovedCount() <= Math.max(8, compacted.size()), "Removed: " + store.getRemovedCount());
+        assertTrue(compacted.getEndSlot() <= 2 * compacted.size() + 8, "Slots: " + compacted.getEndSlot());
+        assertTrue(store.getArenaBytes() <= 8 * arenaBytes, "Arena: " + store.getArenaBytes());
+        assertEquals(10, compacted.size());
+        assertEquals(20 + 1_000 + 10, compacted.getVersion());
+        List<String> contents = contents(compacted);
+        for (int i = 0; i < 10; i++)
+        {
+            assertEquals("todo " + (i + 10) + " edited " + (980 + i + 10), contents.get(i));
+        }
+
+        // Ids are still found after the todos moved to other slots
+        store.put("user", withContent(todos.get(19), "last")).block();
+        store.remove("user", todos.get(10).getId()).block();
+        assertEquals(9, store.read("user").size());
+        assertEquals("last", contents(store.read("user")).get(8));
+    }
+
+    @Test
+    void compactionKeepsPositions()
+    {
+        List<Todo> todos = new ArrayList<>();
+        for (int i = 0; i < 40; i++)
+        {
+            todos.add(newTodo("todo " + i));
+        }
+        store.addAll("user", todos).block();
+        Snapshot before = store.read("user");
+        Snapshot page = before.page(0, 30);
+        int cursor = page.getEndPosition();
+
+        for (int i = 0; i < 25; i++)
+        {
+            store.remove("user", todos.get(i).getId()).block();
+        }
+        Snapshot after = store.read("user");
+        assertTrue(store.getCompactionCount() > 0, "The todos were never compacted");
+        assertEquals(before.getListId(), after.getListId());
+
+        // A cursor taken before the compaction continues where it left off
+        assertEquals(contents(before.page(cursor, 100)), contents(after.page(cursor, 100)));
+        for (int slot = after.nextSlot(0); slot < after.getEndSlot(); slot = after.nextSlot(slot + 1))
+        {
+            int position = after.getPosition(slot);
+            assertEquals(slot, after.slotAt(position));
+            assertEquals(before.getId(before.slotAt(position)), after.getId(slot));
+        }
+        assertEquals(before.getEndPosition(), after.getEndPosition());
+    }
+
+    @Test
+    void compactedSnapshotIsPublishedToListeners()
+    {
+        List<Snapshot> compacted = new ArrayList<>();
+        TodoStore store = newStore(journal, false, MAX_TODOS, new TodoStore.Listener()
+        {
+            @Override
+            public void created(String userName, Snapshot snapshot, int from)
+            {
+            }
+
+            @Override
+            public void compacted(String userName, Snapshot snapshot)
+            {
+                compacted.add(snapshot);
+            }
+        });
+        List<Todo> todos = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+        {
+            todos.add(newTodo("todo " + i));
+        }
+        store.addAll("user", todos).block();
+        // Compacted once the removed todos are at least 8 and outnumber the others
+        for (int i = 0; i < 8; i++)
+        {
+            store.remove("user", todos.get(i).getId()).block();
+        }
+
+        assertEquals(1, compacted.size());
+        assertSame(store.read("user"), compacted.get(0));
+        assertEquals(2, compacted.get(0).getEndSlot());
+        assertEquals(Arrays.asList("todo 8", "todo 9"), contents(compacted.get(0)));
+        assertEquals(18, compacted.get(0).getVersion());
+    }
+
+    @Test
+    void concurrentWritersAndReadersOfOneUser() throws Exception
+    {
+        int writers = 4;
+        int todosPerWriter = 2_000;
+        TodoStore store = newStore(journal);
+        ExecutorService executor = Executors.newFixedThreadPool(writers + 2);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        try
+        {
+            List<Future<?>> writes = new ArrayList<>();
+            for (int w = 0; w < writers; w++)
+            {
+                String writer = "writer-" + w;
+                writes.add(executor.submit(() ->
+                {
+                    start.await();
+                    for (int i = 0; i < todosPerWriter; )
+                    {
+                        // Alternate single todos with batches, which must become visible together
+                        if (i % 3 == 0)
+                        {
+                            store.add("shared", newTodo(writer + " " + i++)).block();
+                        }
+                        else
+                        {
+                            List<Todo> batch = new ArrayList<>();
+                            for (int j = 0; j < 5 && i < todosPerWriter; j++)
+                            {
+                                batch.add(newTodo(writer + " " + i++));
+                            }
+                            store.addAll("shared", batch).block();
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            List<Future<?>> reads = new ArrayList<>();
+            for (int r = 0; r < 2; r++)
+            {
+                reads.add(executor.submit(() ->
+                {
+                    start.await();
+                    long lastVersion = 0;
+                    while (writing.get())
+                    {
+                        Snapshot todos = store.read("shared");
+                        assertTrue(todos.getVersion() >= lastVersion, "Versions must not go back");
+                        lastVersion = todos.getVersion();
+                        checkSnapshot(todos, writers);
+                    }
+                    return null;
+                }));
+            }
+
+            start.countDown();
+            for (Future<?> write : writes)
+            {
+                write.get(1, TimeUnit.MINUTES);
+            }
+            writing.set(false);
+            for (Future<?> read : reads)
+            {
+                read.get(1, TimeUnit.MINUTES);
+            }
+        }
+        finally
+        {
+            writing.set(false);
+            executor.shutdownNow();
+        }
+
+        Snapshot todos = store.read("shared");
+        assertEquals(writers * todosPerWriter, todos.size());
+        assertEquals(writers * todosPerWriter, todos.getVersion());
+        assertEquals(writers * todosPerWriter, new HashSet<>(ids(todos)).size());
+        checkSnapshot(todos, writers);
+    }
+
+    @Test
+    void concurrentEditsAndReadsAcrossCompactions() throws Exception
+    {
+        List<Todo> todos = new ArrayList<>();
+        for (int i = 0; i < 50; i++)
+        {
+            todos.add(newTodo("todo " + i + " 0"));
+        }
+        store.addAll("user", todos).block();
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        AtomicBoolean writing = new AtomicBoolean(true);
+        try
+        {
+            Future<?> write = executor.submit(() ->
+            {
+                for (int round = 1; round <= 20_000; round++)
+                {
+                    int i = round % todos.size();
+                    if (round % 7 == 0)
+                    {
+                        store.remove("user", todos.get(i).getId()).block();
+                    }
+                    store.put("user", withContent(todos.get(i), "todo " + i + " " + round)).block();
+                }
+                return null;
+            });
+
+            List<Future<?>> reads = new ArrayList<>();
+            for (int r = 0; r < 2; r++)
+            {
+                reads.add(executor.submit(() ->
+                {
+                    while (writing.get())
+                    {
+                        // Whatever a reader holds stays readable while the writer compacts
+                        Snapshot snapshot = store.read("user");
+                        Set<UUID> seen = new HashSet<>();
+                        int count = 0;
+                        for (Todo todo : snapshot)
+                        {
+                            assertTrue(todo.getContent().startsWith("todo "), todo.getContent());
+                            assertTrue(seen.add(todo.getId()), "Duplicate todo " + todo.getId());
+                            count++;
+                        }
+                        assertEquals(snapshot.size(), count);
+                    }
+                    return null;
+                }));
+            }
+
+            write.get(1, TimeUnit.MINUTES);
+            writing.set(false);
+            for (Future<?> read : reads)
+            {
+                read.get(1, TimeUnit.MINUTES);
+            }
+        }
+        finally
+        {
+            writing.set(false);
+            executor.shutdownNow();
+        }
+
+        assertTrue(store.getCompactionCount() > 0, "The todos were never compacted");
+        assertEquals(50, store.read("user").size());
+        assertTrue(store.getRemovedCount() <= 50, "Removed: " + store.getRemovedCount());
+    }
+
+    @Test
+    void concurrentWritersOfDifferentUsers() throws Exception
+    {
+        int users = 8;
+        int todosPerUser = 1_000;
+        TodoStore store = newStore(journal);
+        ExecutorService executor = Executors.newFixedThreadPool(users);
+        try
+        {
+            List<Future<?>> writes = new ArrayList<>();
+            for (int u = 0; u < users; u++)
+            {
+                String userName = "user-" + u;
+                writes.add(executor.submit(() ->
+                {
+                    for (int i = 0; i < todosPerUser; i++)
+                    {
+                        store.add(userName, newTodo(userName + " " + i)).block();
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> write : writes)
+            {
+                write.get(1, TimeUnit.MINUTES);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        for (int u = 0; u < users; u++)
+        {
+            Snapshot todos = store.read("user-" + u);
+            assertEquals(todosPerUser, todos.size());
+            List<String> contents = contents(todos);
+            for (int i = 0; i < todosPerUser; i++)
+            {
+                assertEquals("user-" + u + " " + i, contents.get(i));
+            }
+        }
+    }
+
+    /**
+     * A stress test of writers of different users, which don't contend: with a core for each of them, several writers
+     * add todos well over twice as fast as one. It needs at least 4 cores, and is skipped on smaller machines.
+     */
+    @Test
+    void throughputScalesWithWritersOfDifferentUsers() throws Exception
+    {
+        int writers = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+        assumeTrue(writers >= 4, "Fewer than 4 cores");
+
+        double single = bestThroughput(1);
+        double parallel = bestThroughput(writers);
+        assertTrue(parallel > 2 * single,
+                   String.format("%d writers added %.0f todos/s, 1 writer %.0f todos/s", writers, parallel, single));
+    }
+
+    /**
+     * @return the most todos per second that separate writers, each of its own user, added in a few rounds
+     */
+    private static double bestThroughput(int writers) throws Exception
+    {
+        int todosPerWriter = 100_000;
+        // Random UUIDs share one SecureRandom, so the todos are created ahead
+        Todo[][] todos = new Todo[writers][todosPerWriter];
+        for (int w = 0; w < writers; w++)
+        {
+            for (int i = 0; i < todosPerWriter; i++)
+            {
+                todos[w][i] = newTodo("todo " + i);
+            }
+        }
+
+        double best = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try
+        {
+            for (int round = 0; round < 5; round++)
+            {
+                TodoStore store = newStore(newJournal());
+                CountDownLatch ready = new CountDownLatch(writers);
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> writes = new ArrayList<>();
+                for (int w = 0; w < writers; w++)
+                {
+                    String userName = "user-" + w;
+                    Todo[] userTodos = todos[w];
+                    writes.add(executor.submit(() ->
+                    {
+                        ready.countDown();
+                        start.await();
+                        for (Todo todo : userTodos)
+                        {
+                            store.add(userName, todo).block();
+                        }
+                        return null;
+                    }));
+                }
+
+                ready.await();
+                long started = System.nanoTime();
+                start.countDown();
+                for (Future<?> write : writes)
+                {
+                    write.get(1, TimeUnit.MINUTES);
+                }
+                long elapsed = System.nanoTime() - started;
+                best = Math.max(best, (double) writers * todosPerWriter * TimeUnit.SECONDS.toNanos(1) / elapsed);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        return best;
+    }
+
+    /**
+     * Checks that a snapshot taken while writers append "writer-N i" todos is consistent: its size matches what it
+     * iterates, and it holds a prefix of each writer's todos in order.
+     */
+    private static void checkSnapshot(Snapshot todos, int writers)
+    {
+        int[] next = new int[writers];
+        int count = 0;
+        for (Todo todo : todos)
+        {
+            String[] parts = todo.getContent().split(" ");
+            int writer = Integer.parseInt(parts[0].substring("writer-".length()));
+            assertEquals(next[writer]++, Integer.parseInt(parts[1]), "Todos of " + parts[0] + " out of order");
+            count++;
+        }
+        assertEquals(todos.size(), count);
+        // Each write created one todo
+        assertEquals(todos.getVersion(), count);
+    }
+
+    /**
+     * A journal that completes each write at once and records it, except for the writes it is told to fail.
+     */
+    private static final class FlakyJournal extends TodoJournal
+    {
+        private final List<String> records = new ArrayList<>();
+        private final Map<UUID, String> contents = new HashMap<>();
+        private int failures;
+
+        FlakyJournal()
+        {
+            super("", DataSize.ofMegabytes(16), 100_000);
+        }
+
+        void failNextWrite()
+        {
+            failures++;
+        }
+
+        @Override
+        public boolean isEnabled()
+        {
+            return true;
+        }
+
+        @Override
+        void open(Target target)
+        {
+        }
+
+        @Override
+        CompletableFuture<Void> append(String userName, long version, Todo todo)
+        {
+            contents.put(todo.getId(), todo.getContent());
+            return write(version + " create " + todo.getContent());
+        }
+
+        @Override
+        CompletableFuture<Void> appendPut(String userName, long version, Todo todo)
+        {
+            contents.put(todo.getId(), todo.getContent());
+            return write(version + " put " + todo.getContent());
+        }
+
+        @Override
+        CompletableFuture<Void> appendRemove(String userName, long version, UUID id)
+        {
+            return write(version + " remove " + contents.get(id));
+        }
+
+        private CompletableFuture<Void> write(String record)
+        {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (failures > 0)
+            {
+                failures--;
+                future.completeExceptionally(new IllegalStateException("Unable to write " + record));
+            }
+            else
+            {
+                records.add(record);
+                future.complete(null);
+            }
+            return future;
+        }
+    }
+}
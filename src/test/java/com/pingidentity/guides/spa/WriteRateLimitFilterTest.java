@@ -0,0 +1,184 @@
+/*
+ * ****************************************************
+ * Copyright (C) 2020 Ping Identity Corporation
+ * All rights reserved.
+ *
+ * The contents of this file are the property of Ping Identity Corporation.
+ * You may not copy or use this file, in either source code or executable
+ * form, except in compliance with terms set by Ping Identity Corporation.
+ * For further information please contact:
+ *
+ * Ping Identity Corporation
+ * 1001 17th St Suite 100
+ * Denver, CO 80202
+ * 303.468.2900
+ * http://www.pingidentity.com
+ * ****************************************************
+ */
+
+package com.pingidentity.guides.spa;
+
+import com.pingidentity.guides.spa.WriteRateLimitFilter.Bucket;
+import com.pingidentity.guides.spa.WriteRateLimitFilter.Limit;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests the arithmetic of the buckets of the {@link WriteRateLimitFilter}, with explicit times in nanoseconds.
+ */
+class WriteRateLimitFilterTest
+{
+    private static final long INTERVAL = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int BURST = 5;
+    private static final long START = TimeUnit.SECONDS.toNanos(1);
+
+    private final Bucket bucket = new Bucket(new Limit(INTERVAL, BURST));
+
+    @Test
+    void burstIsTakenAtOnce()
+    {
+        for (int i = 0; i < BURST; i++)
+        {
+            assertEquals(0, bucket.acquire(START));
+        }
+        assertEquals(INTERVAL, bucket.acquire(START));
+    }
+
+    @Test
+    void emptyBucketRefillsOneTokenPerInterval()
+    {
+        takeBurst(START);
+
+        assertEquals(INTERVAL / 2, bucket.acquire(START + INTERVAL / 2));
+        assertEquals(0, bucket.acquire(START + INTERVAL));
+        assertEquals(INTERVAL, bucket.acquire(START + INTERVAL));
+        assertEquals(0, bucket.acquire(START + 2 * INTERVAL));
+    }
+
+    @Test
+    void rejectedRequestsTakeNoToken()
+    {
+        takeBurst(START);
+        for (int i = 0; i < 100; i++)
+        {
+            assertTrue(bucket.acquire(START + i) > 0);
+        }
+
+        assertEquals(0, bucket.acquire(START + INTERVAL));
+    }
+
+    @Test
+    void idleBucketHoldsAtMostBurst()
+    {
+        takeBurst(START);
+
+        long later = START + TimeUnit.HOURS.toNanos(1);
+        takeBurst(later);
+        assertEquals(INTERVAL, bucket.acquire(later));
+    }
+
+    @Test
+    void onlyFullBucketIsEvicted()
+    {
+        takeBurst(START);
+        long fullAt = START + BURST * INTERVAL;
+
+        assertFalse(bucket.evictIfFull(fullAt - 1));
+        assertEquals(0, bucket.acquire(fullAt - 1));
+        assertFalse(bucket.evictIfFull(fullAt));
+        assertTrue(bucket.evictIfFull(fullAt + INTERVAL));
+        assertFalse(bucket.evictIfFull(fullAt + INTERVAL));
+
+        // A request that raced with the eviction starts over with a new bucket
+        assertEquals(-1, bucket.acquire(fullAt + INTERVAL));
+    }
+
+    @Test
+    void concurrentRequestsTakeExactlyBurst() throws Exception
+    {
+        Bucket shared = new Bucket(new Limit(INTERVAL, 1_000));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try
+        {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Integer>> requesters = new ArrayList<>();
+            for (int t = 0; t < 8; t++)
+            {
+                requesters.add(executor.submit(() ->
+                {
+                    start.await();
+                    int taken = 0;
+                    for (int i = 0; i < 1_000; i++)
+                    {
+                        if (shared.acquire(START) == 0)
+                        {
+                            taken++;
+                        }
+                    }
+                    return taken;
+                }));
+            }
+            start.countDown();
+
+            int taken = 0;
+            for (Future<Integer> requester : requesters)
+            {
+                taken += requester.get(1, TimeUnit.MINUTES);
+            }
+            assertEquals(1_000, taken);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void parsesRateAndBurstOfEachRole()
+    {
+        Map<String, Limit> limits = WriteRateLimitFilter.parseLimits("*:10:2, sre:0.5:1");
+
+        Bucket any = new Bucket(limits.get("*"));
+        takeBurst(any, START, 2);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), any.acquire(START));
+
+        Bucket sre = new Bucket(limits.get("sre"));
+        takeBurst(sre, START, 1);
+        assertEquals(TimeUnit.SECONDS.toNanos(2), sre.acquire(START));
+    }
+
+    @Test
+    void rejectsInvalidLimits()
+    {
+        assertThrows(IllegalArgumentException.class, () -> WriteRateLimitFilter.parseLimits("user:10:5"));
+        assertThrows(IllegalArgumentException.class, () -> WriteRateLimitFilter.parseLimits("*:10"));
+        assertThrows(IllegalArgumentException.class, () -> WriteRateLimitFilter.parseLimits("*:0:5"));
+        assertThrows(IllegalArgumentException.class, () -> WriteRateLimitFilter.parseLimits("*:10:0"));
+    }
+
+    private void takeBurst(long now)
+    {
+        takeBurst(bucket, now, BURST);
+    }
+
+    private static void takeBurst(Bucket bucket, long now, int burst)
+    {
+        for (int i = 0; i < burst; i++)
+        {
+            assertEquals(0, bucket.acquire(now), "Token " + i);
+        }
+    }
+}